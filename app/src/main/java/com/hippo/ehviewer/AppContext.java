@@ -148,10 +148,24 @@ public class AppContext extends Application implements UncaughtExceptionHandler
      */
     @Override
     public void onLowMemory() {
-        ImageCache.getImageCache(this).clearMemory();
+        ImageCache imageCache = ImageCache.getImageCache(this);
+        // Save it before memory cache is cleared
+        imageCache.saveManifest();
+        imageCache.clearMemory();
         super.onLowMemory();
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // Process might be killed after UI is hidden
+        if (level >= TRIM_MEMORY_UI_HIDDEN)
+            ImageCache.getImageCache(this).saveManifest();
+    }
+
     @Override
     public void uncaughtException(Thread thread, Throwable ex) {
         if (!handleException(ex) && mDefaultHandler != null) {
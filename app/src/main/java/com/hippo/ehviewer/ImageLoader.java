@@ -18,14 +18,38 @@ package com.hippo.ehviewer;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
 
 import com.hippo.ehviewer.network.HttpHelper;
-import com.hippo.ehviewer.cache.AnyCache;
+import com.hippo.ehviewer.cache.BitmapPool;
 import com.hippo.ehviewer.cache.ImageCache;
 import com.hippo.ehviewer.util.BgThread;
+import com.hippo.ehviewer.util.Config;
+import com.hippo.ehviewer.util.FastByteArrayOutputStream;
 
-import java.util.Stack;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Load image from memory cache, disk cache and network.<br>
+ * Memory cache hit is called back at once. Disk cache and network are two
+ * stages, each has its own thread pool, so a slow download never blocks a
+ * disk read. Requests for the same image in the same size share one
+ * {@link LoadTask}, tasks for the same key share one {@link DownloadTask}.
+ * Tasks are taken by priority, the newer one first for the same priority.
+ * A task is dropped if all of its listeners are cancelled before it runs.
+ * If too many tasks are waiting in one stage, the last ones fail at once.
+ * Images shown in last session are loaded from disk cache on start,
+ * see {@link #warmUp()}.
+ */
 public class ImageLoader {
     @SuppressWarnings("unused")
     private static final String TAG = ImageLoader.class.getSimpleName();
@@ -35,35 +59,214 @@ public class ImageLoader {
     public static final int STATE_FROM_DISK = 2;
     public static final int STATE_FROM_NETWORK = 3;
 
+    public static final int PRIORITY_DEFAULT = 0;
+    /** Warm up is after requests of shown views, before prefetch **/
+    public static final int PRIORITY_WARM_UP = 1000;
+    /** Prefetch is always after requests of shown views **/
+    public static final int PRIORITY_PREFETCH = 10000;
+
+    private static final int DISK_THREAD_NUM = 2;
+    private static final long KEEP_ALIVE = 60 * 1000;
+    /** Max waiting tasks in one stage **/
+    private static final int MAX_QUEUE_SIZE = 64;
+    /** The window to count prefetch bytes for bandwidth budget **/
+    private static final long PREFETCH_BUDGET_WINDOW = 1000;
+
     private static ImageLoader sInstance;
 
-    class LoadTask {
+    /**
+     * Disk stage task for one image in one size
+     */
+    class LoadTask implements Runnable, Comparable<LoadTask> {
         public String url;
         public String key;
-        public OnGetImageListener listener;
+        public ImageCache.TargetSize targetSize;
+        /** Key in memory cache, it contains size bucket **/
+        public String memoryKey;
+        public final List<OnGetImageListener> listeners = new ArrayList<OnGetImageListener>();
+        /** Smaller is sooner **/
+        public int priority;
+        public long seq;
         public Bitmap bitmap;
         public int state;
+        /** Only warm caches, no listener is needed **/
+        public boolean prefetch;
+        /** Load from disk cache only, url is null till a request joins **/
+        public boolean warmUp;
+
+        public LoadTask(String url, String key, int targetWidth, int targetHeight) {
+            this.url = url;
+            this.key = key;
+            this.targetSize = new ImageCache.TargetSize(targetWidth, targetHeight);
+            this.memoryKey = ImageCache.getSizedKey(key, targetSize);
+        }
+
+        @Override
+        public int compareTo(@NonNull LoadTask another) {
+            if (priority != another.priority)
+                return priority < another.priority ? -1 : 1;
+            // Newer first
+            return seq > another.seq ? -1 : (seq == another.seq ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            // Retain bitmap till callback, or it might be reused by pool
+            Bitmap bitmap = mImageCache.obtainFromMemory(memoryKey);
+            int state = STATE_FROM_MEMORY;
+            if (bitmap == null) {
+                // Disk cache keeps raw data, it is the same for all sizes
+                bitmap = mImageCache.getFromDisk(key, targetSize);
+                state = STATE_FROM_DISK;
+                if (bitmap != null) {
+                    mBitmapPool.retain(bitmap);
+                    mImageCache.putToMemory(memoryKey, bitmap);
+                    if (warmUp) {
+                        synchronized (mLock) {
+                            mWarmUpLoadCount++;
+                        }
+                    }
+                }
+            }
+
+            if (bitmap != null) {
+                this.bitmap = bitmap;
+                this.state = state;
+                AppHandler.getInstance().post(new LoadImageCallback(this));
+            } else {
+                synchronized (mLock) {
+                    if (url == null) {
+                        // Warm up and no request joins, nothing to download
+                        mTaskMap.remove(memoryKey);
+                    } else if (listeners.isEmpty() && !prefetch) {
+                        // All cancelled while reading disk
+                        mTaskMap.remove(memoryKey);
+                        mCancelCount++;
+                    } else {
+                        mImageDownloader.addLocked(this);
+                    }
+                }
+            }
+        }
+    }
 
-        public LoadTask(String url, String key, OnGetImageListener listener) {
+    /**
+     * Network stage task, load tasks for the same key share it
+     */
+    class DownloadTask implements Runnable, Comparable<DownloadTask> {
+        public final String url;
+        public final String key;
+        public final List<LoadTask> loadTasks = new ArrayList<LoadTask>();
+
+        public DownloadTask(String url, String key) {
             this.url = url;
             this.key = key;
-            this.listener = listener;
+        }
+
+        private LoadTask first() {
+            LoadTask first = loadTasks.get(0);
+            for (LoadTask task : loadTasks)
+                if (task.compareTo(first) < 0)
+                    first = task;
+            return first;
+        }
+
+        @Override
+        public int compareTo(@NonNull DownloadTask another) {
+            return first().compareTo(another.first());
+        }
+
+        private boolean isPrefetch() {
+            for (LoadTask task : loadTasks)
+                if (!task.prefetch)
+                    return false;
+            return true;
+        }
+
+        @Override
+        public void run() {
+            boolean prefetch;
+            synchronized (mLock) {
+                prefetch = isPrefetch();
+                if (prefetch) {
+                    if (!mImageDownloader.tryStartPrefetchLocked()) {
+                        // Out of budget, drop it
+                        mImageDownloader.mDownloadMap.remove(key);
+                        for (LoadTask task : loadTasks)
+                            mTaskMap.remove(task.memoryKey);
+                        mPrefetchDropCount++;
+                        return;
+                    }
+                }
+            }
+
+            // TODO use proxy to get image
+            FastByteArrayOutputStream data = new HttpHelper(mContext).getImageData(url);
+
+            List<LoadTask> loadTasks;
+            synchronized (mLock) {
+                // No more load task can join it
+                mImageDownloader.mDownloadMap.remove(key);
+                loadTasks = this.loadTasks;
+                if (prefetch)
+                    mImageDownloader.finishPrefetchLocked(data == null ? 0 : data.size());
+            }
+
+            boolean putToDisk = true;
+            for (LoadTask loadTask : loadTasks) {
+                // Decode once for each size, save raw data to disk cache once
+                loadTask.bitmap = data == null ? null :
+                        mImageCache.putRaw(loadTask.memoryKey,
+                                putToDisk ? loadTask.key : null,
+                                data.getBuffer(), 0, data.size(), loadTask.targetSize);
+                if (loadTask.bitmap != null) {
+                    putToDisk = false;
+                    mBitmapPool.retain(loadTask.bitmap);
+                    loadTask.state = STATE_FROM_NETWORK;
+                } else {
+                    loadTask.state = STATE_NONE;
+                }
+
+                AppHandler.getInstance().post(new LoadImageCallback(loadTask));
+            }
         }
     }
 
     private final Context mContext;
-    private final Stack<LoadTask> mLoadTasks;
-    private final AnyCache<Bitmap> mImageCache;
+    private final ImageCache mImageCache;
+    private final BitmapPool mBitmapPool;
     private final ImageDownloader mImageDownloader;
+    private final ThreadPoolExecutor mDiskExecutor;
 
-    private ImageLoader(Context context) {
-        mLoadTasks = new Stack<LoadTask>();
-        mImageDownloader = new ImageDownloader();
+    /** Lock of all maps and queues **/
+    private final Object mLock = new Object();
+    /** All load tasks not called back yet, memory key to task **/
+    private final Map<String, LoadTask> mTaskMap = new HashMap<String, LoadTask>();
+    private final Map<OnGetImageListener, LoadTask> mListenerMap =
+            new HashMap<OnGetImageListener, LoadTask>();
+    private long mSeq;
 
+    private long mRequestCount;
+    private long mMemoryHitCount;
+    private long mDedupHitCount;
+    private long mCancelCount;
+    private long mRejectCount;
+    private long mPrefetchCount;
+    /** Requests which join a prefetch task **/
+    private long mPrefetchHitCount;
+    private long mPrefetchDropCount;
+    private boolean mWarmUpStarted;
+    private long mWarmUpCount;
+    /** Warm up tasks which get image from disk cache **/
+    private long mWarmUpLoadCount;
+
+    private ImageLoader(Context context) {
         mContext = context;
         mImageCache = ImageCache.getImageCache(mContext);
+        mBitmapPool = mImageCache.getBitmapPool();
 
-        new BgThread(new LoadFromCacheTask()).start();
+        mDiskExecutor = createExecutor(DISK_THREAD_NUM, "Disk");
+        mImageDownloader = new ImageDownloader();
     }
 
     public final static ImageLoader getInstance(final Context context) {
@@ -73,10 +276,330 @@ public class ImageLoader {
         return sInstance;
     }
 
+    /**
+     * Core threads are started now and kept alive, so a scroll burst
+     * does not create and destroy threads
+     */
+    private static ThreadPoolExecutor createExecutor(int threadNum, final String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threadNum, threadNum,
+                KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(@NonNull Runnable r) {
+                        return new BgThread(r, "ImageLoader-" + name + "-"
+                                + mCount.getAndIncrement());
+                    }
+                });
+        executor.prestartAllCoreThreads();
+        return executor;
+    }
+
+    /**
+     * Load image in full size
+     */
     public void add(String url, String key, OnGetImageListener listener) {
-        synchronized (mLoadTasks) {
-            mLoadTasks.push(new LoadTask(url, key, listener));
-            mLoadTasks.notify();
+        add(url, key, 0, 0, PRIORITY_DEFAULT, listener);
+    }
+
+    /**
+     * Load image sampled down to target size
+     */
+    public void add(String url, String key, int targetWidth, int targetHeight,
+            OnGetImageListener listener) {
+        add(url, key, targetWidth, targetHeight, PRIORITY_DEFAULT, listener);
+    }
+
+    /**
+     * Load image sampled down to target size, the key in listener is
+     * still the key here. If there is a task for the same image in the same
+     * size, the listener just joins it.
+     *
+     * @param targetWidth the width of view, 0 for full size
+     * @param targetHeight the height of view, 0 for full size
+     * @param priority smaller is sooner, like the distance to first visible item
+     */
+    public void add(String url, String key, int targetWidth, int targetHeight,
+            int priority, OnGetImageListener listener) {
+        synchronized (mLock) {
+            mRequestCount++;
+            // One listener for one task
+            removeListenerLocked(listener);
+
+            String memoryKey = ImageCache.getSizedKey(key, targetWidth, targetHeight);
+            LoadTask task = mTaskMap.get(memoryKey);
+            if (task != null) {
+                mDedupHitCount++;
+                if (task.prefetch) {
+                    task.prefetch = false;
+                    mPrefetchHitCount++;
+                }
+                if (task.url == null)
+                    task.url = url;
+                task.listeners.add(listener);
+                mListenerMap.put(listener, task);
+                if (priority < task.priority) {
+                    // Reorder
+                    boolean queued = mDiskExecutor.remove(task);
+                    task.priority = priority;
+                    if (queued)
+                        mDiskExecutor.execute(task);
+                    else
+                        mImageDownloader.reorderLocked(task);
+                }
+                return;
+            }
+
+            task = new LoadTask(url, key, targetWidth, targetHeight);
+            task.priority = priority;
+            task.seq = mSeq++;
+            task.listeners.add(listener);
+            mTaskMap.put(memoryKey, task);
+            mListenerMap.put(listener, task);
+
+            // Never queue memory cache hit behind disk reads
+            Bitmap bitmap = mImageCache.obtainFromMemory(memoryKey);
+            if (bitmap != null) {
+                mMemoryHitCount++;
+                task.bitmap = bitmap;
+                task.state = STATE_FROM_MEMORY;
+                AppHandler.getInstance().post(new LoadImageCallback(task));
+            } else {
+                mDiskExecutor.execute(task);
+                trimQueueLocked(mDiskExecutor);
+            }
+        }
+    }
+
+    /**
+     * Load image to memory cache and disk cache before it is shown.
+     * Image from network is only downloaded when it is in bandwidth
+     * budget and not too many prefetch is running, otherwise it is dropped.
+     *
+     * @param distance the distance to shown items, smaller is sooner
+     */
+    public void prefetch(String url, String key, int targetWidth, int targetHeight,
+            int distance) {
+        synchronized (mLock) {
+            String memoryKey = ImageCache.getSizedKey(key, targetWidth, targetHeight);
+            if (mTaskMap.containsKey(memoryKey) || mImageCache.getFromMemory(memoryKey) != null)
+                return;
+
+            LoadTask task = new LoadTask(url, key, targetWidth, targetHeight);
+            task.priority = PRIORITY_PREFETCH + distance;
+            task.seq = mSeq++;
+            task.prefetch = true;
+            mTaskMap.put(memoryKey, task);
+            mPrefetchCount++;
+            mDiskExecutor.execute(task);
+            trimQueueLocked(mDiskExecutor);
+        }
+    }
+
+    /**
+     * Load images in memory cache of last session from disk cache,
+     * the hottest one first. It only works once, call it before
+     * first images are shown. Manifest is read in background.
+     *
+     * @see ImageCache#saveManifest()
+     */
+    public void warmUp() {
+        synchronized (mLock) {
+            if (mWarmUpStarted)
+                return;
+            mWarmUpStarted = true;
+        }
+
+        new BgThread("ImageLoader-WarmUp") {
+            @Override
+            public void run() {
+                List<String> memoryKeys = mImageCache.loadManifest();
+                synchronized (mLock) {
+                    int rank = 0;
+                    for (String memoryKey : memoryKeys) {
+                        if (mTaskMap.containsKey(memoryKey)
+                                || mImageCache.getFromMemory(memoryKey) != null)
+                            continue;
+
+                        ImageCache.TargetSize targetSize = ImageCache.getTargetSize(memoryKey);
+                        LoadTask task = new LoadTask(null,
+                                ImageCache.getKeyFromSizedKey(memoryKey),
+                                targetSize == null ? 0 : targetSize.width,
+                                targetSize == null ? 0 : targetSize.height);
+                        task.priority = PRIORITY_WARM_UP + rank++;
+                        task.seq = mSeq++;
+                        task.prefetch = true;
+                        task.warmUp = true;
+                        mTaskMap.put(task.memoryKey, task);
+                        mWarmUpCount++;
+                        // Disk threads decode them in parallel
+                        mDiskExecutor.execute(task);
+                    }
+                    trimQueueLocked(mDiskExecutor);
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * Bytes in budget of prefetch in one second, 0 for no prefetch
+     */
+    public static int getPrefetchBudget() {
+        return Config.getThumbPrefetchBudget() * 1024;
+    }
+
+    /**
+     * The listener will not be called. If no listener is waiting for
+     * the task, it is dropped if it is not running.
+     */
+    public void cancel(OnGetImageListener listener) {
+        synchronized (mLock) {
+            removeListenerLocked(listener);
+        }
+    }
+
+    private void removeListenerLocked(OnGetImageListener listener) {
+        LoadTask task = mListenerMap.remove(listener);
+        if (task == null)
+            return;
+        task.listeners.remove(listener);
+        if (!task.listeners.isEmpty() || task.prefetch)
+            return;
+
+        if (mDiskExecutor.remove(task) || mImageDownloader.removeLocked(task)) {
+            mTaskMap.remove(task.memoryKey);
+            mCancelCount++;
+        }
+    }
+
+    /**
+     * Backpressure, fail the last waiting tasks if too many
+     */
+    private void trimQueueLocked(ThreadPoolExecutor executor) {
+        while (executor.getQueue().size() > MAX_QUEUE_SIZE) {
+            Runnable last = null;
+            for (Runnable r : executor.getQueue())
+                if (last == null || compare(r, last) > 0)
+                    last = r;
+            if (last == null || !executor.remove(last))
+                break;
+
+            List<LoadTask> loadTasks;
+            if (last instanceof DownloadTask) {
+                mImageDownloader.mDownloadMap.remove(((DownloadTask) last).key);
+                loadTasks = ((DownloadTask) last).loadTasks;
+            } else {
+                loadTasks = new ArrayList<LoadTask>(1);
+                loadTasks.add((LoadTask) last);
+            }
+            for (LoadTask loadTask : loadTasks) {
+                mRejectCount++;
+                loadTask.bitmap = null;
+                loadTask.state = STATE_NONE;
+                AppHandler.getInstance().post(new LoadImageCallback(loadTask));
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compare(Runnable lhs, Runnable rhs) {
+        return ((Comparable<Runnable>) lhs).compareTo(rhs);
+    }
+
+    public long getPrefetchCount() {
+        synchronized (mLock) {
+            return mPrefetchCount;
+        }
+    }
+
+    /**
+     * Requests which get image from a prefetch task
+     */
+    public long getPrefetchHitCount() {
+        synchronized (mLock) {
+            return mPrefetchHitCount;
+        }
+    }
+
+    /**
+     * Prefetch downloads dropped for bandwidth budget
+     */
+    public long getPrefetchDropCount() {
+        synchronized (mLock) {
+            return mPrefetchDropCount;
+        }
+    }
+
+    public long getPrefetchBytes() {
+        synchronized (mLock) {
+            return mImageDownloader.mPrefetchBytes;
+        }
+    }
+
+    /**
+     * Tasks waiting in disk and network stage
+     */
+    public int getQueueDepth() {
+        return mDiskExecutor.getQueue().size() + mImageDownloader.getQueueDepth();
+    }
+
+    public long getRequestCount() {
+        synchronized (mLock) {
+            return mRequestCount;
+        }
+    }
+
+    /**
+     * Requests called back at once from memory cache
+     */
+    public long getMemoryHitCount() {
+        synchronized (mLock) {
+            return mMemoryHitCount;
+        }
+    }
+
+    /**
+     * Requests which join a task of the same image,
+     * or a download of the same key
+     */
+    public long getDedupHitCount() {
+        synchronized (mLock) {
+            return mDedupHitCount;
+        }
+    }
+
+    /**
+     * Tasks dropped before running
+     */
+    public long getCancelCount() {
+        synchronized (mLock) {
+            return mCancelCount;
+        }
+    }
+
+    /**
+     * Tasks failed because of too many waiting tasks
+     */
+    public long getRejectCount() {
+        synchronized (mLock) {
+            return mRejectCount;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return "ImageLoader request = " + mRequestCount + ", memory hit = " + mMemoryHitCount
+                    + ", dedup = " + mDedupHitCount + ", cancel = " + mCancelCount
+                    + ", reject = " + mRejectCount + ", prefetch = " + mPrefetchCount
+                    + ", prefetch hit = " + mPrefetchHitCount
+                    + ", prefetch drop = " + mPrefetchDropCount
+                    + ", prefetch bytes = " + mImageDownloader.mPrefetchBytes
+                    + ", warm up = " + mWarmUpLoadCount + "/" + mWarmUpCount
+                    + ", queue = " + getQueueDepth()
+                    + ", network threads = " + mImageDownloader.getThreadNum();
         }
     }
 
@@ -90,90 +613,149 @@ public class ImageLoader {
 
         @Override
         public void run() {
-            mLoadTask.listener.onGetImage(mLoadTask.key, mLoadTask.bitmap, mLoadTask.state);
+            // Listeners might join or leave till now
+            List<OnGetImageListener> listeners;
+            synchronized (mLock) {
+                if (mTaskMap.get(mLoadTask.memoryKey) == mLoadTask)
+                    mTaskMap.remove(mLoadTask.memoryKey);
+                listeners = new ArrayList<OnGetImageListener>(mLoadTask.listeners);
+                for (OnGetImageListener l : listeners)
+                    mListenerMap.remove(l);
+                mLoadTask.listeners.clear();
+            }
+
+            for (OnGetImageListener l : listeners)
+                l.onGetImage(mLoadTask.key, mLoadTask.bitmap, mLoadTask.state);
+            // Listener has retained it if it is shown
+            mBitmapPool.release(mLoadTask.bitmap);
         }
     }
 
-    private class LoadFromCacheTask implements Runnable {
-        @Override
-        public void run() {
-            LoadTask loadTask;
-            while (true) {
-                synchronized (mLoadTasks) {
-                    if (mLoadTasks.isEmpty()) {
-                        try {
-                            mLoadTasks.wait();
-                        } catch (InterruptedException e) {}
-                        continue;
-                    }
-                    loadTask = mLoadTasks.pop();
-                }
+    private class ImageDownloader {
+        private final ThreadPoolExecutor mNetworkExecutor;
+        /** Waiting and running downloads, key to task **/
+        private final Map<String, DownloadTask> mDownloadMap =
+                new HashMap<String, DownloadTask>();
 
-                int[] state = new int[1];
-                String key = loadTask.key;
-                loadTask.bitmap = mImageCache.get(key);
-                loadTask.state = state[0];
+        private int mPrefetchRunning;
+        private long mPrefetchBytes;
+        private long mBudgetWindowStart;
+        private long mBudgetWindowBytes;
 
-                if (loadTask.bitmap != null)
-                    AppHandler.getInstance().post(new LoadImageCallback(loadTask));
-                else
-                    mImageDownloader.add(loadTask);
+        public ImageDownloader() {
+            mNetworkExecutor = createExecutor(Config.getThumbThread(), "Network");
+        }
+
+        public void addLocked(LoadTask loadTask) {
+            updateThreadNumLocked();
+
+            DownloadTask task = mDownloadMap.get(loadTask.key);
+            if (task != null) {
+                // The same image in other size
+                mDedupHitCount++;
+                boolean queued = mNetworkExecutor.remove(task);
+                task.loadTasks.add(loadTask);
+                if (queued)
+                    mNetworkExecutor.execute(task);
+                return;
             }
+
+            task = new DownloadTask(loadTask.url, loadTask.key);
+            task.loadTasks.add(loadTask);
+            mDownloadMap.put(task.key, task);
+            mNetworkExecutor.execute(task);
+            trimQueueLocked(mNetworkExecutor);
         }
-    }
 
-    private class ImageDownloader {
-        private static final int MAX_DOWNLOAD_THREADS = 5;
-        private final Stack<LoadTask> mDownloadTasks;
-        private int mWorkingThreadNum = 0;
+        /**
+         * Remove load task if the download is not running
+         *
+         * @return true if removed
+         */
+        public boolean removeLocked(LoadTask loadTask) {
+            DownloadTask task = mDownloadMap.get(loadTask.key);
+            if (task == null || !task.loadTasks.contains(loadTask)
+                    || !mNetworkExecutor.remove(task))
+                return false;
 
-        public ImageDownloader() {
-            mDownloadTasks = new Stack<LoadTask>();
+            task.loadTasks.remove(loadTask);
+            if (task.loadTasks.isEmpty())
+                mDownloadMap.remove(task.key);
+            else
+                mNetworkExecutor.execute(task);
+            return true;
         }
 
-        public void add(LoadTask loadTask) {
-            synchronized (mDownloadTasks) {
-                mDownloadTasks.push(loadTask);
-                if (mWorkingThreadNum < MAX_DOWNLOAD_THREADS) {
-                    new BgThread(new DownloadImageTask()).start();
-                    mWorkingThreadNum++;
-                }
-            }
+        public void reorderLocked(LoadTask loadTask) {
+            DownloadTask task = mDownloadMap.get(loadTask.key);
+            if (task != null && mNetworkExecutor.remove(task))
+                mNetworkExecutor.execute(task);
         }
 
-        private class DownloadImageTask implements Runnable {
-            @Override
-            public void run() {
-                LoadTask loadTask;
-                HttpHelper httpHelper = new HttpHelper(mContext);
-                while (true) {
-                    synchronized (mDownloadTasks) {
-                        if (mDownloadTasks.isEmpty()) {
-                            loadTask = null;
-                            mWorkingThreadNum--;
-                            break;
-                        }
-                        loadTask = mDownloadTasks.pop();
-                    }
+        /**
+         * Prefetch can only take half of threads, and bytes downloaded in
+         * current window must be in budget
+         *
+         * @return true if prefetch can start
+         */
+        public boolean tryStartPrefetchLocked() {
+            int budget = getPrefetchBudget();
+            if (budget <= 0)
+                return false;
+            if (mPrefetchRunning >= Math.max(1, mNetworkExecutor.getCorePoolSize() / 2))
+                return false;
 
-                    // TODO use proxy to get image
-                    loadTask.bitmap = httpHelper.getImage(loadTask.url);
-                    if (loadTask.bitmap != null) {
-                        mImageCache.put(loadTask.key, loadTask.bitmap);
-                        loadTask.state = STATE_FROM_NETWORK;
-                    } else {
-                        loadTask.state = STATE_NONE;
-                    }
+            long now = SystemClock.uptimeMillis();
+            if (now - mBudgetWindowStart >= PREFETCH_BUDGET_WINDOW) {
+                mBudgetWindowStart = now;
+                mBudgetWindowBytes = 0;
+            }
+            if (mBudgetWindowBytes >= budget)
+                return false;
 
-                    AppHandler.getInstance().post(new LoadImageCallback(loadTask));
-                }
+            mPrefetchRunning++;
+            return true;
+        }
+
+        public void finishPrefetchLocked(int bytes) {
+            mPrefetchRunning--;
+            mPrefetchBytes += bytes;
+            mBudgetWindowBytes += bytes;
+        }
+
+        /**
+         * Thread number might be changed in settings
+         */
+        private void updateThreadNumLocked() {
+            int threadNum = Config.getThumbThread();
+            int oldThreadNum = mNetworkExecutor.getCorePoolSize();
+            if (threadNum == oldThreadNum)
+                return;
+            // Core size can't be bigger than max size
+            if (threadNum > oldThreadNum) {
+                mNetworkExecutor.setMaximumPoolSize(threadNum);
+                mNetworkExecutor.setCorePoolSize(threadNum);
+            } else {
+                mNetworkExecutor.setCorePoolSize(threadNum);
+                mNetworkExecutor.setMaximumPoolSize(threadNum);
             }
+            mNetworkExecutor.prestartAllCoreThreads();
+        }
+
+        public int getThreadNum() {
+            return mNetworkExecutor.getCorePoolSize();
+        }
+
+        public int getQueueDepth() {
+            return mNetworkExecutor.getQueue().size();
         }
     }
 
     public interface OnGetImageListener {
         /**
-         * bmp is null for fail
+         * bmp is null for fail. bmp might be put into bitmap pool and
+         * reused after it returns, so retain it in bitmap pool to keep it,
+         * and release it when it is not used.
          * @param key
          * @param bmp
          */
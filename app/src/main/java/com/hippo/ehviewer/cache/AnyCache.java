@@ -24,18 +24,40 @@ import com.hippo.ehviewer.util.Log;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public abstract class AnyCache<V> {
 
     private static final String TAG = AnyCache.class.getSimpleName();
 
     private LruCache<String, V> mMemoryCache;
+
+    /**
+     * Second tier of memory cache, values evicted from LruCache are
+     * referenced weakly here, so they can be got back before GC
+     */
+    private final Map<String, EvictedRef<V>> mEvictedMap = new HashMap<String, EvictedRef<V>>();
+    private final ReferenceQueue<V> mEvictedQueue = new ReferenceQueue<V>();
+
+    private final AtomicLong mMemoryRequestCount = new AtomicLong();
+    private final AtomicLong mMemoryHitCount = new AtomicLong();
+    private final AtomicLong mEvictedHitCount = new AtomicLong();
     private @Nullable DiskCache<V> mDiskCache;
 
     private final boolean mHasMemoryCache;
@@ -47,7 +69,15 @@ public abstract class AnyCache<V> {
     public boolean mPauseDiskAccess = false;
     private final Object mPauseLock = new Object();
 
-    private final Object mDiskCacheLock = new Object();
+    /**
+     * DiskLruCache is thread-safe, and it gives only one editor for a key.
+     * Read lock is enough for get and put, they work in parallel,
+     * write lock is only for replacing mDiskCache.
+     */
+    private final ReentrantReadWriteLock mDiskCacheLock = new ReentrantReadWriteLock();
+    private final AtomicLong mDiskLockCount = new AtomicLong();
+    private final AtomicLong mDiskLockContendedCount = new AtomicLong();
+    private final AtomicLong mDiskLockWaitTime = new AtomicLong();
 
     public AnyCache(AnyCacheParams params) {
         params.isValid();
@@ -64,21 +94,59 @@ public abstract class AnyCache<V> {
     }
 
 
+    private static class EvictedRef<E> extends WeakReference<E> {
+        private final String mKey;
+
+        private EvictedRef(String key, E value, ReferenceQueue<? super E> queue) {
+            super(value, queue);
+            mKey = key;
+        }
+    }
+
     private void initMemoryCache(int maxSize) {
         mMemoryCache = new MemoryCahce<>(maxSize, this);
     }
 
     private void initDiskCache(File cacheDir, int maxSize) {
         // Set up disk cache
-        synchronized (mDiskCacheLock) {
-            try {
-                mDiskCache = new DiskCache<>(cacheDir, maxSize, this);
-            } catch (IOException e) {
-                Log.e(TAG, "Can't create disk cache", e);
-            }
+        mDiskCacheLock.writeLock().lock();
+        try {
+            mDiskCache = new DiskCache<>(cacheDir, maxSize, this);
+        } catch (IOException e) {
+            Log.e(TAG, "Can't create disk cache", e);
+        } finally {
+            mDiskCacheLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get read lock of disk cache, time waited is counted
+     */
+    private void lockDiskCache() {
+        mDiskLockCount.incrementAndGet();
+        Lock lock = mDiskCacheLock.readLock();
+        if (!lock.tryLock()) {
+            long start = System.nanoTime();
+            lock.lock();
+            mDiskLockContendedCount.incrementAndGet();
+            mDiskLockWaitTime.addAndGet(System.nanoTime() - start);
         }
     }
 
+    private void unlockDiskCache() {
+        mDiskCacheLock.readLock().unlock();
+    }
+
+    /**
+     * @return disk cache lock count, contended count and
+     *         total wait time in ms
+     */
+    public String getDiskLockStats() {
+        return "lock = " + mDiskLockCount.get() + ", contended = "
+                + mDiskLockContendedCount.get() + ", wait = "
+                + mDiskLockWaitTime.get() / 1000000 + "ms";
+    }
+
 
     protected abstract int sizeOf(String key, V value);
 
@@ -86,6 +154,76 @@ public abstract class AnyCache<V> {
 
     protected abstract boolean write(OutputStream os, V value);
 
+    /**
+     * Get value from raw data, the same data as read(InputStream)
+     * gets from disk cache.
+     */
+    protected V read(byte[] data, int offset, int length) {
+        return read(new ByteArrayInputStream(data, offset, length));
+    }
+
+    /**
+     * Read value with decode params, like target size of image.
+     * The params is given by getFromDisk(String, Object) or
+     * putRaw(String, String, byte[], int, int, Object)
+     */
+    protected V read(InputStream is, Object decodeParams) {
+        return read(is);
+    }
+
+    protected V read(byte[] data, int offset, int length, Object decodeParams) {
+        return read(data, offset, length);
+    }
+
+    /**
+     * Called when a value is removed from memory cache, evicted or
+     * replaced or removed by evictAll(). It is called without lock
+     * of memory cache.
+     */
+    protected void onMemoryEntryRemoved(String key, V oldValue, V newValue, boolean evicted) {
+    }
+
+    /**
+     * Called when a value is got from second tier of memory cache.
+     * It is put back to LruCache if it is returned.
+     *
+     * @return the value, null if it is not valid any more
+     */
+    protected V onEvictedEntryHit(String key, V value) {
+        return value;
+    }
+
+    private void putToEvicted(String key, V value) {
+        synchronized (mEvictedMap) {
+            purgeEvictedLocked();
+            mEvictedMap.put(key, new EvictedRef<V>(key, value, mEvictedQueue));
+        }
+    }
+
+    /**
+     * Remove entries whose value is collected by GC
+     */
+    @SuppressWarnings("unchecked")
+    private void purgeEvictedLocked() {
+        EvictedRef<V> ref;
+        while ((ref = (EvictedRef<V>) mEvictedQueue.poll()) != null) {
+            if (mEvictedMap.get(ref.mKey) == ref)
+                mEvictedMap.remove(ref.mKey);
+        }
+    }
+
+    private V getFromEvicted(String key) {
+        EvictedRef<V> ref;
+        synchronized (mEvictedMap) {
+            purgeEvictedLocked();
+            ref = mEvictedMap.remove(key);
+        }
+        V value = ref == null ? null : ref.get();
+        if (value != null)
+            value = onEvictedEntryHit(key, value);
+        return value;
+    }
+
     /**
      * Check if have memory cache
      *
@@ -112,12 +250,61 @@ public abstract class AnyCache<V> {
      */
     public V getFromMemory(String key) {
         if (mHasMemoryCache) {
-            return mMemoryCache.get(key);
+            mMemoryRequestCount.incrementAndGet();
+            V value = mMemoryCache.get(key);
+            if (value != null) {
+                mMemoryHitCount.incrementAndGet();
+                return value;
+            }
+
+            value = getFromEvicted(key);
+            if (value != null) {
+                mEvictedHitCount.incrementAndGet();
+                mMemoryCache.put(key, value);
+            }
+            return value;
         } else {
             return null;
         }
     }
 
+    /**
+     * Get keys of the most recently used values in memory cache
+     *
+     * @param max the max number of keys
+     * @return keys, the most recently used one first
+     */
+    public List<String> getHotMemoryKeys(int max) {
+        List<String> keys = new ArrayList<String>();
+        if (mHasMemoryCache) {
+            // Snapshot is in access order, the least recently used one first
+            keys.addAll(mMemoryCache.snapshot().keySet());
+            Collections.reverse(keys);
+            if (keys.size() > max)
+                keys = new ArrayList<String>(keys.subList(0, max));
+        }
+        return keys;
+    }
+
+    /**
+     * @return requests, hit rate of LruCache and hit rate of
+     *         second tier of memory cache
+     */
+    public String getMemoryStats() {
+        long request = mMemoryRequestCount.get();
+        long hit = mMemoryHitCount.get();
+        long evictedHit = mEvictedHitCount.get();
+        int evictedSize;
+        synchronized (mEvictedMap) {
+            purgeEvictedLocked();
+            evictedSize = mEvictedMap.size();
+        }
+        return "request = " + request
+                + ", hit rate = " + (request == 0 ? 0 : hit * 100 / request) + "%"
+                + ", evicted hit rate = " + (request == 0 ? 0 : evictedHit * 100 / request) + "%"
+                + ", evicted = " + evictedSize;
+    }
+
     /**
      * Get value from memory cache
      *
@@ -125,18 +312,32 @@ public abstract class AnyCache<V> {
      * @return the value you get, null for miss or no memory cache or get error
      */
     public V getFromDisk(String key) {
+        return getFromDisk(key, null);
+    }
+
+    /**
+     * Get value from disk cache
+     *
+     * @param key the key to get value
+     * @param decodeParams passed to read(InputStream, Object)
+     * @return the value you get, null for miss or no disk cache or get error
+     */
+    public V getFromDisk(String key, Object decodeParams) {
         if (mHasDiskCache) {
             // Wait for pause
             waitUntilUnpaused();
 
             String diskKey = hashKeyForDisk(key);
 
-            synchronized (mDiskCacheLock) {
+            lockDiskCache();
+            try {
                 if (mDiskCache != null) {
-                    return mDiskCache.get(diskKey);
+                    return mDiskCache.get(diskKey, decodeParams);
                 } else {
                     return null;
                 }
+            } finally {
+                unlockDiskCache();
             }
         } else {
             return null;
@@ -199,19 +400,140 @@ public abstract class AnyCache<V> {
 
             String diskKey = hashKeyForDisk(key);
 
-            synchronized (mDiskCacheLock) {
+            lockDiskCache();
+            try {
                 if (mDiskCache != null) {
                     mDiskCache.put(diskKey, value);
                     return true;
                 } else {
                     return false;
                 }
+            } finally {
+                unlockDiskCache();
+            }
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Put raw data to disk cache as it is, no write(OutputStream, V)
+     *
+     * @param key the key
+     * @return false if no disk cache or get error
+     */
+    public boolean putRawToDisk(String key, byte[] data, int offset, int length) {
+        if (mHasDiskCache) {
+            // Wait for pause
+            waitUntilUnpaused();
+
+            String diskKey = hashKeyForDisk(key);
+
+            lockDiskCache();
+            try {
+                if (mDiskCache != null) {
+                    return mDiskCache.putRaw(diskKey, data, offset, length);
+                } else {
+                    return false;
+                }
+            } finally {
+                unlockDiskCache();
             }
         } else {
             return false;
         }
     }
 
+    /**
+     * Get value from raw data, put value to memory cache and
+     * raw data to disk cache. Data is decoded only once.
+     *
+     * @param key the key
+     * @return the value, null if read error
+     */
+    public V putRaw(String key, byte[] data, int offset, int length) {
+        return putRaw(key, key, data, offset, length, null);
+    }
+
+    /**
+     * Like putRaw(String, byte[], int, int), but the value decoded with
+     * decodeParams is put to memory cache in memoryKey, raw data is put
+     * to disk cache in diskKey. So values decoded in different ways from
+     * the same data can share one disk cache entry.
+     *
+     * @param diskKey null for not putting to disk cache
+     * @return the value, null if read error
+     */
+    public V putRaw(String memoryKey, String diskKey, byte[] data, int offset, int length,
+            Object decodeParams) {
+        V value = read(data, offset, length, decodeParams);
+        if (value != null) {
+            putToMemory(memoryKey, value);
+            if (diskKey != null)
+                putRawToDisk(diskKey, data, offset, length);
+        }
+        return value;
+    }
+
+    /**
+     * Keep the disk cache entry longer than others, it is evicted after
+     * all entries which are not protected and not read twice
+     *
+     * @return false if no disk cache or no such entry
+     */
+    public boolean protectOnDisk(String key) {
+        if (mHasDiskCache) {
+            String diskKey = hashKeyForDisk(key);
+
+            lockDiskCache();
+            try {
+                return mDiskCache != null && mDiskCache.protect(diskKey);
+            } finally {
+                unlockDiskCache();
+            }
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * @return bytes used by disk cache, -1 if no disk cache
+     */
+    public long getDiskCacheSize() {
+        lockDiskCache();
+        try {
+            return mDiskCache == null ? -1 : mDiskCache.size();
+        } finally {
+            unlockDiskCache();
+        }
+    }
+
+    /**
+     * Change max size of disk cache, entries are evicted in background
+     * if it is smaller than current size
+     */
+    public void setDiskCacheMaxSize(int maxSize) {
+        lockDiskCache();
+        try {
+            if (mDiskCache != null)
+                mDiskCache.setMaxSize(maxSize);
+        } finally {
+            unlockDiskCache();
+        }
+    }
+
+    /**
+     * @return size, hit ratio and evictions of disk cache
+     */
+    public String getDiskStats() {
+        lockDiskCache();
+        try {
+            return mDiskCache == null ? "none" : mDiskCache.toString();
+        } finally {
+            unlockDiskCache();
+        }
+    }
+
     /**
      * Put value to memory cache and disk cache
      *
@@ -260,6 +582,9 @@ public abstract class AnyCache<V> {
     public void clearMemory() {
         if (mHasMemoryCache) {
             mMemoryCache.evictAll();
+            synchronized (mEvictedMap) {
+                mEvictedMap.clear();
+            }
         }
     }
 
@@ -268,7 +593,8 @@ public abstract class AnyCache<V> {
      */
     public void clearDisk() {
         if (mHasDiskCache) {
-            synchronized (mDiskCacheLock) {
+            mDiskCacheLock.writeLock().lock();
+            try {
                 if (mDiskCache != null && !mDiskCache.isClosed()) {
                     try {
                         mDiskCache.delete();
@@ -280,13 +606,18 @@ public abstract class AnyCache<V> {
                     mDiskCache = null;
                     initDiskCache(cacheDir, maxSize);
                 }
+            } finally {
+                mDiskCacheLock.writeLock().unlock();
             }
         }
     }
 
     public void flush() {
+        if (mHasMemoryCache)
+            Log.d(TAG, "Memory cache " + getMemoryStats());
         if (mHasDiskCache) {
-            synchronized (mDiskCacheLock) {
+            lockDiskCache();
+            try {
                 if (mDiskCache != null) {
                     try {
                         mDiskCache.flush();
@@ -294,7 +625,11 @@ public abstract class AnyCache<V> {
                         Log.e(TAG, "AnyCache flush", e);
                     }
                 }
+            } finally {
+                unlockDiskCache();
             }
+            Log.d(TAG, "Disk cache " + getDiskLockStats());
+            Log.d(TAG, getDiskStats());
         }
     }
 
@@ -394,6 +729,15 @@ public abstract class AnyCache<V> {
         protected int sizeOf(String key, E value) {
             return mParent.sizeOf(key, value);
         }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, E oldValue, E newValue) {
+            if (oldValue != newValue) {
+                mParent.onMemoryEntryRemoved(key, oldValue, newValue, evicted);
+                if (evicted)
+                    mParent.putToEvicted(key, oldValue);
+            }
+        }
     }
 
 
@@ -435,7 +779,29 @@ public abstract class AnyCache<V> {
             mDiskLruCache.flush();
         }
 
-        public E get(String key) {
+        public long size() {
+            return mDiskLruCache.size();
+        }
+
+        public void setMaxSize(int maxSize) {
+            mMaxSize = maxSize;
+            mDiskLruCache.setMaxSize(maxSize);
+        }
+
+        public boolean protect(String key) {
+            try {
+                return mDiskLruCache.protect(key);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return mDiskLruCache.toString();
+        }
+
+        public E get(String key, Object decodeParams) {
             DiskLruCache.Snapshot snapshot = null;
             try {
                 snapshot = mDiskLruCache.get(key);
@@ -448,7 +814,7 @@ public abstract class AnyCache<V> {
                 if (in != null) {
                     final BufferedInputStream buffIn =
                             new BufferedInputStream(in, IO_BUFFER_SIZE);
-                    return mParent.read(buffIn);
+                    return mParent.read(buffIn, decodeParams);
                 } else {
                     // Can't get InputStream
                     return null;
@@ -461,6 +827,37 @@ public abstract class AnyCache<V> {
             }
         }
 
+        public boolean putRaw(String key, byte[] data, int offset, int length) {
+            DiskLruCache.Editor editor = null;
+            OutputStream os = null;
+            try {
+                editor = mDiskLruCache.edit(key);
+                if (editor == null) {
+                    // The editor is in progress
+                    return false;
+                }
+
+                os = editor.newOutputStream(0);
+                if (os != null) {
+                    os.write(data, offset, length);
+                    os.close();
+                    os = null;
+                    editor.commit();
+                    return true;
+                } else {
+                    // Can't get OutputStream
+                    editor.abort();
+                    return false;
+                }
+            } catch (IOException e) {
+                Util.closeQuietly(os);
+                if (editor != null) {
+                    editor.abortUnlessCommitted();
+                }
+                return false;
+            }
+        }
+
         public boolean put(String key, E value) {
             DiskLruCache.Editor editor = null;
             OutputStream os = null;
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2014 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.cache;
+
+import android.graphics.Bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Pool of bitmaps removed from memory cache, for BitmapFactory.Options.inBitmap.<br>
+ * Bitmaps are bucketed by width, height and config, so they can be reused
+ * on all API levels. A bitmap goes into pool only if it has been tracked by
+ * retain() and release(), and it is not in use, so pixels on screen are never
+ * overwritten. ImageLoader tracks every bitmap it gives, so anything keeping
+ * one after callback must retain() it. Untracked bitmaps are left to GC.<br>
+ * A bitmap removed from memory cache keeps its key here till it is got
+ * for reuse, so the second tier of memory cache can take it back by
+ * reclaim() while its pixels are not changed.
+ *
+ * @author Hippo
+ *
+ */
+public final class BitmapPool {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = BitmapPool.class.getSimpleName();
+
+    private final int mMaxSize;
+    private int mSize;
+
+    /** Bucket key to bitmaps, the first bucket is the eldest **/
+    private final LinkedHashMap<Long, LinkedList<Bitmap>> mBucketMap =
+            new LinkedHashMap<Long, LinkedList<Bitmap>>(16, 0.75f, true);
+    private final WeakHashMap<Bitmap, Ref> mRefMap = new WeakHashMap<Bitmap, Ref>();
+    /** Bitmap removed from memory cache to its key, pixels are still for the key **/
+    private final WeakHashMap<Bitmap, String> mContentKeyMap = new WeakHashMap<Bitmap, String>();
+
+    private long mRequestCount;
+    private long mHitCount;
+    private long mReusedBytes;
+    private long mPutCount;
+
+    private static class Ref {
+        private int mCount;
+        /** Removed from memory cache **/
+        private boolean mRemoved;
+    }
+
+    /**
+     * @param maxSize max bytes of bitmaps in pool
+     */
+    public BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    private static long getBucketKey(int width, int height, Bitmap.Config config) {
+        int configIndex = config == null ? 0 : config.ordinal() + 1;
+        return ((long) width << 32) | ((long) (height & 0xffffff) << 8) | configIndex;
+    }
+
+    /**
+     * The bitmap is shown or used, it can't be put into pool
+     */
+    public synchronized void retain(Bitmap bitmap) {
+        if (bitmap == null)
+            return;
+        Ref ref = mRefMap.get(bitmap);
+        if (ref == null) {
+            ref = new Ref();
+            mRefMap.put(bitmap, ref);
+        }
+        ref.mCount++;
+    }
+
+    /**
+     * The bitmap is not shown or used any more
+     */
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap == null)
+            return;
+        Ref ref = mRefMap.get(bitmap);
+        if (ref == null || ref.mCount == 0)
+            return;
+        ref.mCount--;
+        if (ref.mCount == 0 && ref.mRemoved) {
+            mRefMap.remove(bitmap);
+            put(bitmap);
+        }
+    }
+
+    /**
+     * The bitmap is removed from memory cache
+     */
+    public synchronized void onRemoved(String key, Bitmap bitmap) {
+        mContentKeyMap.put(bitmap, key);
+        Ref ref = mRefMap.get(bitmap);
+        if (ref == null)
+            // Not tracked, it might be used somewhere
+            return;
+        if (ref.mCount == 0) {
+            mRefMap.remove(bitmap);
+            put(bitmap);
+        } else {
+            ref.mRemoved = true;
+        }
+    }
+
+    private void put(Bitmap bitmap) {
+        if (!bitmap.isMutable() || bitmap.isRecycled())
+            return;
+        int size = bitmap.getByteCount();
+        if (size > mMaxSize / 2)
+            return;
+
+        long key = getBucketKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        LinkedList<Bitmap> bucket = mBucketMap.get(key);
+        if (bucket == null) {
+            bucket = new LinkedList<Bitmap>();
+            mBucketMap.put(key, bucket);
+        }
+        bucket.addLast(bitmap);
+        mSize += size;
+        mPutCount++;
+        trimToSize(mMaxSize);
+    }
+
+    private void trimToSize(int maxSize) {
+        Iterator<Map.Entry<Long, LinkedList<Bitmap>>> iter = mBucketMap.entrySet().iterator();
+        while (mSize > maxSize && iter.hasNext()) {
+            LinkedList<Bitmap> bucket = iter.next().getValue();
+            while (mSize > maxSize && !bucket.isEmpty())
+                mSize -= bucket.removeFirst().getByteCount();
+            if (bucket.isEmpty())
+                iter.remove();
+        }
+    }
+
+    /**
+     * Get a bitmap for inBitmap, it is removed from pool
+     *
+     * @return null if miss
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        mRequestCount++;
+        long key = getBucketKey(width, height, config);
+        LinkedList<Bitmap> bucket = mBucketMap.get(key);
+        if (bucket == null || bucket.isEmpty())
+            return null;
+
+        Bitmap bitmap = bucket.removeLast();
+        if (bucket.isEmpty())
+            mBucketMap.remove(key);
+        // Pixels will be changed
+        mContentKeyMap.remove(bitmap);
+        int size = bitmap.getByteCount();
+        mSize -= size;
+        mHitCount++;
+        mReusedBytes += size;
+        return bitmap;
+    }
+
+    /**
+     * Take back a bitmap removed from memory cache, it is not pooled any more
+     *
+     * @return false if the bitmap has been reused for other key
+     */
+    public synchronized boolean reclaim(String key, Bitmap bitmap) {
+        if (bitmap.isRecycled() || !key.equals(mContentKeyMap.remove(bitmap)))
+            return false;
+
+        Ref ref = mRefMap.get(bitmap);
+        if (ref != null) {
+            // Still in use
+            ref.mRemoved = false;
+            return true;
+        }
+
+        long bucketKey = getBucketKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        LinkedList<Bitmap> bucket = mBucketMap.get(bucketKey);
+        if (bucket != null) {
+            // Compare identity, not equals()
+            Iterator<Bitmap> iter = bucket.iterator();
+            while (iter.hasNext()) {
+                if (iter.next() == bitmap) {
+                    iter.remove();
+                    mSize -= bitmap.getByteCount();
+                    mPutCount--;
+                    break;
+                }
+            }
+            if (bucket.isEmpty())
+                mBucketMap.remove(bucketKey);
+        }
+        return true;
+    }
+
+    /**
+     * Give back a bitmap got from get() but not used
+     */
+    public synchronized void putBack(Bitmap bitmap) {
+        mHitCount--;
+        mReusedBytes -= bitmap.getByteCount();
+        mPutCount--;
+        put(bitmap);
+    }
+
+    public synchronized void clear() {
+        mBucketMap.clear();
+        mSize = 0;
+    }
+
+    public synchronized int getSize() {
+        return mSize;
+    }
+
+    public synchronized float getHitRate() {
+        return mRequestCount == 0 ? 0.0f : (float) mHitCount / mRequestCount;
+    }
+
+    public synchronized long getReusedBytes() {
+        return mReusedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool size = " + mSize + ", put = " + mPutCount + ", request = "
+                + mRequestCount + ", hit = " + mHitCount + ", reused bytes = " + mReusedBytes;
+    }
+}
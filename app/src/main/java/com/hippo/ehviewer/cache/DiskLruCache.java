@@ -33,10 +33,9 @@ import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.concurrent.Callable;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -98,6 +97,12 @@ public final class DiskLruCache implements Closeable {
   private static final String DIRTY = "DIRTY";
   private static final String REMOVE = "REMOVE";
   private static final String READ = "READ";
+  private static final float PROTECTED_RATIO = 0.8f;
+  private static final long HOUR_MILLIS = 60 * 60 * 1000;
+  /** Flush the journal when so many lines are pending **/
+  private static final int JOURNAL_FLUSH_OPS = 64;
+  /** Or when the oldest pending line is so old **/
+  private static final long JOURNAL_FLUSH_DELAY = 1000;
 
     /*
      * This cache uses a journal file named "journal". A typical journal file
@@ -130,13 +135,31 @@ public final class DiskLruCache implements Closeable {
      *   o CLEAN lines track a cache entry that has been successfully published
      *     and may be read. A publish line is followed by the lengths of each of
      *     its values.
-     *   o READ lines track accesses for LRU.
+     *   o READ lines track accesses for LRU. A READ line of a readable entry
+     *     also moves it to the protected segment, see below.
      *   o REMOVE lines track entries that have been deleted.
      *
      * The journal file is appended to as cache operations occur. The journal may
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * Eviction is segmented LRU. A new entry is probationary, it is moved to
+     * the protected segment when it is read again or protect() is called.
+     * Probationary entries are evicted first. If the protected segment is
+     * larger than PROTECTED_RATIO of max size, its least recently used entries
+     * are moved back to probationary segment. A protected entry is written
+     * as a CLEAN line followed by a READ line when rebuilding journal, so
+     * segments survive restart.
+     *
+     * Journal lines are group committed. They are flushed when
+     * JOURNAL_FLUSH_OPS lines are pending or JOURNAL_FLUSH_DELAY after the
+     * first pending line, whichever comes first. Lines that may lose data
+     * if dropped are still flushed at once: the DIRTY and CLEAN lines of an
+     * edit that replaces a readable entry. Any other lost line is harmless
+     * after a crash. A lost READ only changes LRU order, a lost REMOVE is
+     * seen as a missing file, and the files of a lost DIRTY or CLEAN of a
+     * new entry are swept as orphans in processJournal().
      */
 
   private final File directory;
@@ -147,11 +170,22 @@ public final class DiskLruCache implements Closeable {
   private long maxSize;
   private final int valueCount;
   private long size = 0;
+  /** Size of entries in protected segment **/
+  private long protectedSize = 0;
   private Writer journalWriter;
   private final LinkedHashMap<String, Entry> lruEntries =
       new LinkedHashMap<String, Entry>(0, 0.75f, true);
   private int redundantOpCount;
 
+  private long hitCount;
+  private long missCount;
+  private long evictionCount;
+  private long statsStartTime = System.currentTimeMillis();
+  private long journalOpCount;
+  private long journalFlushCount;
+  private int pendingJournalOps;
+  private boolean journalFlushScheduled;
+
   /**
    * To differentiate between old and current snapshots, each entry is given
    * a sequence number each time an edit is committed. A snapshot is stale if
@@ -159,9 +193,8 @@ public final class DiskLruCache implements Closeable {
    */
   private long nextSequenceNumber = 0;
 
-  /** This cache uses a single background thread to evict entries. */
-  final ThreadPoolExecutor executorService =
-      new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+  /** This cache uses a single background thread to evict entries and flush journal. */
+  final ScheduledThreadPoolExecutor executorService = new ScheduledThreadPoolExecutor(1);
   private final Callable<Void> cleanupCallable = new Callable<Void>() {
     public Void call() throws Exception {
       synchronized (DiskLruCache.this) {
@@ -177,6 +210,18 @@ public final class DiskLruCache implements Closeable {
       return null;
     }
   };
+  private final Callable<Void> journalFlushCallable = new Callable<Void>() {
+    public Void call() throws Exception {
+      synchronized (DiskLruCache.this) {
+        journalFlushScheduled = false;
+        if (journalWriter == null) {
+          return null; // Closed.
+        }
+        flushJournal();
+      }
+      return null;
+    }
+  };
 
   private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
     this.directory = directory;
@@ -186,6 +231,8 @@ public final class DiskLruCache implements Closeable {
     this.journalFileBackup = new File(directory, JOURNAL_FILE_BACKUP);
     this.valueCount = valueCount;
     this.maxSize = maxSize;
+    executorService.setKeepAliveTime(60L, TimeUnit.SECONDS);
+    executorService.allowCoreThreadTimeOut(true);
   }
 
   /**
@@ -316,7 +363,11 @@ public final class DiskLruCache implements Closeable {
     } else if (secondSpace == -1 && firstSpace == DIRTY.length() && line.startsWith(DIRTY)) {
       entry.currentEditor = new Editor(entry);
     } else if (secondSpace == -1 && firstSpace == READ.length() && line.startsWith(READ)) {
-      // This work was already done by calling lruEntries.get().
+      // Moving to the head of LRU was already done by calling lruEntries.get().
+      // Size is not counted yet, segments are fixed in processJournal().
+      if (entry.readable) {
+        entry.protectedSegment = true;
+      }
     } else {
       throw new IOException("unexpected journal line: " + line);
     }
@@ -334,6 +385,9 @@ public final class DiskLruCache implements Closeable {
         for (int t = 0; t < valueCount; t++) {
           size += entry.lengths[t];
         }
+        if (entry.protectedSegment) {
+          protectedSize += entry.getSize();
+        }
       } else {
         entry.currentEditor = null;
         for (int t = 0; t < valueCount; t++) {
@@ -343,6 +397,33 @@ public final class DiskLruCache implements Closeable {
         i.remove();
       }
     }
+    deleteOrphanFiles();
+    trimProtectedSegment();
+  }
+
+  /**
+   * Deletes files that no entry owns. They are left by an edit whose journal
+   * lines were not flushed before a crash.
+   */
+  private void deleteOrphanFiles() throws IOException {
+    String[] names = directory.list();
+    if (names == null) {
+      return;
+    }
+    for (String name : names) {
+      if (name.startsWith(JOURNAL_FILE)) {
+        continue;
+      }
+      int dot = name.indexOf('.');
+      String key = dot == -1 ? name : name.substring(0, dot);
+      // No entry is being edited now, so every dirty file is an orphan.
+      if (name.endsWith(".tmp") || !lruEntries.containsKey(key)) {
+        File file = new File(directory, name);
+        if (file.isFile()) {
+          deleteIfExists(file);
+        }
+      }
+    }
   }
 
   /**
@@ -372,6 +453,9 @@ public final class DiskLruCache implements Closeable {
           writer.write(DIRTY + ' ' + entry.key + '\n');
         } else {
           writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+          if (entry.protectedSegment) {
+            writer.write(READ + ' ' + entry.key + '\n');
+          }
         }
       }
     } finally {
@@ -386,6 +470,7 @@ public final class DiskLruCache implements Closeable {
 
     journalWriter = new BufferedWriter(
         new OutputStreamWriter(new FileOutputStream(journalFile, true), Util.US_ASCII));
+    pendingJournalOps = 0;
   }
 
   private static void deleteIfExists(File file) throws IOException {
@@ -412,11 +497,8 @@ public final class DiskLruCache implements Closeable {
     checkNotClosed();
     validateKey(key);
     Entry entry = lruEntries.get(key);
-    if (entry == null) {
-      return null;
-    }
-
-    if (!entry.readable) {
+    if (entry == null || !entry.readable) {
+      missCount++;
       return null;
     }
 
@@ -437,11 +519,14 @@ public final class DiskLruCache implements Closeable {
           break;
         }
       }
+      missCount++;
       return null;
     }
 
+    hitCount++;
+    moveToProtectedSegment(entry);
     redundantOpCount++;
-    journalWriter.append(READ + ' ' + key + '\n');
+    appendJournal(READ + ' ' + key + '\n');
     if (journalRebuildRequired()) {
       executorService.submit(cleanupCallable);
     }
@@ -449,6 +534,64 @@ public final class DiskLruCache implements Closeable {
     return new Snapshot(key, entry.sequenceNumber, ins, entry.lengths);
   }
 
+  /**
+   * Moves the entry named {@code key} to the protected segment, so it is
+   * evicted after all probationary entries. Use it for entries which
+   * should survive a long session.
+   *
+   * @return true if the entry exists and is readable.
+   */
+  public synchronized boolean protect(String key) throws IOException {
+    checkNotClosed();
+    validateKey(key);
+    Entry entry = lruEntries.get(key);
+    if (entry == null || !entry.readable) {
+      return false;
+    }
+
+    moveToProtectedSegment(entry);
+    redundantOpCount++;
+    appendJournal(READ + ' ' + key + '\n');
+    if (journalRebuildRequired()) {
+      executorService.submit(cleanupCallable);
+    }
+    return true;
+  }
+
+  private void moveToProtectedSegment(Entry entry) {
+    if (!entry.protectedSegment) {
+      entry.protectedSegment = true;
+      protectedSize += entry.getSize();
+      trimProtectedSegment();
+    }
+  }
+
+  /**
+   * Moves least recently used protected entries to probationary segment
+   * until protected segment is small enough.
+   */
+  private void trimProtectedSegment() {
+    long maxProtectedSize = (long) (maxSize * PROTECTED_RATIO);
+    if (protectedSize <= maxProtectedSize) {
+      return;
+    }
+    List<Entry> demoted = new ArrayList<Entry>();
+    for (Entry entry : lruEntries.values()) {
+      if (protectedSize <= maxProtectedSize) {
+        break;
+      }
+      if (entry.protectedSegment) {
+        entry.protectedSegment = false;
+        protectedSize -= entry.getSize();
+        demoted.add(entry);
+      }
+    }
+    // Give demoted entries another chance in probationary segment
+    for (Entry entry : demoted) {
+      lruEntries.get(entry.key);
+    }
+  }
+
   /**
    * Returns an editor for the entry named {@code key}, or null if another
    * edit is in progress.
@@ -475,9 +618,16 @@ public final class DiskLruCache implements Closeable {
     Editor editor = new Editor(entry);
     entry.currentEditor = editor;
 
-    // Flush the journal before creating files to prevent file leaks.
-    journalWriter.write(DIRTY + ' ' + key + '\n');
-    journalWriter.flush();
+    if (entry.readable) {
+      // Flush the journal before replacing files, or a crash may leave
+      // the old lengths for the new files.
+      journalWriter.write(DIRTY + ' ' + key + '\n');
+      journalOpCount++;
+      flushJournal();
+    } else {
+      // Leaked files of a lost DIRTY line are deleted on next open.
+      appendJournal(DIRTY + ' ' + key + '\n');
+    }
     return editor;
   }
 
@@ -500,6 +650,7 @@ public final class DiskLruCache implements Closeable {
    */
   public synchronized void setMaxSize(long maxSize) {
     this.maxSize = maxSize;
+    trimProtectedSegment();
     executorService.submit(cleanupCallable);
   }
 
@@ -542,6 +693,9 @@ public final class DiskLruCache implements Closeable {
           long newLength = clean.length();
           entry.lengths[i] = newLength;
           size = size - oldLength + newLength;
+          if (entry.protectedSegment) {
+            protectedSize = protectedSize - oldLength + newLength;
+          }
         }
       } else {
         deleteIfExists(dirty);
@@ -550,17 +704,21 @@ public final class DiskLruCache implements Closeable {
 
     redundantOpCount++;
     entry.currentEditor = null;
-    if (entry.readable | success) {
-      entry.readable = true;
+    if (entry.readable) {
       journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+      journalOpCount++;
       if (success) {
         entry.sequenceNumber = nextSequenceNumber++;
       }
+      flushJournal();
+    } else if (success) {
+      entry.readable = true;
+      entry.sequenceNumber = nextSequenceNumber++;
+      appendJournal(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
     } else {
       lruEntries.remove(entry.key);
-      journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+      appendJournal(REMOVE + ' ' + entry.key + '\n');
     }
-    journalWriter.flush();
 
     if (size > maxSize || journalRebuildRequired()) {
       executorService.submit(cleanupCallable);
@@ -597,11 +755,15 @@ public final class DiskLruCache implements Closeable {
         throw new IOException("failed to delete " + file);
       }
       size -= entry.lengths[i];
+      if (entry.protectedSegment) {
+        protectedSize -= entry.lengths[i];
+      }
       entry.lengths[i] = 0;
     }
+    entry.protectedSegment = false;
 
     redundantOpCount++;
-    journalWriter.append(REMOVE + ' ' + key + '\n');
+    appendJournal(REMOVE + ' ' + key + '\n');
     lruEntries.remove(key);
 
     if (journalRebuildRequired()) {
@@ -611,6 +773,27 @@ public final class DiskLruCache implements Closeable {
     return true;
   }
 
+  /**
+   * Appends a line to journal. It is flushed when enough lines are pending
+   * or a moment later.
+   */
+  private void appendJournal(String line) throws IOException {
+    journalWriter.write(line);
+    journalOpCount++;
+    if (++pendingJournalOps >= JOURNAL_FLUSH_OPS) {
+      flushJournal();
+    } else if (!journalFlushScheduled) {
+      journalFlushScheduled = true;
+      executorService.schedule(journalFlushCallable, JOURNAL_FLUSH_DELAY, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void flushJournal() throws IOException {
+    journalWriter.flush();
+    journalFlushCount++;
+    pendingJournalOps = 0;
+  }
+
   /** Returns true if this cache has been closed. */
   public synchronized boolean isClosed() {
     return journalWriter == null;
@@ -626,7 +809,7 @@ public final class DiskLruCache implements Closeable {
   public synchronized void flush() throws IOException {
     checkNotClosed();
     trimToSize();
-    journalWriter.flush();
+    flushJournal();
   }
 
   /** Closes this cache. Stored values will remain on the filesystem. */
@@ -644,13 +827,75 @@ public final class DiskLruCache implements Closeable {
     journalWriter = null;
   }
 
+  /**
+   * Evicts least recently used probationary entries first, then protected
+   * ones. Entries being edited are skipped.
+   */
   private void trimToSize() throws IOException {
     while (size > maxSize) {
-      Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-      remove(toEvict.getKey());
+      String toEvict = null;
+      String firstProtected = null;
+      for (Entry entry : lruEntries.values()) {
+        if (entry.currentEditor != null) {
+          continue;
+        }
+        if (!entry.protectedSegment) {
+          toEvict = entry.key;
+          break;
+        } else if (firstProtected == null) {
+          firstProtected = entry.key;
+        }
+      }
+      if (toEvict == null) {
+        toEvict = firstProtected;
+      }
+      if (toEvict == null || !remove(toEvict)) {
+        break;
+      }
+      evictionCount++;
     }
   }
 
+  public synchronized long getProtectedSize() {
+    return protectedSize;
+  }
+
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  public synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  /** Returns evictions per hour since the cache is opened or stats are reset. */
+  public synchronized float getEvictionsPerHour() {
+    long duration = Math.max(System.currentTimeMillis() - statsStartTime, 1);
+    return (float) evictionCount * HOUR_MILLIS / duration;
+  }
+
+  public synchronized void resetStats() {
+    hitCount = 0;
+    missCount = 0;
+    evictionCount = 0;
+    journalOpCount = 0;
+    journalFlushCount = 0;
+    statsStartTime = System.currentTimeMillis();
+  }
+
+  @Override
+  public synchronized String toString() {
+    long requestCount = hitCount + missCount;
+    return "DiskLruCache size = " + size + "/" + maxSize + ", protected = " + protectedSize
+        + ", hit ratio = " + (requestCount == 0 ? 0 : hitCount * 100 / requestCount) + "%"
+        + ", evictions = " + evictionCount + " (" + getEvictionsPerHour() + "/h)"
+        + ", journal ops = " + journalOpCount + ", journal flushes = " + journalFlushCount;
+  }
+
   /**
    * Closes the cache and deletes all of its stored values. This will delete
    * all files in the cache directory including files that weren't created by
@@ -900,11 +1145,22 @@ public final class DiskLruCache implements Closeable {
     /** The sequence number of the most recently committed edit to this entry. */
     private long sequenceNumber;
 
+    /** True if this entry is in protected segment. */
+    private boolean protectedSegment;
+
     private Entry(String key) {
       this.key = key;
       this.lengths = new long[valueCount];
     }
 
+    public long getSize() {
+      long result = 0;
+      for (long length : lengths) {
+        result += length;
+      }
+      return result;
+    }
+
     public String getLengths() throws IOException {
       StringBuilder result = new StringBuilder();
       for (long size : lengths) {
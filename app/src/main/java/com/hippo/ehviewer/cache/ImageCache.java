@@ -20,11 +20,27 @@ import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.Build;
 import android.support.annotation.NonNull;
 
+import com.hippo.ehviewer.util.BgThread;
+import com.hippo.ehviewer.util.FastByteArrayOutputStream;
+import com.hippo.ehviewer.util.Log;
+import com.hippo.ehviewer.util.Utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
 
 public class ImageCache extends AnyCache<Bitmap>{
 
@@ -45,8 +61,37 @@ public class ImageCache extends AnyCache<Bitmap>{
      */
     private static final int COMPRESS_QUALITY = 98;
 
+    /**
+     * Bitmap pool size as a percent of memory cache size
+     */
+    private static final float POOL_SIZE_DIVIDER = 0.25f;
+
+    private static final int IO_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Disk cache size as a percent of usable space of the volume,
+     * the space used by disk cache itself is counted as usable
+     */
+    private static final float DISK_CACHE_SPACE_RATIO = 0.1f;
+    private static final int MIN_DISK_CACHE_SIZE = 20 * 1024 * 1024;
+    private static final int MAX_DISK_CACHE_SIZE = 250 * 1024 * 1024;
+
+    private static final String JPEG_MIME_TYPE = "image/jpeg";
+
+    /**
+     * Memory cache keys of hot entries are saved in it,
+     * they are loaded to memory cache on next start
+     */
+    private static final String MANIFEST_FILE_NAME = "ImageCache.manifest";
+    private static final int MANIFEST_MAX_KEYS = 40;
+
     private static ImageCache sImageCache;
 
+    private final BitmapPool mBitmapPool;
+    private final File mDiskCacheDir;
+    private int mDiskCacheMaxSize;
+    private final File mManifestFile;
+
     public static @NonNull ImageCache getImageCache(@NonNull Context context) {
         if (sImageCache == null) {
             final ActivityManager activityManager = (ActivityManager)context
@@ -59,15 +104,170 @@ public class ImageCache extends AnyCache<Bitmap>{
             params.memoryCacheMaxSize = memoryCacheMax;
             params.hasDiskCache = true;
             params.diskCacheDir = getDiskCacheDir(context, TAG);
-            params.diskCacheMaxSize = 20 * 1024 * 1024;
+            params.diskCacheMaxSize = getAdaptiveDiskCacheSize(params.diskCacheDir, 0);
 
             sImageCache = new ImageCache(params);
+            // Now size of disk cache is known
+            sImageCache.updateDiskCacheMaxSize();
         }
         return sImageCache;
     }
 
     public ImageCache(AnyCacheParams params) {
         super(params);
+        mBitmapPool = new BitmapPool(Math.round(params.memoryCacheMaxSize * POOL_SIZE_DIVIDER));
+        mDiskCacheDir = params.diskCacheDir;
+        mDiskCacheMaxSize = params.diskCacheMaxSize;
+        // Not in disk cache dir, DiskLruCache deletes unknown files
+        mManifestFile = new File(mDiskCacheDir.getParentFile(), MANIFEST_FILE_NAME);
+    }
+
+    /**
+     * Get disk cache size from usable space of the volume
+     *
+     * @param usedSize the bytes used by disk cache now
+     */
+    private static int getAdaptiveDiskCacheSize(File dir, long usedSize) {
+        // Dir might not be created
+        while (dir != null && !dir.exists())
+            dir = dir.getParentFile();
+        long usableSpace = dir == null ? 0 : dir.getUsableSpace();
+        long size = (long) ((usableSpace + Math.max(usedSize, 0)) * DISK_CACHE_SPACE_RATIO);
+        return (int) Math.max(MIN_DISK_CACHE_SIZE, Math.min(MAX_DISK_CACHE_SIZE, size));
+    }
+
+    /**
+     * Follow usable space of the volume, it is ignored if the change
+     * is less than 1/8
+     */
+    public void updateDiskCacheMaxSize() {
+        long usedSize = getDiskCacheSize();
+        if (usedSize < 0)
+            return;
+        int maxSize = getAdaptiveDiskCacheSize(mDiskCacheDir, usedSize);
+        if (Math.abs(maxSize - mDiskCacheMaxSize) > mDiskCacheMaxSize / 8) {
+            Log.d(TAG, "Disk cache max size " + mDiskCacheMaxSize + " -> " + maxSize);
+            mDiskCacheMaxSize = maxSize;
+            setDiskCacheMaxSize(maxSize);
+        }
+    }
+
+    /**
+     * Keep thumbnail of favorite or downloaded gallery longer
+     * in disk cache
+     */
+    public void protectThumb(int gid) {
+        protectOnDisk(String.valueOf(gid));
+    }
+
+    /**
+     * Save keys of hot entries in memory cache, file is written in
+     * background. Nothing is saved if memory cache is empty, so the
+     * last manifest is kept after memory cache is cleared.
+     */
+    public void saveManifest() {
+        final List<String> keys = getHotMemoryKeys(MANIFEST_MAX_KEYS);
+        if (keys.isEmpty())
+            return;
+        new BgThread() {
+            @Override
+            public void run() {
+                writeManifest(keys);
+            }
+        }.start();
+    }
+
+    private synchronized void writeManifest(List<String> keys) {
+        File tempFile = new File(mManifestFile.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(tempFile), "UTF-8"));
+            for (String key : keys) {
+                writer.write(key);
+                writer.write('\n');
+            }
+            writer.close();
+            writer = null;
+            // Never leave a half written manifest
+            if (!tempFile.renameTo(mManifestFile))
+                Log.w(TAG, "Can't rename manifest");
+        } catch (IOException e) {
+            Log.e(TAG, "Can't save manifest", e);
+        } finally {
+            Utils.closeQuietly(writer);
+        }
+    }
+
+    /**
+     * Read memory cache keys saved by {@link #saveManifest()},
+     * the hottest one first. It reads file, do not call it in UI thread.
+     */
+    public synchronized List<String> loadManifest() {
+        List<String> keys = new ArrayList<String>();
+        if (!mManifestFile.exists())
+            return keys;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(mManifestFile), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null && keys.size() < MANIFEST_MAX_KEYS) {
+                if (line.length() != 0)
+                    keys.add(line);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Can't load manifest", e);
+        } finally {
+            Utils.closeQuietly(reader);
+        }
+        return keys;
+    }
+
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    /**
+     * Get bitmap from memory cache and retain it in bitmap pool
+     * at the same time, so it will not be reused before release.
+     *
+     * @param key
+     * @return
+     */
+    public Bitmap obtainFromMemory(String key) {
+        synchronized (mBitmapPool) {
+            Bitmap bitmap = getFromMemory(key);
+            mBitmapPool.retain(bitmap);
+            return bitmap;
+        }
+    }
+
+    @Override
+    protected void onMemoryEntryRemoved(String key, Bitmap oldValue, Bitmap newValue,
+            boolean evicted) {
+        mBitmapPool.onRemoved(key, oldValue);
+    }
+
+    /**
+     * The evicted bitmap might be in pool or reused
+     */
+    @Override
+    protected Bitmap onEvictedEntryHit(String key, Bitmap value) {
+        return mBitmapPool.reclaim(key, value) ? value : null;
+    }
+
+    @Override
+    public void clearMemory() {
+        super.clearMemory();
+        mBitmapPool.clear();
+    }
+
+    @Override
+    public void flush() {
+        updateDiskCacheMaxSize();
+        super.flush();
+        Log.d(TAG, mBitmapPool.toString());
     }
 
     @Override
@@ -75,11 +275,177 @@ public class ImageCache extends AnyCache<Bitmap>{
         return value.getByteCount();
     }
 
+    /**
+     * Target size to decode image in, image is sampled down but
+     * it is never smaller than target size.
+     */
+    public static final class TargetSize {
+        public final int width;
+        public final int height;
+
+        /**
+         * Size is rounded up to bucket, so views in similar size
+         * share the same cache entry.
+         */
+        public TargetSize(int width, int height) {
+            this.width = getSizeBucket(width);
+            this.height = getSizeBucket(height);
+        }
+
+        public boolean isValid() {
+            return width > 0 && height > 0;
+        }
+    }
+
+    /**
+     * Round size up to power of 2, 0 for invalid size
+     */
+    public static int getSizeBucket(int size) {
+        if (size <= 0)
+            return 0;
+        int bucket = Integer.highestOneBit(size);
+        return bucket == size ? bucket : bucket << 1;
+    }
+
+    /**
+     * Get the memory cache key for the image decoded in target size,
+     * it is the key itself if target size is invalid
+     */
+    public static String getSizedKey(String key, int targetWidth, int targetHeight) {
+        return getSizedKey(key, new TargetSize(targetWidth, targetHeight));
+    }
+
+    public static String getSizedKey(String key, TargetSize targetSize) {
+        if (targetSize == null || !targetSize.isValid())
+            return key;
+        else
+            return key + "@" + targetSize.width + "x" + targetSize.height;
+    }
+
+    /**
+     * Get target size from memory cache key
+     *
+     * @return null for full size
+     */
+    public static TargetSize getTargetSize(String sizedKey) {
+        int index = sizedKey.lastIndexOf('@');
+        if (index == -1)
+            return null;
+        int xIndex = sizedKey.indexOf('x', index);
+        if (xIndex == -1)
+            return null;
+        int width = Utils.parseIntSafely(sizedKey.substring(index + 1, xIndex), 0);
+        int height = Utils.parseIntSafely(sizedKey.substring(xIndex + 1), 0);
+        TargetSize targetSize = new TargetSize(width, height);
+        return targetSize.isValid() ? targetSize : null;
+    }
+
+    /**
+     * Get the key from memory cache key, the reverse of
+     * {@link #getSizedKey(String, TargetSize)}
+     */
+    public static String getKeyFromSizedKey(String sizedKey) {
+        if (getTargetSize(sizedKey) == null)
+            return sizedKey;
+        else
+            return sizedKey.substring(0, sizedKey.lastIndexOf('@'));
+    }
+
+    /**
+     * Get the max power of 2 sample size which keeps image not smaller
+     * than target size
+     */
+    public static int calculateInSampleSize(int width, int height,
+            int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        if (targetWidth <= 0 || targetHeight <= 0)
+            return sampleSize;
+        while (width / (sampleSize * 2) >= targetWidth
+                && height / (sampleSize * 2) >= targetHeight)
+            sampleSize *= 2;
+        return sampleSize;
+    }
+
+    /**
+     * Jpeg has no alpha, RGB_565 takes half memory of ARGB_8888
+     */
+    public static Bitmap.Config getPreferredConfig(String mimeType) {
+        return JPEG_MIME_TYPE.equals(mimeType) ?
+                Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
     @Override
     protected Bitmap read(InputStream is) {
-        return BitmapFactory.decodeStream(is);
+        return read(is, null);
+    }
+
+    @Override
+    protected Bitmap read(InputStream is, Object decodeParams) {
+        FastByteArrayOutputStream fbaos = new FastByteArrayOutputStream(24 * 1024);
+        try {
+            Utils.copy(is, fbaos, IO_BUFFER_SIZE);
+        } catch (IOException e) {
+            return null;
+        }
+        return read(fbaos.getBuffer(), 0, fbaos.size(), decodeParams);
+    }
+
+    @Override
+    protected Bitmap read(byte[] data, int offset, int length) {
+        return read(data, offset, length, null);
+    }
+
+    /**
+     * Decode bounds first to get sample size and config, then decode
+     * into a bitmap from pool if there is one in the same size.
+     *
+     * @param decodeParams {@link TargetSize} or null for full size
+     */
+    @Override
+    protected Bitmap read(byte[] data, int offset, int length, Object decodeParams) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, offset, length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+
+        int width = options.outWidth;
+        int height = options.outHeight;
+        options.inSampleSize = 1;
+        if (decodeParams instanceof TargetSize) {
+            TargetSize targetSize = (TargetSize) decodeParams;
+            options.inSampleSize = calculateInSampleSize(width, height,
+                    targetSize.width, targetSize.height);
+            width = width / options.inSampleSize;
+            height = height / options.inSampleSize;
+        }
+        options.inPreferredConfig = getPreferredConfig(options.outMimeType);
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+
+        // Before KitKat, inBitmap only works without sampling
+        Bitmap inBitmap = options.inSampleSize == 1 ||
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ?
+                mBitmapPool.get(width, height, options.inPreferredConfig) : null;
+        if (inBitmap != null) {
+            options.inBitmap = inBitmap;
+            try {
+                Bitmap bitmap = BitmapFactory.decodeByteArray(data, offset, length, options);
+                if (bitmap != null)
+                    return bitmap;
+            } catch (IllegalArgumentException e) {
+                // Can't reuse it
+            }
+            mBitmapPool.putBack(inBitmap);
+            options.inBitmap = null;
+        }
+        return BitmapFactory.decodeByteArray(data, offset, length, options);
     }
 
+    /**
+     * Only for bitmap which has no source data,
+     * use putRaw() for downloaded image.
+     */
     @Override
     protected boolean write(OutputStream os, Bitmap value) {
         return value.compress(COMPRESS_FORMAT, COMPRESS_QUALITY, os);
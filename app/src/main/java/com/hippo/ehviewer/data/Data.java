@@ -325,6 +325,21 @@ public class Data {
         return null;
     }
 
+    /**
+     * Get the wait item with highest priority, earlier one for same
+     * priority. Return null if not found
+     * @return
+     */
+    public synchronized DownloadInfo getNextWaitDownloadInfo() {
+        DownloadInfo result = null;
+        for (DownloadInfo di : mDownloads) {
+            if (di.state == DownloadInfo.STATE_WAIT &&
+                    (result == null || di.priority > result.priority))
+                result = di;
+        }
+        return result;
+    }
+
     /**
      * True if contain this item
      *
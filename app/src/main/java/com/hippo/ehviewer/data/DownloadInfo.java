@@ -28,6 +28,10 @@ public class DownloadInfo implements ExpandableListItem {
     public static final int STATE_DOWNLOAD = 0x2;
     public static final int STATE_FINISH = 0x3;
 
+    public static final int PRIORITY_LOW = -1;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 1;
+
     public final GalleryInfo galleryInfo;
     public final int mode;
     public volatile int state = STATE_NONE;
@@ -36,6 +40,8 @@ public class DownloadInfo implements ExpandableListItem {
     public volatile int download = -1;
     public volatile int total = -1;
     public volatile int legacy;
+    /** Higher priority starts first and get more download threads **/
+    public volatile int priority = PRIORITY_NORMAL;
 
     private boolean mExpanded = false;
 
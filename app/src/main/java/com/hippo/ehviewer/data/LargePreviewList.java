@@ -29,6 +29,8 @@ import android.widget.TextView;
 
 import com.hippo.ehviewer.ImageLoader;
 import com.hippo.ehviewer.R;
+import com.hippo.ehviewer.cache.BitmapPool;
+import com.hippo.ehviewer.cache.ImageCache;
 import com.hippo.ehviewer.ui.GalleryActivity;
 import com.hippo.ehviewer.widget.SimpleGridLayout;
 
@@ -117,10 +119,27 @@ public class LargePreviewList extends PreviewList {
             if (mTargetPage != mHolder.getCurPreviewPage())
                 return;
 
-            if (bmp == null)
+            if (bmp == null) {
                 mHolder.onGetPreviewImageFailure();
-            else
-                ((ImageView)mViewGroup.getChildAt(mIndex).findViewById(R.id.image)).setImageBitmap(bmp);
+            } else {
+                // Keep it out of bitmap pool till the view is gone
+                final BitmapPool pool = ImageCache.getImageCache(mActivity).getBitmapPool();
+                final Bitmap bitmap = bmp;
+                ImageView image = (ImageView)mViewGroup.getChildAt(mIndex).findViewById(R.id.image);
+                pool.retain(bitmap);
+                image.setImageBitmap(bitmap);
+                image.addOnAttachStateChangeListener(new View.OnAttachStateChangeListener() {
+                    @Override
+                    public void onViewAttachedToWindow(View v) {
+                    }
+
+                    @Override
+                    public void onViewDetachedFromWindow(View v) {
+                        v.removeOnAttachStateChangeListener(this);
+                        pool.release(bitmap);
+                    }
+                });
+            }
         }
     }
 }
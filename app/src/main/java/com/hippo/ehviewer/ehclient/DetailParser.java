@@ -30,6 +30,18 @@ import java.util.LinkedList;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+/**
+ * Parse gallery detail page.<br>
+ * {@link #scan(CharSequence)} checks errors and finds where each section
+ * starts in one pass. Sections are parsed only when they are got, and each
+ * pattern runs only on a copy of its own section, so getting detail never
+ * scans comments and a large comment section costs nothing till it is needed.
+ * {@link #parser(String, int)} does all of it for the sections in mode.<br>
+ * Page can also be scanned while it is read, see {@link #start()}. Sections
+ * before comments can be parsed as soon as comment section starts.
+ *
+ * @author Hippo
+ */
 public class DetailParser {
 
     private static final String OFFENSIVE_STRING =
@@ -46,6 +58,65 @@ public class DetailParser {
     public static final int PINING = 0x40;
     public static final int ERROR = 0x80;
 
+    /*
+     * Sections are in this order in page, a section ends where
+     * a later one starts. If a mark is not found, its section is
+     * the whole page, it works as before sections.
+     */
+    private static final String DETAIL_MARK = "<div id=\"gd1\">";
+    private static final String TAG_MARK = "<div id=\"taglist\">";
+    private static final String PREVIEW_INFO_MARK = "<table class=\"ptt\"";
+    private static final String PREVIEW_MARK = "<div id=\"gdt\">";
+    private static final String COMMENT_MARK = "<div id=\"cdiv\"";
+    private static final String LARGE_PREVIEW_MARK = "<div class=\"gdtl\"";
+    private static final String[] SECTION_MARKS = {
+            DETAIL_MARK, TAG_MARK, PREVIEW_INFO_MARK, PREVIEW_MARK, COMMENT_MARK};
+
+    private static final String ERROR_MARK = "<div class=\"d\">";
+    private static final Pattern ERROR_PATTERN = Pattern.compile("<div class=\"d\">\n<p>([^<]+)</p>");
+    private static final Pattern DETAIL_PATTERN = Pattern
+            .compile("<div id=\"gd1\"><img src=\"([^\"]+)\"[^<>]+></div>" //  thumb
+                    + "</div>"
+                    + "<div id=\"gd2\">"
+                    + "<h1 id=\"gn\">([^<>]+)</h1>" // title
+                    + "<h1 id=\"gj\">([^<>]*)</h1>" // title_jpn might be empty string
+                    + "</div>"
+                    + ".+?"
+                    + "<a[^<>]*onclick=\"return popUp\\('([^']+)'[^)]+\\)\">Torrent Download \\( (\\d+) \\)</a>"
+                    + ".+?"
+                    + "<div id=\"gdc\"><a[^<>]+><[^<>]*alt=\"([\\w|\\-]+)\"[^<>]*></a></div>" // category
+                    + "<div id=\"gdn\"><a[^<>]+>([^<>]+)</a>" // uploader
+                    + ".+?"
+                    + "<tr><td[^<>]*>Posted:</td><td[^<>]*>([\\w|\\-|\\s|:]+)</td></tr>" // posted
+                    //+ "<tr><td[^<>]*>Images:</td><td[^<>]*>([\\d]+) @ ([\\w|\\.|\\s]+)</td></tr>" // pages and size
+                    //+ "<tr><td[^<>]*>Resized:</td><td[^<>]*>([^<>]+)</td></tr>" // resized
+                    + "<tr><td[^<>]*>Parent:</td><td[^<>]*>(?:<a[^<>]*>)?([^<>]+)(?:</a>)?</td></tr>" // parent
+                    + "<tr><td[^<>]*>Visible:</td><td[^<>]*>([^<>]+)</td></tr>" // visible
+                    + "<tr><td[^<>]*>Language:</td><td[^<>]*>([^<>]+)(?:<span[^<>]*>[^<>]*</span>)?</td></tr>" // language
+                    + "<tr><td[^<>]*>File Size:</td><td[^<>]*>([^<>]+)(?:<span[^<>]*>([^<>]+)</span>)?</td></tr>" // File size and resize
+                    + "<tr><td[^<>]*>Length:</td><td[^<>]*>([\\d|,]+) pages</td></tr>" // pages
+                    + "<tr><td[^<>]*>Favorited:</td><[^<>]*>([^<>]+)</td></tr>" // Favorite times  ([\d|,]+) times or Never
+                    + ".+?"
+                    + "<td id=\"grt3\"><span id=\"rating_count\">([\\d|,]+)</span></td>" // people
+                    + "</tr>"
+                    + "<tr><td[^<>]*>([^<>]+)</td>" // rating
+                    + ".+?"
+                    + "<a id=\"favoritelink\"[^<>]*>(.+?)</a>"
+                    + ".+?"
+                    + "<div id=\"gdt\"><div[^<>]*>(?:<div[^<>]*>)?<a[^<>]*href=\"([^<>\"]+)\"[^<>]*>"); // get firstPage
+    private static final Pattern RATING_PATTERN = Pattern.compile("([\\d|\\.]+)");
+    private static final Pattern TAG_GROUP_PATTERN = Pattern
+            .compile("<tr><td[^<>]+>([\\w\\s]+):</td><td>(?:<div[^<>]+><a[^<>]+>[\\w\\s]+</a></div>)+</td></tr>");
+    private static final Pattern TAG_PATTERN = Pattern.compile("<div[^<>]+><a[^<>]+>([\\w\\s]+)</a></div>");
+    private static final Pattern PREVIEW_INFO_PATTERN = Pattern
+            .compile("<td[^>]+><a[^>]+>([\\d,]+)</a></td><td[^>]+>(?:<a[^>]+>)?&gt;(?:</a>)?</td>");
+    private static final Pattern LARGE_PREVIEW_PATTERN = Pattern
+            .compile("<div class=\"gdtl\".+?<a href=\"(.+?)\"><img.+?src=\"(.+?)\"");
+    private static final Pattern NORMAL_PREVIEW_PATTERN = Pattern
+            .compile("<div[^<>]*class=\"gdtm\"[^<>]*><div[^<>]*width:(\\d+)[^<>]*height:(\\d+)[^<>]*\\((.+?)\\)[^<>]*-(\\d+)px[^<>]*><a[^<>]*href=\"(.+?)\"[^<>]*>");
+    private static final Pattern COMMENT_PATTERN = Pattern
+            .compile("<div class=\"c3\">Posted on ([^<>]+) by: &nbsp; <a[^<>]+>([^<>]+)</a>.+?<div class=\"c6\"[^>]*>(.+?)</div><div class=\"c[78]\"");
+
     private static final CommentSort cs = new CommentSort();
 
     public String eMesg;
@@ -73,6 +144,24 @@ public class DetailParser {
     public int torrentNumber;
     public String torrentUrl;
 
+    /** Text of page, or text read so far if only head is read **/
+    private CharSequence mText;
+    /** True if sections before comments are found while reading **/
+    private boolean mHeadRead;
+    /** Index in SECTION_MARKS of the mark to find next while reading **/
+    private int mNextMark;
+    /** Where to search next mark from while reading **/
+    private int mSearchFrom;
+    private int mDetailStart;
+    private int mTagStart;
+    private int mPreviewInfoStart;
+    private int mPreviewStart;
+    private int mCommentStart;
+    /** Sections parsed **/
+    private int mParsed;
+    /** Sections got **/
+    private int mResult;
+
     public void reset() {
         eMesg = null;
         thumb = null;
@@ -97,71 +186,187 @@ public class DetailParser {
         comments = null;
         torrentNumber = 0;
         torrentUrl = null;
+        start();
     }
 
     public int parser(String body, int mode) {
-        int re = 0;
-        Pattern p;
-        Matcher m;
+        start();
+        int re = scan(body);
+        if (re != 0)
+            return re;
+
+        if ((mode & DETAIL) != 0)
+            parseDetail();
+        if ((mode & TAG) != 0)
+            getTags();
+        if ((mode & PREVIEW_INFO) != 0)
+            parsePreviewInfo();
+        if ((mode & PREVIEW) != 0)
+            getPreviewList();
+        if ((mode & COMMENT) != 0)
+            getComments();
+        return mResult;
+    }
+
+    /**
+     * Start to scan text which is still being read. Call
+     * {@link #scanHead(CharSequence)} each time more text is read,
+     * and {@link #scan(CharSequence)} when all text is read.
+     */
+    public void start() {
+        mText = null;
+        mHeadRead = false;
+        mNextMark = 0;
+        mSearchFrom = 0;
+        mParsed = 0;
+        mResult = 0;
+    }
 
+    /**
+     * Find section marks in text read so far
+     *
+     * @param text all text read so far, it might still grow
+     * @return true if comment section starts, sections before it
+     *         are complete and can be parsed now
+     */
+    public boolean scanHead(CharSequence text) {
+        if (mHeadRead)
+            return true;
+
+        while (mNextMark < SECTION_MARKS.length) {
+            String mark = SECTION_MARKS[mNextMark];
+            int index = Utils.indexOf(text, mark, mSearchFrom);
+            if (index == -1) {
+                // Mark might be cut at the end
+                mSearchFrom = Math.max(mSearchFrom, text.length() - mark.length() + 1);
+                return false;
+            }
+            setSectionStart(mNextMark, index);
+            mNextMark++;
+            mSearchFrom = index;
+        }
+
+        // A page with all marks is not an error page
+        mText = text;
+        mHeadRead = true;
+        return true;
+    }
+
+    private void setSectionStart(int markIndex, int start) {
+        switch (markIndex) {
+        case 0:
+            mDetailStart = start;
+            break;
+        case 1:
+            mTagStart = start;
+            break;
+        case 2:
+            mPreviewInfoStart = start;
+            break;
+        case 3:
+            mPreviewStart = start;
+            break;
+        case 4:
+            mCommentStart = start;
+            break;
+        }
+    }
+
+    /**
+     * Check errors and find sections, nothing is parsed. If head is
+     * read, sections are kept and what is parsed is kept.
+     *
+     * @param body all text of page
+     * @return ERROR, OFFENSIVE, PINING, or 0
+     */
+    public int scan(CharSequence body) {
+        if (mHeadRead && body != null) {
+            // Sections before comments are the same
+            mText = body;
+            return 0;
+        }
+
+        start();
         if (body == null)
             return 0;
 
-        if (!body.contains("<")) {
-            eMesg = body;
+        if (!Utils.contains(body, "<")) {
+            eMesg = body.toString();
             return ERROR;
         }
 
-        if (body.contains(OFFENSIVE_STRING)) {
+        if (Utils.contains(body, OFFENSIVE_STRING)) {
             return OFFENSIVE;
         }
 
-        if (body.contains(PINING_STRING)) {
+        if (Utils.contains(body, PINING_STRING)) {
             return PINING;
         }
 
-        p = Pattern.compile("<div class=\"d\">\n<p>([^<]+)</p>");
-        m = p.matcher(body);
-        if (m.find()) {
-            eMesg = m.group(1);
-            return ERROR;
+        // Match each error mark on a copy of itself only
+        for (int index = Utils.indexOf(body, ERROR_MARK, 0); index != -1;
+                index = Utils.indexOf(body, ERROR_MARK, index + 1)) {
+            int end = Utils.indexOf(body, "</p>", index);
+            if (end == -1)
+                break;
+            Matcher m = ERROR_PATTERN.matcher(body.subSequence(index, end + 4).toString());
+            if (m.lookingAt()) {
+                eMesg = m.group(1);
+                return ERROR;
+            }
+        }
+
+        mText = body;
+        mDetailStart = Utils.indexOf(body, DETAIL_MARK, 0);
+        int from = Math.max(mDetailStart, 0);
+        mTagStart = Utils.indexOf(body, TAG_MARK, from);
+        from = Math.max(mTagStart, from);
+        mPreviewInfoStart = Utils.indexOf(body, PREVIEW_INFO_MARK, from);
+        from = Math.max(mPreviewInfoStart, from);
+        mPreviewStart = Utils.indexOf(body, PREVIEW_MARK, from);
+        from = Math.max(mPreviewStart, from);
+        mCommentStart = Utils.indexOf(body, COMMENT_MARK, from);
+        return 0;
+    }
+
+    /**
+     * Get a matcher of a copy of text from start of section to start
+     * of the first later section found
+     */
+    private Matcher getSectionMatcher(Pattern pattern, int start, int... laterStarts) {
+        int end = mText.length();
+        for (int laterStart : laterStarts) {
+            if (laterStart > start) {
+                end = laterStart;
+                break;
+            }
         }
+        return pattern.matcher(mText.subSequence(Math.max(start, 0), end).toString());
+    }
 
-        // Get detail
-        if ((mode & DETAIL) != 0) {
-            p = Pattern
-                    .compile("<div id=\"gd1\"><img src=\"([^\"]+)\"[^<>]+></div>" //  thumb
-                            + "</div>"
-                            + "<div id=\"gd2\">"
-                            + "<h1 id=\"gn\">([^<>]+)</h1>" // title
-                            + "<h1 id=\"gj\">([^<>]*)</h1>" // title_jpn might be empty string
-                            + "</div>"
-                            + ".+?"
-                            + "<a[^<>]*onclick=\"return popUp\\('([^']+)'[^)]+\\)\">Torrent Download \\( (\\d+) \\)</a>"
-                            + ".+?"
-                            + "<div id=\"gdc\"><a[^<>]+><[^<>]*alt=\"([\\w|\\-]+)\"[^<>]*></a></div>" // category
-                            + "<div id=\"gdn\"><a[^<>]+>([^<>]+)</a>" // uploader
-                            + ".+?"
-                            + "<tr><td[^<>]*>Posted:</td><td[^<>]*>([\\w|\\-|\\s|:]+)</td></tr>" // posted
-                            //+ "<tr><td[^<>]*>Images:</td><td[^<>]*>([\\d]+) @ ([\\w|\\.|\\s]+)</td></tr>" // pages and size
-                            //+ "<tr><td[^<>]*>Resized:</td><td[^<>]*>([^<>]+)</td></tr>" // resized
-                            + "<tr><td[^<>]*>Parent:</td><td[^<>]*>(?:<a[^<>]*>)?([^<>]+)(?:</a>)?</td></tr>" // parent
-                            + "<tr><td[^<>]*>Visible:</td><td[^<>]*>([^<>]+)</td></tr>" // visible
-                            + "<tr><td[^<>]*>Language:</td><td[^<>]*>([^<>]+)(?:<span[^<>]*>[^<>]*</span>)?</td></tr>" // language
-                            + "<tr><td[^<>]*>File Size:</td><td[^<>]*>([^<>]+)(?:<span[^<>]*>([^<>]+)</span>)?</td></tr>" // File size and resize
-                            + "<tr><td[^<>]*>Length:</td><td[^<>]*>([\\d|,]+) pages</td></tr>" // pages
-                            + "<tr><td[^<>]*>Favorited:</td><[^<>]*>([^<>]+)</td></tr>" // Favorite times  ([\d|,]+) times or Never
-                            + ".+?"
-                            + "<td id=\"grt3\"><span id=\"rating_count\">([\\d|,]+)</span></td>" // people
-                            + "</tr>"
-                            + "<tr><td[^<>]*>([^<>]+)</td>" // rating
-                            + ".+?"
-                            + "<a id=\"favoritelink\"[^<>]*>(.+?)</a>"
-                            + ".+?"
-                            + "<div id=\"gdt\"><div[^<>]*>(?:<div[^<>]*>)?<a[^<>]*href=\"([^<>\"]+)\"[^<>]*>"); // get firstPage
-            m = p.matcher(body);
+    /**
+     * Only parse each section once
+     *
+     * @return true if the section should be parsed now
+     */
+    private boolean startSection(int section) {
+        if (mText == null || (mParsed & section) != 0)
+            return false;
+        mParsed |= section;
+        return true;
+    }
+
+    /**
+     * Parse detail, it is shown as header of detail page
+     *
+     * @return true if detail is got
+     */
+    public boolean parseDetail() {
+        if (startSection(DETAIL)) {
+            // First page link is in preview section
+            Matcher m = getSectionMatcher(DETAIL_PATTERN, mDetailStart, mCommentStart);
             if (m.find()) {
-                re |= DETAIL;
+                mResult |= DETAIL;
 
                 thumb = Utils.unescapeXml(m.group(1));
                 title = Utils.unescapeXml(m.group(2));
@@ -180,8 +385,7 @@ public class DetailParser {
                 // favoriteTimes = m.group(15)
                 people = Integer.parseInt(m.group(16).replace(",", ""));
 
-                Pattern pattern = Pattern.compile("([\\d|\\.]+)");
-                Matcher matcher = pattern.matcher(m.group(17));
+                Matcher matcher = RATING_PATTERN.matcher(m.group(17));
                 if (matcher.find())
                     rating = Float.parseFloat(matcher.group(1));
                 else
@@ -192,14 +396,16 @@ public class DetailParser {
                 firstPage = m.group(19);
             }
         }
-        // Get tag
-        if ((mode & TAG) != 0) {
+        return (mResult & DETAIL) != 0;
+    }
+
+    public LinkedHashMap<String, LinkedList<String>> getTags() {
+        if (startSection(TAG)) {
             tags = new LinkedHashMap<>();
-            p = Pattern
-                    .compile("<tr><td[^<>]+>([\\w\\s]+):</td><td>(?:<div[^<>]+><a[^<>]+>[\\w\\s]+</a></div>)+</td></tr>");
-            m = p.matcher(body);
+            Matcher m = getSectionMatcher(TAG_GROUP_PATTERN, mTagStart,
+                    mPreviewInfoStart, mPreviewStart, mCommentStart);
             while (m.find()) {
-                re |= TAG;
+                mResult |= TAG;
                 String groupName = m.group(1);
                 LinkedList<String> group = getTagGroup(m.group(0));
                 if (group != null) {
@@ -207,64 +413,71 @@ public class DetailParser {
                 }
             }
         }
+        return tags;
+    }
 
-        // Get preview info
-        if ((mode & PREVIEW_INFO) != 0) {
-            p = Pattern.compile("<td[^>]+><a[^>]+>([\\d,]+)</a></td><td[^>]+>(?:<a[^>]+>)?&gt;(?:</a>)?</td>");
-            m = p.matcher(body);
+    /**
+     * Parse preview page number
+     *
+     * @return true if it is got
+     */
+    public boolean parsePreviewInfo() {
+        if (startSection(PREVIEW_INFO)) {
+            Matcher m = getSectionMatcher(PREVIEW_INFO_PATTERN, mPreviewInfoStart, mCommentStart);
             if (m.find()) {
-                re |= PREVIEW_INFO;
+                mResult |= PREVIEW_INFO;
                 previewSum = Integer.valueOf(m.group(1).replace(",", ""));
             }
         }
+        return (mResult & PREVIEW_INFO) != 0;
+    }
 
-        // Get preview
-        if ((mode & PREVIEW) != 0) {
+    public PreviewList getPreviewList() {
+        if (startSection(PREVIEW)) {
             boolean isLargePreview = false;
-            if (body.contains("<div class=\"gdtl\""))
+            int index = Utils.indexOf(mText, LARGE_PREVIEW_MARK, Math.max(mPreviewStart, 0));
+            if (index != -1 && (mCommentStart <= mPreviewStart || index < mCommentStart))
                 isLargePreview = true;
 
+            Matcher m;
             if (isLargePreview) {
                 previewList = new LargePreviewList();
-                p = Pattern.compile("<div class=\"gdtl\".+?<a href=\"(.+?)\"><img.+?src=\"(.+?)\"");
-                m = p.matcher(body);
+                m = getSectionMatcher(LARGE_PREVIEW_PATTERN, mPreviewStart, mCommentStart);
                 while (m.find()) {
-                    re |= PREVIEW;
+                    mResult |= PREVIEW;
                     ((LargePreviewList)previewList).addItem(m.group(2), m.group(1));
                 }
             } else {
                 previewList = new NormalPreviewList();
-                p = Pattern.compile("<div[^<>]*class=\"gdtm\"[^<>]*><div[^<>]*width:(\\d+)[^<>]*height:(\\d+)[^<>]*\\((.+?)\\)[^<>]*-(\\d+)px[^<>]*><a[^<>]*href=\"(.+?)\"[^<>]*>");
-                m = p.matcher(body);
+                m = getSectionMatcher(NORMAL_PREVIEW_PATTERN, mPreviewStart, mCommentStart);
                 while (m.find()) {
-                    re |= PREVIEW;
+                    mResult |= PREVIEW;
                     ((NormalPreviewList)previewList).addItem(m.group(3), m.group(4), "0", m.group(1),
                             m.group(2), m.group(5));
                 }
             }
             // Set previewPerPage
-            if (previewList != null)
-                previewPerPage = previewList.size();
+            previewPerPage = previewList.size();
         }
-        // Get comment
-        if ((mode & COMMENT) != 0) {
-            p = Pattern
-                    .compile("<div class=\"c3\">Posted on ([^<>]+) by: &nbsp; <a[^<>]+>([^<>]+)</a>.+?<div class=\"c6\"[^>]*>(.+?)</div><div class=\"c[78]\"");
-            m = p.matcher(body);
+        return previewList;
+    }
+
+    public LinkedList<Comment> getComments() {
+        if (startSection(COMMENT)) {
+            Matcher m = getSectionMatcher(COMMENT_PATTERN, mCommentStart);
             comments = new LinkedList<Comment>();
             while (m.find()) {
-                re |= COMMENT;
+                mResult |= COMMENT;
                 comments.add(new Comment(m.group(1), m.group(2), m.group(3)));
             }
             Collections.sort(comments, cs);
         }
-        return re;
+        return comments;
     }
 
     private LinkedList<String> getTagGroup(String pageContent) {
         LinkedList<String> list = new LinkedList<String>();
-        Pattern p = Pattern.compile("<div[^<>]+><a[^<>]+>([\\w\\s]+)</a></div>");
-        Matcher m = p.matcher(pageContent);
+        Matcher m = TAG_PATTERN.matcher(pageContent);
         while (m.find())
             list.add(m.group(1));
         if (list.size() == 0)
@@ -276,6 +489,9 @@ public class DetailParser {
 
 
     static class CommentSort implements Comparator<Comment> {
+        private static final Pattern TIME_PATTERN =
+                Pattern.compile("(\\d{2}) (\\w+) (\\d{4}), (\\d{2}):(\\d{2})");
+
         private int compareNum(String n1, String n2, int median) {
             int re = 0;
             for (int i = 0; i < median; i++) {
@@ -316,9 +532,8 @@ public class DetailParser {
         @Override
         public int compare(Comment c1, Comment c2) {
             int re = 0;
-            Pattern p = Pattern.compile("(\\d{2}) (\\w+) (\\d{4}), (\\d{2}):(\\d{2})");
-            Matcher m1 = p.matcher(c1.time);
-            Matcher m2 = p.matcher(c2.time);
+            Matcher m1 = TIME_PATTERN.matcher(c1.time);
+            Matcher m2 = TIME_PATTERN.matcher(c2.time);
             if (!m1.find() || !m2.find())
                 return 0;
             // year
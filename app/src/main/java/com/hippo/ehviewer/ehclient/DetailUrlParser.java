@@ -21,6 +21,8 @@ import java.util.regex.Pattern;
 
 public class DetailUrlParser {
 
+    private static final Pattern URL_PATTERN = Pattern.compile("/(\\d+)/(\\w+)");
+
     public int gid;
     public String token;
 
@@ -28,8 +30,7 @@ public class DetailUrlParser {
         if (url == null)
             return false;
 
-        Pattern p = Pattern.compile("/(\\d+)/(\\w+)");
-        Matcher m = p.matcher(url);
+        Matcher m = URL_PATTERN.matcher(url);
         if (m.find()) {
             gid = Integer.parseInt(m.group(1));
             token = m.group(2);
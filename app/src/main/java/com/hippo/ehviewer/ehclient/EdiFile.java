@@ -0,0 +1,528 @@
+/*
+ * Copyright (C) 2014 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.ehclient;
+
+import android.util.SparseArray;
+
+import com.hippo.ehviewer.util.AutoExpandArray;
+import com.hippo.ehviewer.util.Log;
+import com.hippo.ehviewer.util.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+/**
+ * The download info file in gallery dir.<br>
+ * It is a fixed size header, then an append-only log of records:
+ * <code>
+ * magic        int<br>
+ * version      int<br>
+ * gid          int<br>
+ * token        byte length, 31 bytes ascii<br>
+ * mode         int<br>
+ * preview page num int<br>
+ * preview per page int<br>
+ * image num    int<br>
+ * read index   int<br>
+ * records...   byte type, int index, utf value<br>
+ * </code>
+ * Header fields are rewritten in place, new page token or filename is
+ * appended, so one update costs O(1) I/O. When the log has too many
+ * stale records, it is compacted to a new file.<br>
+ * It can also read the legacy text format, which is migrated on first read.
+ *
+ * @author Hippo
+ *
+ */
+public final class EdiFile {
+
+    private static final String TAG = EdiFile.class.getSimpleName();
+
+    private static final int MAGIC = 0x45484449; // EHDI
+    private static final int VERSION = 1;
+
+    private static final int TOKEN_SIZE = 32;
+    private static final int READ_INDEX_OFFSET = 60;
+    private static final int HEADER_SIZE = 64;
+
+    private static final byte TYPE_PAGE_TOKEN = 1;
+    private static final byte TYPE_FILENAME = 2;
+
+    private static final int COMPACT_MIN_RECORD_NUM = 64;
+
+    private static final int IO_BUFFER_SIZE = 8 * 1024;
+
+    private final File mFile;
+
+    public int gid = -1;
+    public String token;
+    public int mode = -1;
+    public int previewPageNum = -1;
+    public int previewPerPage = -1;
+    public int imageNum = -1;
+    public int readIndex = 0;
+
+    /** Latest value of each record, to skip no-change append and to compact **/
+    private final SparseArray<String> mPageTokenMap = new SparseArray<String>();
+    private final SparseArray<String> mFilenameMap = new SparseArray<String>();
+    /** Records in file, including stale ones **/
+    private int mRecordNum = 0;
+    /** False if file is missing, broken or legacy **/
+    private boolean mBinary = false;
+    /**
+     * Header is read from file or set by owner. Before it, nothing is
+     * written, or a file not read yet is rewritten from an empty model.
+     */
+    private boolean mHeaderKnown = false;
+    /** Read index set before header is known, -1 for none **/
+    private int mPendingReadIndex = -1;
+
+    public EdiFile(File file) {
+        mFile = file;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Read header and all records. Page tokens and filenames are put
+     * to the arrays.
+     *
+     * @param pageTokenArray can be null
+     * @param filenameArray can be null
+     * @return false if file does not exist or can't be read
+     */
+    public synchronized boolean read(AutoExpandArray<String> pageTokenArray,
+            AutoExpandArray<String> filenameArray) {
+        mPageTokenMap.clear();
+        mFilenameMap.clear();
+        mRecordNum = 0;
+        mBinary = false;
+        mHeaderKnown = false;
+
+        if (!mFile.isFile() || !mFile.canRead())
+            return false;
+
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(mFile), IO_BUFFER_SIZE);
+            DataInputStream dis = new DataInputStream(is);
+            is.mark(4);
+            int magic;
+            try {
+                magic = dis.readInt();
+            } catch (EOFException e) {
+                return false;
+            }
+
+            boolean ok;
+            if (magic == MAGIC) {
+                ok = readBinary(dis);
+            } else {
+                is.reset();
+                ok = readLegacy(is);
+            }
+            if (!ok)
+                return false;
+        } catch (Throwable e) {
+            Log.w(TAG, "Can't read " + mFile, e);
+            return false;
+        } finally {
+            Utils.closeQuietly(is);
+        }
+
+        for (int i = 0; i < mPageTokenMap.size(); i++) {
+            if (pageTokenArray != null)
+                pageTokenArray.set(mPageTokenMap.keyAt(i), mPageTokenMap.valueAt(i));
+        }
+        for (int i = 0; i < mFilenameMap.size(); i++) {
+            if (filenameArray != null)
+                filenameArray.set(mFilenameMap.keyAt(i), mFilenameMap.valueAt(i));
+        }
+
+        mHeaderKnown = true;
+        boolean readIndexChanged = applyPendingReadIndex();
+        if (!mBinary) {
+            // Migrate legacy file
+            compact();
+        } else if (readIndexChanged) {
+            writeReadIndexInPlace();
+        }
+        return true;
+    }
+
+    /**
+     * @return true if read index is changed
+     */
+    private boolean applyPendingReadIndex() {
+        if (mPendingReadIndex == -1)
+            return false;
+        boolean changed = readIndex != mPendingReadIndex;
+        readIndex = mPendingReadIndex;
+        mPendingReadIndex = -1;
+        return changed;
+    }
+
+    private boolean readBinary(DataInputStream dis) throws IOException {
+        if (dis.readInt() != VERSION)
+            return false;
+        readHeaderFields(dis);
+
+        long validLength = HEADER_SIZE;
+        try {
+            while (true) {
+                byte type = dis.readByte();
+                int index = dis.readInt();
+                String value = dis.readUTF();
+                if (type == TYPE_PAGE_TOKEN)
+                    mPageTokenMap.put(index, value);
+                else if (type == TYPE_FILENAME)
+                    mFilenameMap.put(index, value);
+                else
+                    break;
+                mRecordNum++;
+                validLength += 1 + 4 + 2 + getUTFLength(value);
+            }
+        } catch (EOFException e) {
+            // Empty
+        }
+
+        // Drop broken tail, or next record can't be read
+        if (mFile.length() > validLength) {
+            Log.w(TAG, "Drop broken tail of " + mFile);
+            RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+            try {
+                raf.setLength(validLength);
+            } finally {
+                raf.close();
+            }
+        }
+
+        mBinary = true;
+        return true;
+    }
+
+    private void readHeaderFields(DataInputStream dis) throws IOException {
+        gid = dis.readInt();
+        byte[] tokenBytes = new byte[TOKEN_SIZE];
+        dis.readFully(tokenBytes);
+        int tokenLength = Math.min(tokenBytes[0] & 0xff, TOKEN_SIZE - 1);
+        token = new String(tokenBytes, 1, tokenLength, "US-ASCII");
+        mode = dis.readInt();
+        previewPageNum = dis.readInt();
+        previewPerPage = dis.readInt();
+        imageNum = dis.readInt();
+        readIndex = dis.readInt();
+    }
+
+    /**
+     * Legacy file look like this:<br>
+     * <code>
+     * 00000000<br>
+     * 728874<br>
+     * 306429c222<br>
+     * 1<br>
+     * 4<br>
+     * 40<br>
+     * 128<br>
+     * 1 43a64e6e79<br>
+     * </code><br>
+     * First line is read index in hex, then gid, token, mode,
+     * preview page num, preview per page and image num.
+     * The rest are index and page token.
+     */
+    private boolean readLegacy(InputStream is) throws IOException {
+        try {
+            readIndex = Integer.parseInt(Utils.readAsciiLine(is), 16);
+            gid = Integer.parseInt(Utils.readAsciiLine(is));
+            token = Utils.readAsciiLine(is);
+            mode = Integer.parseInt(Utils.readAsciiLine(is));
+            previewPageNum = Integer.parseInt(Utils.readAsciiLine(is));
+            previewPerPage = Integer.parseInt(Utils.readAsciiLine(is));
+            imageNum = Integer.parseInt(Utils.readAsciiLine(is));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+
+        // read page token info
+        try {
+            while (true) {
+                String line = Utils.readAsciiLine(is);
+                int pos = line.indexOf(' ');
+                if (pos == -1)
+                    continue;
+                try {
+                    int index = Integer.parseInt(line.substring(0, pos));
+                    mPageTokenMap.put(index, line.substring(pos + 1));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+            }
+        } catch (EOFException e) {
+            // Empty
+        }
+        return true;
+    }
+
+    /**
+     * Write header fields in place
+     */
+    public synchronized void writeHeader() {
+        // Owner sets all header fields
+        mHeaderKnown = true;
+        applyPendingReadIndex();
+        if (!mBinary || mFile.length() < HEADER_SIZE) {
+            compact();
+            return;
+        }
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(mFile, "rw");
+            raf.write(getHeaderBytes());
+        } catch (IOException e) {
+            Log.w(TAG, "Can't write header of " + mFile, e);
+        } finally {
+            Utils.closeQuietly(raf);
+        }
+    }
+
+    /**
+     * Only update read index, 4 bytes. If header is not known yet,
+     * it is written after {@link #read(AutoExpandArray, AutoExpandArray)}
+     * or {@link #writeHeader()}.
+     */
+    public synchronized void writeReadIndex(int index) {
+        if (!mHeaderKnown) {
+            mPendingReadIndex = index;
+            return;
+        }
+
+        readIndex = index;
+        if (!mBinary) {
+            compact();
+            return;
+        }
+        writeReadIndexInPlace();
+    }
+
+    private void writeReadIndexInPlace() {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(mFile, "rw");
+            raf.seek(READ_INDEX_OFFSET);
+            raf.writeInt(readIndex);
+        } catch (IOException e) {
+            Log.w(TAG, "Can't write read index of " + mFile, e);
+        } finally {
+            Utils.closeQuietly(raf);
+        }
+    }
+
+    /**
+     * Append page tokens which are new or changed, in one write
+     *
+     * @param startIndex the index of first page token in list
+     * @param pageTokens
+     */
+    public synchronized void appendPageTokens(int startIndex, List<String> pageTokens) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        int num = 0;
+        try {
+            for (int i = 0; i < pageTokens.size(); i++) {
+                int index = startIndex + i;
+                String pageToken = pageTokens.get(i);
+                if (pageToken == null || pageToken.equals(mPageTokenMap.get(index)))
+                    continue;
+                mPageTokenMap.put(index, pageToken);
+                writeRecord(dos, TYPE_PAGE_TOKEN, index, pageToken);
+                num++;
+            }
+        } catch (IOException e) {
+            // Can't happen in memory
+        }
+        append(baos.toByteArray(), num);
+    }
+
+    public synchronized void appendFilename(int index, String filename) {
+        if (filename == null || filename.equals(mFilenameMap.get(index)))
+            return;
+        mFilenameMap.put(index, filename);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try {
+            writeRecord(new DataOutputStream(baos), TYPE_FILENAME, index, filename);
+        } catch (IOException e) {
+            // Can't happen in memory
+        }
+        append(baos.toByteArray(), 1);
+    }
+
+    private void append(byte[] bytes, int recordNum) {
+        if (recordNum == 0)
+            return;
+        if (!mHeaderKnown)
+            // Records are in map already, they are written with header
+            return;
+        if (!mBinary || mFile.length() < HEADER_SIZE) {
+            // Records are in map already
+            compact();
+            return;
+        }
+
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(mFile, true);
+            fos.write(bytes);
+            mRecordNum += recordNum;
+        } catch (IOException e) {
+            Log.w(TAG, "Can't append to " + mFile, e);
+            // Rewrite it next time
+            mBinary = false;
+        } finally {
+            Utils.closeQuietly(fos);
+        }
+
+        int liveNum = mPageTokenMap.size() + mFilenameMap.size();
+        if (mRecordNum >= COMPACT_MIN_RECORD_NUM && mRecordNum > liveNum * 2)
+            compact();
+    }
+
+    /**
+     * Write header and latest records to a new file, then replace the old one
+     */
+    public synchronized void compact() {
+        if (!mHeaderKnown) {
+            Log.w(TAG, "Header of " + mFile + " is not known, skip compact");
+            return;
+        }
+
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream dos = null;
+        try {
+            dos = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tempFile), IO_BUFFER_SIZE));
+            dos.write(getHeaderBytes());
+            for (int i = 0; i < mPageTokenMap.size(); i++)
+                writeRecord(dos, TYPE_PAGE_TOKEN, mPageTokenMap.keyAt(i), mPageTokenMap.valueAt(i));
+            for (int i = 0; i < mFilenameMap.size(); i++)
+                writeRecord(dos, TYPE_FILENAME, mFilenameMap.keyAt(i), mFilenameMap.valueAt(i));
+            dos.close();
+            dos = null;
+
+            if (!tempFile.renameTo(mFile)) {
+                mFile.delete();
+                if (!tempFile.renameTo(mFile))
+                    throw new IOException("Can't rename " + tempFile + " to " + mFile);
+            }
+            mRecordNum = mPageTokenMap.size() + mFilenameMap.size();
+            mBinary = true;
+        } catch (IOException e) {
+            Log.w(TAG, "Can't compact " + mFile, e);
+            tempFile.delete();
+        } finally {
+            Utils.closeQuietly(dos);
+        }
+    }
+
+    private byte[] getHeaderBytes() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(HEADER_SIZE);
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+        dos.writeInt(gid);
+        byte[] tokenBytes = new byte[TOKEN_SIZE];
+        if (token != null) {
+            byte[] bs = token.getBytes("US-ASCII");
+            int length = Math.min(bs.length, TOKEN_SIZE - 1);
+            tokenBytes[0] = (byte) length;
+            System.arraycopy(bs, 0, tokenBytes, 1, length);
+        }
+        dos.write(tokenBytes);
+        dos.writeInt(mode);
+        dos.writeInt(previewPageNum);
+        dos.writeInt(previewPerPage);
+        dos.writeInt(imageNum);
+        dos.writeInt(readIndex);
+        return baos.toByteArray();
+    }
+
+    private static void writeRecord(DataOutputStream dos, byte type, int index,
+            String value) throws IOException {
+        dos.writeByte(type);
+        dos.writeInt(index);
+        dos.writeUTF(value);
+    }
+
+    private static int getUTFLength(String str) {
+        int length = 0;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F)
+                length++;
+            else if (c > 0x07FF)
+                length += 3;
+            else
+                length += 2;
+        }
+        return length;
+    }
+
+    /**
+     * Only read header, for both binary and legacy file
+     *
+     * @param file
+     * @return null if can't read
+     */
+    public static EdiFile readHeader(File file) {
+        EdiFile edi = new EdiFile(file);
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(file), 128);
+            DataInputStream dis = new DataInputStream(is);
+            is.mark(4);
+            if (dis.readInt() == MAGIC) {
+                if (dis.readInt() != VERSION)
+                    return null;
+                edi.readHeaderFields(dis);
+            } else {
+                is.reset();
+                edi.readIndex = Integer.parseInt(Utils.readAsciiLine(is), 16);
+                edi.gid = Integer.parseInt(Utils.readAsciiLine(is));
+                edi.token = Utils.readAsciiLine(is);
+            }
+            return edi;
+        } catch (Throwable e) {
+            return null;
+        } finally {
+            Utils.closeQuietly(is);
+        }
+    }
+}
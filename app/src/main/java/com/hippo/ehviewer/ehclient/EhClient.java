@@ -21,8 +21,9 @@ import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Handler;
-import android.os.Process;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.text.TextUtils;
 import android.util.Pair;
 
 import com.hippo.ehviewer.Analytics;
@@ -39,6 +40,7 @@ import com.hippo.ehviewer.network.HttpHelper;
 import com.hippo.ehviewer.util.BgThread;
 import com.hippo.ehviewer.util.Config;
 import com.hippo.ehviewer.util.EhUtils;
+import com.hippo.ehviewer.util.Ui;
 import com.hippo.ehviewer.util.Utils;
 
 import org.json.JSONArray;
@@ -47,8 +49,19 @@ import org.json.JSONObject;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -81,9 +94,28 @@ public class EhClient {
     public static final int GET_AVATAR_ERROR = 0x1;
     public static final int NO_AVATAR = 0x2;
 
+    /** Size of avatar view in user panel **/
+    private static final int AVATAR_SIZE_DP = 64;
+
+    /** Requests run at the same time, others wait in queue **/
+    private static final int REQUEST_THREAD_NUM = 4;
+    private static final long KEEP_ALIVE = 60 * 1000;
+    /** Latest request latencies kept for percentiles **/
+    private static final int LATENCY_SAMPLE_NUM = 128;
+
     private final Context mContext;
     private final Handler mHandler;
     private final EhInfo mInfo;
+    private final ThreadPoolExecutor mExecutor;
+
+    /** Lock of request map and stats **/
+    private final Object mRequestLock = new Object();
+    /** Request key to the latest request of it **/
+    private final Map<Object, RequestTask> mRequestMap = new HashMap<Object, RequestTask>();
+    private long mRequestCount;
+    private long mCancelCount;
+    private final long[] mLatencies = new long[LATENCY_SAMPLE_NUM];
+    private int mLatencyCount;
 
     private static EhClient sInstance;
 
@@ -99,6 +131,144 @@ public class EhClient {
         mContext = context;
         mHandler = AppHandler.getInstance();
         mInfo = EhInfo.getInstance(context);
+
+        mExecutor = new ThreadPoolExecutor(REQUEST_THREAD_NUM, REQUEST_THREAD_NUM,
+                KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(@NonNull Runnable r) {
+                        return new BgThread(r, "EhClient-" + mCount.getAndIncrement());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private class RequestTask extends FutureTask<Void> {
+        private final Object mKey;
+        private final long mSubmitTime;
+
+        public RequestTask(Object key, Runnable runnable) {
+            super(runnable, null);
+            mKey = key;
+            mSubmitTime = SystemClock.uptimeMillis();
+        }
+
+        @Override
+        protected void done() {
+            synchronized (mRequestLock) {
+                if (mKey != null && mRequestMap.get(mKey) == this)
+                    mRequestMap.remove(mKey);
+                if (isCancelled()) {
+                    mCancelCount++;
+                } else {
+                    mLatencies[mLatencyCount % LATENCY_SAMPLE_NUM] =
+                            SystemClock.uptimeMillis() - mSubmitTime;
+                    mLatencyCount++;
+                }
+            }
+
+            try {
+                get();
+            } catch (CancellationException e) {
+                // Superseded
+            } catch (InterruptedException e) {
+                // Not blocked, done() is called after result is set
+            } catch (ExecutionException e) {
+                // Crash as it did in its own thread
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                else if (cause instanceof Error)
+                    throw (Error) cause;
+                else
+                    throw new RuntimeException(cause);
+            }
+        }
+    }
+
+    /**
+     * Run request in shared threads.<br>
+     * A request with the same key supersedes it, it is cancelled
+     * if it is still in queue. A running one goes on, and its result
+     * is dropped by checkFlag as before.
+     *
+     * @param key null if it can not be superseded
+     */
+    private void execute(Object key, Runnable runnable) {
+        RequestTask task = new RequestTask(key, runnable);
+        synchronized (mRequestLock) {
+            mRequestCount++;
+            if (key != null) {
+                RequestTask oldTask = mRequestMap.put(key, task);
+                if (oldTask != null && mExecutor.remove(oldTask))
+                    oldTask.cancel(false);
+            }
+        }
+        mExecutor.execute(task);
+    }
+
+    /**
+     * Cancel the request of the key if it is not started
+     */
+    public void cancel(Object key) {
+        synchronized (mRequestLock) {
+            RequestTask task = mRequestMap.remove(key);
+            if (task != null && mExecutor.remove(task))
+                task.cancel(false);
+        }
+    }
+
+    /**
+     * Requests waiting for thread
+     */
+    public int getQueueLength() {
+        return mExecutor.getQueue().size();
+    }
+
+    public long getRequestCount() {
+        synchronized (mRequestLock) {
+            return mRequestCount;
+        }
+    }
+
+    /**
+     * Requests superseded or cancelled before running
+     */
+    public long getCancelCount() {
+        synchronized (mRequestLock) {
+            return mCancelCount;
+        }
+    }
+
+    /**
+     * Get latency from submit to finish of latest requests
+     *
+     * @param percent 0 to 100
+     * @return latency in ms, -1 if no request is finished
+     */
+    public long getLatencyPercentile(int percent) {
+        long[] latencies;
+        synchronized (mRequestLock) {
+            latencies = Arrays.copyOf(mLatencies,
+                    Math.min(mLatencyCount, LATENCY_SAMPLE_NUM));
+        }
+        if (latencies.length == 0)
+            return -1;
+        Arrays.sort(latencies);
+        percent = Math.max(0, Math.min(percent, 100));
+        return latencies[(latencies.length - 1) * percent / 100];
+    }
+
+    @Override
+    public String toString() {
+        return "EhClient request = " + getRequestCount() + ", cancel = " + getCancelCount()
+                + ", queue = " + getQueueLength()
+                + ", latency p50 = " + getLatencyPercentile(50)
+                + "ms, p90 = " + getLatencyPercentile(90)
+                + "ms, p99 = " + getLatencyPercentile(99) + "ms";
     }
 
     public static String getUrlHeader() {
@@ -309,7 +479,7 @@ public class EhClient {
 
     public void login(final String username, final String password,
             final OnLoginListener listener) {
-        Thread thread = new Thread(new Runnable() {
+        execute(null, new Runnable() {
             @Override
             public void run() {
                 final HttpHelper hh = new HttpHelper(mContext);
@@ -337,12 +507,10 @@ public class EhClient {
                 mHandler.post(responder);
             }
         });
-        thread.setPriority(Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
     }
 
     private void getAvatar(final OnLoginListener listener) {
-        Thread thread = new Thread(new Runnable() {
+        execute(null, new Runnable() {
             @Override
             public void run() {
                 String body;
@@ -378,7 +546,8 @@ public class EhClient {
                 if (!avatarUrl.startsWith("http"))
                     avatarUrl = "http://forums.e-hentai.org/" + avatarUrl;
                 // Get avatar
-                Bitmap avatar = hp.getImage(avatarUrl);
+                int avatarSize = Ui.dp2pix(AVATAR_SIZE_DP);
+                Bitmap avatar = hp.getImage(avatarUrl, avatarSize, avatarSize);
                 // Set avatar if not null
                 if (avatar != null)
                     mInfo.setAvatar(new BitmapDrawable(EhClient.this.mContext.getResources(), avatar));
@@ -386,17 +555,39 @@ public class EhClient {
                 listener.onGetAvatar(GET_AVATAR_OK);
             }
         });
-        thread.setPriority(Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
     }
 
     // Get Gallery List
     public interface OnGetGListListener {
+        /**
+         * Rows parsed while page is still being read, they are in order
+         * and each row is given once. It might not be called at all, and
+         * onSuccess still gets all rows, the rows given here first.
+         */
+        public void onRows(Object checkFlag, List<GalleryInfo> rows);
         public void onSuccess(Object checkFlag, List<GalleryInfo> giList,
                 int maxPage);
         public void onFailure(Object checkFlag, String eMsg);
     }
 
+    private class GetGListRowsResponder implements Runnable {
+        private final OnGetGListListener listener;
+        private final Object checkFlag;
+        private final List<GalleryInfo> rows;
+
+        public GetGListRowsResponder(OnGetGListListener listener, Object checkFlag,
+                List<GalleryInfo> rows) {
+            this.listener = listener;
+            this.checkFlag = checkFlag;
+            this.rows = rows;
+        }
+
+        @Override
+        public void run() {
+            listener.onRows(checkFlag, rows);
+        }
+    }
+
     private class GetGListResponder implements Runnable {
         private final boolean isOk;
         private final OnGetGListListener listener;
@@ -438,21 +629,55 @@ public class EhClient {
         getGList(url, Config.getMode(), checkFlag, listener);
     }
 
+    public void getGList(String url, int mode, Object checkFlag,
+            OnGetGListListener listener) {
+        getGList(url, mode, checkFlag, null, listener);
+    }
+
+    /**
+     * @param key a later request with the same key cancels this one
+     *            if it is not started, null for never
+     */
     public void getGList(final String url, final int mode, final Object checkFlag,
-            final OnGetGListListener listener) {
-        Thread thread = new Thread(new Runnable() {
+            Object key, final OnGetGListListener listener) {
+        execute(key, new Runnable() {
             @Override
             public void run() {
                 HttpHelper hp = new HttpHelper(mContext);
-                String body = hp.get(url);
+                final ListParser parser = new ListParser();
+                // Rows are parsed while page is being read, and
+                // posted as soon as they are parsed
+                CharSequence body = hp.getText(url, new HttpHelper.OnReadTextListener() {
+                    private int mPostedNum = 0;
+                    private boolean mPostRows = true;
+
+                    @Override
+                    public void onStart() {
+                        parser.start(mode);
+                        // Rows of retry might not be the same
+                        if (mPostedNum > 0)
+                            mPostRows = false;
+                    }
+
+                    @Override
+                    public void onRead(CharSequence text, boolean end) {
+                        parser.parseRows(text, end);
+                        // Last rows are got in onSuccess
+                        int size = parser.giList.size();
+                        if (!end && mPostRows && size > mPostedNum) {
+                            mHandler.post(new GetGListRowsResponder(listener, checkFlag,
+                                    new ArrayList<GalleryInfo>(parser.giList.subList(mPostedNum, size))));
+                            mPostedNum = size;
+                        }
+                    }
+                });
                 GetGListResponder responder;
                 if (body == null) {
                     responder = new GetGListResponder(listener, checkFlag, hp.getEMsg());
-                } else if (!body.contains("<")) {
-                    responder = new GetGListResponder(listener, checkFlag, body);
+                } else if (TextUtils.indexOf(body, '<') == -1) {
+                    responder = new GetGListResponder(listener, checkFlag, body.toString());
                 } else {
-                    final ListParser parser = new ListParser();
-                    switch (parser.parser(body, mode)) {
+                    switch (parser.finish(body)) {
                     case ListParser.ALL:
                         responder = new GetGListResponder(listener, checkFlag,
                                 parser.giList, parser.pageNum);
@@ -475,8 +700,6 @@ public class EhClient {
                 mHandler.post(responder);
             }
         });
-        thread.setPriority(Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
     }
 
     // Get Gallery List from file search
@@ -560,7 +783,7 @@ public class EhClient {
         if (file == null && bitmap == null)
             listener.onFailure(checkFlag, mContext.getString(R.string.invalid_input));
 
-        Thread thread = new Thread(new Runnable() {
+        execute(null, new Runnable() {
             @Override
             public void run() {
                 HttpHelper hh = new HttpHelper(mContext);
@@ -636,12 +859,14 @@ public class EhClient {
                 mHandler.post(responder);
             }
         });
-        thread.setPriority(Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
     }
 
     // Get gallery Detail
     public interface OnGetGDetailListener {
+        /**
+         * Title, thumb and other detail are got, tags and comments are not
+         */
+        public void onGetHeader(GalleryDetail md);
         public void onSuccess(GalleryDetail md);
         public void onFailure(String eMsg);
     }
@@ -675,54 +900,119 @@ public class EhClient {
         }
     }
 
+    private class GetGDetailHeaderResponder implements Runnable {
+        private final OnGetGDetailListener listener;
+        private final GalleryDetail gd;
+
+        public GetGDetailHeaderResponder(OnGetGDetailListener listener, GalleryDetail gd) {
+            this.listener = listener;
+            this.gd = gd;
+        }
+
+        @Override
+        public void run() {
+            listener.onGetHeader(gd);
+        }
+    }
+
+    /**
+     * Copy detail to gallery detail if detail and preview are got
+     */
+    private static boolean getDetailHeader(DetailParser parser, GalleryDetail md) {
+        if (!parser.parseDetail() || !parser.parsePreviewInfo()
+                || parser.getPreviewList().size() == 0)
+            return false;
+
+        md.thumb = parser.thumb;
+        md.title = parser.title;
+        md.title_jpn = parser.title_jpn;
+        md.category = parser.category;
+        md.uploader = parser.uploader;
+        md.posted = parser.posted;
+        md.pages = parser.pages;
+        md.size = parser.size;
+        md.resized = parser.resized;
+        md.parent = parser.parent;
+        md.visible = parser.visible;
+        md.language = parser.language;
+        md.people = parser.people;
+        md.rating = parser.rating;
+        md.firstPage = parser.firstPage;
+        md.previewPerPage = parser.previewPerPage;
+        md.previewSum = parser.previewSum;
+        md.isFavorite = parser.isFavorite;
+        return true;
+    }
+
+    /**
+     * Scan detail page while it is read, show header as soon as
+     * comment section starts, before comments are read
+     */
+    private class GetGDetailTextListener implements HttpHelper.OnReadTextListener {
+        private final DetailParser mParser;
+        private final GalleryDetail mGd;
+        private final OnGetGDetailListener mListener;
+        /** Header is posted once even if request is retried **/
+        private boolean mHeaderGot = false;
+
+        public GetGDetailTextListener(DetailParser parser, GalleryDetail gd,
+                OnGetGDetailListener listener) {
+            mParser = parser;
+            mGd = gd;
+            mListener = listener;
+        }
+
+        @Override
+        public void onStart() {
+            mParser.start();
+        }
+
+        @Override
+        public void onRead(CharSequence text, boolean end) {
+            if (!mHeaderGot && !end && mParser.scanHead(text))
+                postHeaderIfGot();
+        }
+
+        /**
+         * @return true if header is got now or before
+         */
+        public boolean postHeaderIfGot() {
+            if (!mHeaderGot && getDetailHeader(mParser, mGd)) {
+                mHeaderGot = true;
+                mHandler.post(new GetGDetailHeaderResponder(mListener, mGd));
+            }
+            return mHeaderGot;
+        }
+    }
+
     public void getGDetail(final String url, final GalleryDetail md,
             final OnGetGDetailListener listener) {
-        Thread thread = new Thread(new Runnable() {
+        execute(null, new Runnable() {
             @Override
             public void run() {
                 HttpHelper hh = new HttpHelper(mContext);
-                String body = hh.get(url);
+                DetailParser parser = new DetailParser();
+                GetGDetailTextListener textListener =
+                        new GetGDetailTextListener(parser, md, listener);
+                CharSequence body = hh.getText(url, textListener);
                 GetGDetaiResponder responder;
                 if (body == null) {
                     responder = new GetGDetaiResponder(listener, hh.getEMsg());
-                } else if (!body.contains("<")) {
-                    responder = new GetGDetaiResponder(listener, body);
+                } else if (TextUtils.indexOf(body, '<') == -1) {
+                    responder = new GetGDetaiResponder(listener, body.toString());
                 } else {
-                    DetailParser parser = new DetailParser();
-                    int result = parser.parser(body, DetailParser.DETAIL | DetailParser.TAG
-                            | DetailParser.PREVIEW_INFO | DetailParser.PREVIEW
-                            | DetailParser.COMMENT);
+                    int result = parser.scan(body);
                     if (result == DetailParser.OFFENSIVE) {
                         responder = new GetGDetaiResponder(listener, "offensive");
                     } else if (result == DetailParser.PINING) {
                         responder = new GetGDetaiResponder(listener, "pining");
-                    } else if ((result & (DetailParser.DETAIL | DetailParser.PREVIEW_INFO |
-                            DetailParser.PREVIEW)) == (DetailParser.DETAIL | DetailParser.PREVIEW_INFO |
-                            DetailParser.PREVIEW)) {
-                        // At least get detail and preview
-                        md.thumb = parser.thumb;
-                        md.title = parser.title;
-                        md.title_jpn = parser.title_jpn;
-                        md.category = parser.category;
-                        md.uploader = parser.uploader;
-                        md.posted = parser.posted;
-                        md.pages = parser.pages;
-                        md.size = parser.size;
-                        md.resized = parser.resized;
-                        md.parent = parser.parent;
-                        md.visible = parser.visible;
-                        md.language = parser.language;
-                        md.people = parser.people;
-                        md.rating = parser.rating;
-                        md.firstPage = parser.firstPage;
-                        md.previewPerPage = parser.previewPerPage;
-                        md.previewSum = parser.previewSum;
-                        md.isFavorite = parser.isFavorite;
-
-                        md.tags = parser.tags;
+                    } else if (result == 0 && textListener.postHeaderIfGot()) {
+                        // At least get detail and preview, header is shown,
+                        // tags and comments are parsed now
+                        md.tags = parser.getTags();
                         md.previewLists = new PreviewList[md.previewSum];
-                        md.previewLists[0] = parser.previewList;
-                        md.comments = parser.comments;
+                        md.previewLists[0] = parser.getPreviewList();
+                        md.comments = parser.getComments();
 
                         md.torrentUrl = parser.torrentUrl;
                         //noinspection unchecked
@@ -739,8 +1029,6 @@ public class EhClient {
                 mHandler.post(responder);
             }
         });
-        thread.setPriority(Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
     }
 
     public interface OnGetTorrentListener {
@@ -779,7 +1067,7 @@ public class EhClient {
 
     public void getTorrent(final String url, final Pair<String, String>[] torrents,
             final OnGetTorrentListener listener) {
-        Thread thread = new Thread(new Runnable() {
+        execute(null, new Runnable() {
             @Override
             public void run() {
                 HttpHelper hh = new HttpHelper(mContext);
@@ -795,8 +1083,6 @@ public class EhClient {
                 mHandler.post(responder);
             }
         });
-        thread.setPriority(Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
     }
 
     // Get lofi gallery Detail
@@ -839,7 +1125,7 @@ public class EhClient {
 
     public void getLGDetail(final String url, final LofiGalleryDetail lgd,
             final OnGetLGDetailListener listener) {
-        Thread thread = new Thread(new Runnable() {
+        execute(null, new Runnable() {
             @Override
             public void run() {
                 HttpHelper hh = new HttpHelper(mContext);
@@ -863,8 +1149,6 @@ public class EhClient {
                 mHandler.post(responder);
             }
         });
-        thread.setPriority(Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
     }
 
 
@@ -911,9 +1195,18 @@ public class EhClient {
         }
     }
 
+    public void getPreviewList(String url, int mode, Object checkFlag,
+            OnGetPreviewListListener listener) {
+        getPreviewList(url, mode, checkFlag, null, listener);
+    }
+
+    /**
+     * @param key a later request with the same key cancels this one
+     *            if it is not started, null for never
+     */
     public void getPreviewList(final String url, final int mode, final Object checkFlag,
-            final OnGetPreviewListListener listener) {
-        Thread thread = new Thread(new Runnable() {
+            Object key, final OnGetPreviewListListener listener) {
+        execute(key, new Runnable() {
             @Override
             public void run() {
                 HttpHelper hh = new HttpHelper(mContext);
@@ -940,8 +1233,6 @@ public class EhClient {
                 mHandler.post(responder);
             }
         });
-        thread.setPriority(Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
     }
 
     // Post comment
@@ -952,7 +1243,7 @@ public class EhClient {
 
     public void comment(final String detailUrl, final String comment,
             final OnCommentListener listener) {
-        new BgThread(new Runnable() {
+        execute(null, new Runnable() {
             @Override
             public void run() {
                 HttpHelper hp = new HttpHelper(mContext);
@@ -978,7 +1269,7 @@ public class EhClient {
                         new String[]{"commenttext", comment},
                         new String[]{"postcomment", "Post New"}});
             }
-        }).start();
+        });
     }
 
     /********** Use E-hentai API ************/
@@ -1004,7 +1295,7 @@ public class EhClient {
             return;
         }
 
-        new Thread(new Runnable() {
+        execute(null, new Runnable() {
             @Override
             public void run() {
                 HttpHelper hp = new HttpHelper(mContext);
@@ -1026,7 +1317,7 @@ public class EhClient {
                 });
                 hp.postJson(getApiUrl(), json);
             }
-        }).start();
+        });
     }
 
     // vote for tag
@@ -1055,7 +1346,7 @@ public class EhClient {
             return;
         }
 
-        new Thread(new Runnable() {
+        execute(null, new Runnable() {
             @Override
             public void run() {
                 HttpHelper hp = new HttpHelper(mContext);
@@ -1077,7 +1368,7 @@ public class EhClient {
                 });
                 hp.postJson(getApiUrl(), json);
             }
-        }).start();
+        });
     }
 
     // Add to favorite
@@ -1117,7 +1408,7 @@ public class EhClient {
             final int cat, final String note,
             final OnAddToFavoriteListener listener) {
 
-        new Thread(new Runnable() {
+        execute(null, new Runnable() {
             @Override
             public void run() {
                 HttpHelper hp = new HttpHelper(mContext);
@@ -1154,7 +1445,7 @@ public class EhClient {
                         new String[]{"favnote", note == null ? "" : note},
                         new String[]{"submit", "Apply Changes"}});
             }
-        }).start();
+        });
     }
 
     // modifyFavorite
@@ -1190,7 +1481,7 @@ public class EhClient {
      */
     public void modifyFavorite(final int[] gids, final int dstCat, final int srcCat,
             final OnModifyFavoriteListener listener) {
-        new BgThread(new Runnable() {
+        execute(null, new Runnable() {
             @Override
             public void run() {
                 int i;
@@ -1232,7 +1523,7 @@ public class EhClient {
 
                 hp.postForm(getFavoriteUrlWithCat(srcCat, 0), args);
             }
-        }).start();
+        });
     }
 
     public interface OnGetPopularListener {
@@ -1248,7 +1539,7 @@ public class EhClient {
             listener.onFailure(e.getMessage());
             return;
         }
-        new BgThread(new Runnable() {
+        execute(null, new Runnable() {
             @Override
             public void run() {
                 HttpHelper hp = new HttpHelper(mContext);
@@ -1304,7 +1595,7 @@ public class EhClient {
                 });
                 hp.postJson(API_EHVIEWER, json);
             }
-        }).start();
+        });
     }
 
     public interface OnGetApiGalleryInfoListener {
@@ -1370,7 +1661,7 @@ public class EhClient {
     }
 
     public void getApiGalleryInfo(final Object checkFlag, final int[] gids, final String[] tokens, final OnGetApiGalleryInfoListener l) {
-        new BgThread() {
+        execute(null, new Runnable() {
             @Override
             public void run() {
                 GetApiGalleryInfoResponder responder;
@@ -1419,7 +1710,7 @@ public class EhClient {
                 }
                 mHandler.post(responder);
             }
-        }.start();
+        });
     }
 
     public ApiGalleryInfo[] getApiGalleryInfo(int[] gids, String[] tokens) {
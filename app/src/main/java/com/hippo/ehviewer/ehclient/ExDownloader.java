@@ -18,11 +18,13 @@ package com.hippo.ehviewer.ehclient;
 
 import android.app.NotificationManager;
 import android.content.Context;
-import android.os.Process;
 import android.support.v4.app.NotificationCompat;
+import android.util.SparseArray;
 
 import com.hippo.ehviewer.R;
+import com.hippo.ehviewer.network.ConnectionPool;
 import com.hippo.ehviewer.network.HttpHelper;
+import com.hippo.ehviewer.network.RateLimiter;
 import com.hippo.ehviewer.util.AutoExpandArray;
 import com.hippo.ehviewer.util.BgThread;
 import com.hippo.ehviewer.util.Config;
@@ -30,32 +32,55 @@ import com.hippo.ehviewer.util.EhUtils;
 import com.hippo.ehviewer.util.Log;
 import com.hippo.ehviewer.util.Utils;
 
-import java.io.BufferedInputStream;
-import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
-
-// TODO what a mess
-public final class ExDownloader implements Runnable {
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Download images of a gallery in two stages.<br>
+ * Token stage fetches detail pages to get page tokens. Once preview page
+ * number is known, all preview pages with missing tokens are fetched,
+ * several at a time.
+ * Image stage fetches image pages and images, on at most
+ * Config.getDownloadThread() threads. Both stages run tasks by order,
+ * reader requested indexes first, then sequential prefetch from start index.
+ * Image task without page token waits for token task of its page, without
+ * occupying a thread.
+ *
+ * @author Hippo
+ *
+ */
+public final class ExDownloader {
 
     private static final String TAG = ExDownloader.class.getSimpleName();
 
-    private static final int IO_BUFFER_SIZE = 8 * 1024;
-
     private static final String[] URL_509_SUFFIX_ARRAY = {
             "/509.gif",
             "/509s.gif"
     };
 
+    private static final long WORKER_KEEP_ALIVE = 3000;
+    /** Preview pages fetched at the same time, RateLimiter still works **/
+    private static final int TOKEN_WORKER_NUM = 3;
+
+    /** Prefetch task for index before start index runs after all others **/
+    private static final long WRAP_ORDER = 1L << 32;
+
+    private static final int INIT_NONE = 0;
+    private static final int INIT_RUNNING = 1;
+    private static final int INIT_DONE = 2;
+
+    private static final int STATE_QUEUED = 0;
+    private static final int STATE_WAIT_TOKEN = 1;
+    private static final int STATE_RUNNING = 2;
+
     private final Context mContext;
     private final ExDownloaderManager mManager;
 
@@ -70,27 +95,32 @@ public final class ExDownloader implements Runnable {
     private final AutoExpandArray<String> mImageFilenameArray = new AutoExpandArray<String>();
 
     private volatile int mOwnerNum = 0;
-    private Thread mMainThread = null;
     /** Only work for EhClient.MODE_LOFI when do not know image number **/
-    private int mCurMaxPreviewPage = -1;
+    private volatile int mCurMaxPreviewPage = -1;
 
     private volatile int mStartIndex = 0;
-    private final Queue<Integer> mRequestIndexArray = new ConcurrentLinkedQueue<Integer>();
-    private final Queue<Integer> mNoTokenIndexArray = new ConcurrentLinkedQueue<Integer>();
-    private final Queue<Integer> mRequestPageIndexArray = new ConcurrentLinkedQueue<Integer>();
-
-    /** The set contains the requsting index **/
-    private final Set<Integer> mRequstingIndexSet = new HashSet<Integer>();
-
-    private volatile int mCurRequestPageIndex = -1;
 
     private final int mWorkerNum;
-    private final Worker[] mWorkerArray;
-    private final HttpHelper.DownloadControlor[] mControlorArray;
-
-    private final Object mPageTokenLock = new Object();
-    private final Object mWorkerLock = new Object();
-    private final Object mWorkerGetIndexLock = new Object();
+    /** The max thread number of image stage **/
+    private volatile int mWorkerLimit;
+    private final ThreadPoolExecutor mTokenExecutor;
+    private final ThreadPoolExecutor mImageExecutor;
+    private final AtomicLong mRequestSeq = new AtomicLong();
+
+    /** Guard all task state below, never get mDownloadLock in it **/
+    private final Object mTaskLock = new Object();
+    private int mInitState = INIT_NONE;
+    /** Image tasks which are queued, waiting for page token or running **/
+    private final SparseArray<ImageTask> mImageTaskMap = new SparseArray<ImageTask>();
+    /** Token tasks, key is preview page index **/
+    private final SparseArray<TokenTask> mTokenTaskMap = new SparseArray<TokenTask>();
+    /** Index requested before init or in pause **/
+    private final List<Integer> mPendingRequestList = new ArrayList<Integer>();
+    private final Set<Integer> mFinishedIndexSet = new HashSet<Integer>();
+    private final Set<Integer> mFailedIndexSet = new HashSet<Integer>();
+    private int mWaitingTokenNum = 0;
+    /** Stop finding preview pages without waiter, until next schedule request **/
+    private boolean mDiscoveryFailed = false;
 
     private volatile boolean mDownloadMode = false;
     private volatile boolean mPauseWork = false;
@@ -104,9 +134,10 @@ public final class ExDownloader implements Runnable {
     private volatile long mLastUpdateSpeedTime = 0;
     private volatile long mAccumulateSize;
     private volatile HashSet<Integer> mDownloadIndexSet;
+    private boolean mDownloadOverNotified = false;
     private final Object mDownloadLock = new Object();
 
-    private int mCurReadIndex = 0;
+    private final EdiFile mEdiFile;
 
     /**
      * Do no work in UI thread
@@ -140,12 +171,30 @@ public final class ExDownloader implements Runnable {
         mMode = mode;
 
         mWorkerNum = Config.getDownloadThread();
-        mWorkerArray = new Worker[mWorkerNum];
-        mControlorArray = new HttpHelper.DownloadControlor[mWorkerNum];
+        mWorkerLimit = mWorkerNum;
+        mTokenExecutor = createExecutor(TOKEN_WORKER_NUM, "Token");
+        mImageExecutor = createExecutor(mWorkerNum, "Image");
 
         // Make sure dir
         mDir = EhUtils.getGalleryDir(mGid, mTitle);
         Utils.ensureDir(mDir, true);
+        mEdiFile = new EdiFile(new File(mDir, EhUtils.EH_DOWNLOAD_FILENAME));
+    }
+
+    private ThreadPoolExecutor createExecutor(int threadNum, final String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threadNum, threadNum,
+                WORKER_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new BgThread(r, "ExDownloader-" + name + "-" + mGid);
+                    }
+                });
+        // Threads created by execute() run tasks without queuing them,
+        // start them first to keep priority order for the first tasks
+        executor.prestartAllCoreThreads();
+        return executor;
     }
 
     public void setListenerForImageSet(ListenerForImageSet l) {
@@ -168,39 +217,35 @@ public final class ExDownloader implements Runnable {
         return mOwnerNum == 0;
     }
 
+    /**
+     * Cancel all tasks, release threads. It can't be used any more.
+     */
     void stop() {
-        // TODO stop all thread, release all resources
-        mStopWork = true;
-        // Stop download
-        for (HttpHelper.DownloadControlor c : mControlorArray) {
-            if (c != null)
-                c.stop();
+        synchronized (mTaskLock) {
+            mStopWork = true;
+            cancelAllLocked();
+            mTokenExecutor.shutdown();
+            mImageExecutor.shutdown();
         }
-        // Wake all thread
-        synchronized(mPageTokenLock) {mPageTokenLock.notifyAll();}
-        synchronized(mWorkerGetIndexLock) {mWorkerGetIndexLock.notifyAll();}
-        synchronized(mWorkerLock) {mWorkerLock.notifyAll();}
+
+        Log.d(TAG, "ExDownloader stop, " + ConnectionPool.getInstance()
+                + ", " + RateLimiter.getInstance());
     }
 
     boolean pause(boolean pause) {
         if (mOwnerNum > 1)
             return false;
 
-        mPauseWork = pause;
-        if (mPauseWork) {
-            // Stop download
-            for (HttpHelper.DownloadControlor c : mControlorArray)
-                if (c != null) c.stop();
-            // Wake all thread
-            synchronized(mPageTokenLock) {mPageTokenLock.notifyAll();}
-            synchronized(mWorkerGetIndexLock) {mWorkerGetIndexLock.notifyAll();}
-            synchronized(mWorkerLock) {mWorkerLock.notifyAll();}
-        } else {
-            // Reset download
-            for (HttpHelper.DownloadControlor c : mControlorArray)
-                if (c != null) c.reset();
-            ensureStart();
-            ensureWorkers();
+        synchronized (mTaskLock) {
+            mPauseWork = pause;
+            if (mPauseWork) {
+                cancelAllLocked();
+            } else {
+                mDiscoveryFailed = false;
+                ensureInitLocked();
+                flushPendingRequestLocked();
+                schedulePrefetchLocked();
+            }
         }
         return true;
     }
@@ -220,16 +265,34 @@ public final class ExDownloader implements Runnable {
     public void setDownloadMode(boolean downloadMode) {
         synchronized (mDownloadLock) {
             if (downloadMode) {
-                setStartIndex(0);
-                if (mDownloadIndexSet == null)
+                if (mDownloadIndexSet == null) {
                     mDownloadIndexSet = new HashSet<Integer>();
-                if (mDownloadMode && mLfd != null)
+                    // Count images got before
+                    synchronized (mTaskLock) {
+                        mDownloadIndexSet.addAll(mFinishedIndexSet);
+                    }
+                }
+                mDownloadOverNotified = false;
+                if (mLfd != null)
                     mLfd.onStart(mGid);
             } else {
                 mDownloadIndexSet = null;
             }
             mDownloadMode = downloadMode;
         }
+
+        if (downloadMode) {
+            // Download from the beginning, try failed images again
+            mStartIndex = 0;
+            synchronized (mTaskLock) {
+                mFailedIndexSet.clear();
+                mDiscoveryFailed = false;
+                ensureInitLocked();
+                reorderPrefetchLocked();
+                schedulePrefetchLocked();
+            }
+            checkOver();
+        }
     }
 
     public void setStartIndex(int startIndex) {
@@ -241,18 +304,111 @@ public final class ExDownloader implements Runnable {
             else
                 mStartIndex = startIndex;
 
-            ensureStart();
-            ensureWorkers();
+            synchronized (mTaskLock) {
+                mDiscoveryFailed = false;
+                ensureInitLocked();
+                reorderPrefetchLocked();
+                schedulePrefetchLocked();
+            }
         }
     }
 
+    /**
+     * Download the image as soon as possible. Download it again
+     * even if it is downloaded or failed.
+     *
+     * @param index
+     */
     public void addTargetIndex(int index) {
         if (mImageNum != -1 && index >= mImageNum)
             return;
 
-        mRequestIndexArray.offer(index);
-        ensureStart();
-        ensureWorkers();
+        synchronized (mTaskLock) {
+            mFinishedIndexSet.remove(index);
+            mFailedIndexSet.remove(index);
+            mDiscoveryFailed = false;
+
+            if (mStopWork)
+                return;
+            if (mInitState != INIT_DONE || mPauseWork) {
+                mPendingRequestList.add(index);
+                ensureInitLocked();
+                return;
+            }
+
+            long order = getRequestOrder();
+            ImageTask task = mImageTaskMap.get(index);
+            if (task == null) {
+                task = new ImageTask(index, order);
+                mImageTaskMap.put(index, task);
+                mImageExecutor.execute(task);
+            } else if (task.mState == STATE_QUEUED) {
+                if (mImageExecutor.getQueue().remove(task)) {
+                    task.mOrder = order;
+                    mImageExecutor.execute(task);
+                }
+            } else if (task.mState == STATE_WAIT_TOKEN) {
+                // Hurry up token task
+                requestPageTokenLocked(index / mPreviewPerPage, order, null);
+            }
+        }
+    }
+
+    /**
+     * Cancel the task of the index
+     *
+     * @param index
+     */
+    public void cancel(int index) {
+        synchronized (mTaskLock) {
+            ImageTask task = mImageTaskMap.get(index);
+            if (task != null)
+                cancelLocked(task);
+        }
+    }
+
+    /**
+     * Set how many workers this downloader can use, between 1 and
+     * Config.getDownloadThread(). Extra workers quit after current image.
+     *
+     * @param limit
+     */
+    public void setWorkerLimit(int limit) {
+        limit = Math.max(1, Math.min(limit, mWorkerNum));
+        if (limit == mWorkerLimit)
+            return;
+
+        mWorkerLimit = limit;
+        synchronized (mTaskLock) {
+            if (mStopWork)
+                return;
+            if (limit > mImageExecutor.getMaximumPoolSize()) {
+                mImageExecutor.setMaximumPoolSize(limit);
+                mImageExecutor.setCorePoolSize(limit);
+                mImageExecutor.prestartAllCoreThreads();
+            } else {
+                mImageExecutor.setCorePoolSize(limit);
+                mImageExecutor.setMaximumPoolSize(limit);
+            }
+        }
+    }
+
+    public int getWorkerLimit() {
+        return mWorkerLimit;
+    }
+
+    /**
+     * Workers which can do nothing but wait for page token
+     *
+     * @return
+     */
+    public int getTokenWaitingWorkerNum() {
+        synchronized (mTaskLock) {
+            if (mWaitingTokenNum == 0)
+                return 0;
+            int busy = mImageExecutor.getActiveCount() + mImageExecutor.getQueue().size();
+            return Math.max(0, Math.min(mWorkerLimit - busy, mWaitingTokenNum));
+        }
     }
 
     public void setCurReadIndex(final int index) {
@@ -262,6 +418,36 @@ public final class ExDownloader implements Runnable {
                 writeCurReadIndex(index);
             }
         }.start();
+
+        if (!mDownloadMode) {
+            synchronized (mTaskLock) {
+                dropFarRequestsLocked(index);
+            }
+        }
+    }
+
+    /**
+     * Reader-requested tasks which are not started and far from read
+     * index go back to prefetch order, or are cancelled if they are
+     * before start index
+     */
+    private void dropFarRequestsLocked(int readIndex) {
+        for (int i = mImageTaskMap.size() - 1; i >= 0; i--) {
+            ImageTask task = mImageTaskMap.valueAt(i);
+            if (task.mOrder >= 0 || task.mState == STATE_RUNNING
+                    || Math.abs(task.mIndex - readIndex) <= 1)
+                continue;
+
+            if (task.mIndex < mStartIndex) {
+                cancelLocked(task);
+            } else if (task.mState == STATE_WAIT_TOKEN) {
+                // Token task queues it with this order
+                task.mOrder = getPrefetchOrder(task.mIndex);
+            } else if (mImageExecutor.getQueue().remove(task)) {
+                task.mOrder = getPrefetchOrder(task.mIndex);
+                mImageExecutor.execute(task);
+            }
+        }
     }
 
     public int getMaxEnsureIndex() {
@@ -295,164 +481,275 @@ public final class ExDownloader implements Runnable {
      * @return
      */
     public boolean isDownloading(int index) {
-        return mRequstingIndexSet.contains(index);
+        synchronized (mTaskLock) {
+            ImageTask task = mImageTaskMap.get(index);
+            return task != null && task.mState != STATE_QUEUED;
+        }
     }
 
-    private synchronized void ensureStart() {
-        if (mMainThread != null)
-            return;
+    private long getRequestOrder() {
+        // Newer request first
+        return Long.MIN_VALUE / 2 - mRequestSeq.incrementAndGet();
+    }
 
-        mMainThread = new BgThread(this);
-        mMainThread.setPriority(Process.THREAD_PRIORITY_BACKGROUND);
-        mMainThread.start();
+    private long getPrefetchOrder(int index) {
+        int startIndex = mStartIndex;
+        return index >= startIndex ? index - startIndex : WRAP_ORDER + index;
     }
 
-    private File getExDownloadInfoFile() {
-        return new File(mDir, EhUtils.EH_DOWNLOAD_FILENAME);
+    /**
+     * The images number whose page token can be got now
+     */
+    private int getKnownImageNum() {
+        if (mImageNum != -1)
+            return mImageNum;
+        else if (mPreviewPerPage > 0) {
+            // Page tokens read from file count too
+            int tokenPageNum = (mPageTokeArray.maxValidIndex() + mPreviewPerPage) / mPreviewPerPage;
+            return Math.max(Math.max(mCurMaxPreviewPage, mPreviewPageNum), tokenPageNum)
+                    * mPreviewPerPage;
+        } else
+            return 0;
     }
 
-    private boolean checkMode(int samlpe, int target) {
-        return samlpe <= EhClient.MODE_EX && target <= EhClient.MODE_EX
-                || samlpe == EhClient.MODE_LOFI && target == EhClient.MODE_LOFI;
+    private void ensureInitLocked() {
+        if (mInitState != INIT_NONE || mStopWork)
+            return;
+
+        mInitState = INIT_RUNNING;
+        mTokenExecutor.execute(new InitTask());
+    }
+
+    private void flushPendingRequestLocked() {
+        if (mPendingRequestList.isEmpty())
+            return;
+
+        List<Integer> list = new ArrayList<Integer>(mPendingRequestList);
+        mPendingRequestList.clear();
+        // Keep request order
+        for (int index : list)
+            addTargetIndex(index);
     }
 
     /**
-     * This function parser the download info file.<br>
-     * The file look like this:<br>
-     * <code>
-     * 00000000<br>
-     * 728874<br>
-     * 306429c222<br>
-     * 1<br>
-     * 4<br>
-     * 40<br>
-     * 128<br>
-     * 1 43a64e6e79<br>
-     * </code><br>
-     * Fist line is gid, a integer.
-     * Second line is token, a ten-character string.
-     * Third line is mode.
-     * Fourth line is preview page num.
-     * Fifth line is preview per page.
-     *
-     * @param ediFile
-     * @return
+     * Add prefetch tasks for all known images, which are not
+     * downloaded or failed.
      */
-    private synchronized boolean parserEdiFile(File ediFile) {
-        if (!ediFile.exists() || !ediFile.isFile() || !ediFile.canRead()
-                || !ediFile.canWrite())
-            return false;
+    private void schedulePrefetchLocked() {
+        if (mInitState != INIT_DONE || mStopWork || mPauseWork)
+            return;
 
-        InputStream is = null;
-        try {
-            is = new BufferedInputStream(new FileInputStream(ediFile),
-                    IO_BUFFER_SIZE);
-            // skip read index
-            Utils.readAsciiLine(is);
-            if (mGid != Integer.valueOf(Utils.readAsciiLine(is)) ||
-                    !mToken.equals(Utils.readAsciiLine(is)))
-                return false;
+        int end = getKnownImageNum();
+        int begin = mDownloadMode ? 0 : Math.min(mStartIndex, end);
+        for (int i = begin; i < end; i++) {
+            if (mImageTaskMap.get(i) != null || mFinishedIndexSet.contains(i)
+                    || mFailedIndexSet.contains(i))
+                continue;
+            ImageTask task = new ImageTask(i, getPrefetchOrder(i));
+            mImageTaskMap.put(i, task);
+            mImageExecutor.execute(task);
+        }
 
-            if (!checkMode(Integer.valueOf(Utils.readAsciiLine(is)), mMode)) {
-                // If preview info is not same
-                // skip preview page num and preview per page
-                Utils.readAsciiLine(is);
-                Utils.readAsciiLine(is);
-            } else {
-                mPreviewPageNum = Integer.valueOf(Utils.readAsciiLine(is));
-                mPreviewPerPage = Integer.valueOf(Utils.readAsciiLine(is));
+        if (mDiscoveryFailed || mPreviewPerPage <= 0)
+            return;
+
+        if (mImageNum == -1) {
+            // For EhClient.MODE_LOFI, find next preview page
+            requestPageTokenLocked(end / mPreviewPerPage, getPrefetchOrder(end), null);
+        } else {
+            discoverPageTokenLocked();
+        }
+    }
+
+    /**
+     * Fetch all preview pages which have missing page token, so image
+     * tasks need not wait for them later. Pages near start index first.
+     */
+    private void discoverPageTokenLocked() {
+        int perPage = mPreviewPerPage;
+        int imageNum = mImageNum;
+        int startIndex = mStartIndex;
+        for (int page = 0; page * perPage < imageNum; page++) {
+            if (mTokenTaskMap.get(page) != null)
+                continue;
+
+            int first = page * perPage;
+            int last = Math.min(first + perPage, imageNum) - 1;
+            for (int i = first; i <= last; i++) {
+                if (mPageTokeArray.get(i) == null) {
+                    int orderIndex = startIndex >= first && startIndex <= last ? startIndex : first;
+                    requestPageTokenLocked(page, getPrefetchOrder(orderIndex), null);
+                    break;
+                }
             }
+        }
+    }
 
-            mImageNum = Integer.parseInt(Utils.readAsciiLine(is));
-            if (mImageNum != -1) {
-                mPageTokeArray.setCapacity(mImageNum);
-                mImageFilenameArray.setCapacity(mImageNum);
+    /**
+     * Update order of queued prefetch tasks after start index changed
+     */
+    private void reorderPrefetchLocked() {
+        List<Runnable> list = new ArrayList<Runnable>();
+        mImageExecutor.getQueue().drainTo(list);
+        for (Runnable r : list) {
+            ImageTask task = (ImageTask) r;
+            if (task.mOrder >= 0) {
+                if (!mDownloadMode && task.mIndex < mStartIndex) {
+                    // Reader do not need it now
+                    mImageTaskMap.remove(task.mIndex);
+                    continue;
+                }
+                task.mOrder = getPrefetchOrder(task.mIndex);
             }
-            else if (mPreviewPageNum != -1 && mPreviewPerPage != -1) {
-                mPageTokeArray.setCapacity(mPreviewPageNum * mPreviewPerPage);
-                mImageFilenameArray.setCapacity(mPreviewPageNum * mPreviewPerPage);
+            mImageExecutor.execute(task);
+        }
+    }
+
+    private void requestPageTokenLocked(int pageIndex, long order, ImageTask waiter) {
+        TokenTask task = mTokenTaskMap.get(pageIndex);
+        if (task == null) {
+            task = new TokenTask(pageIndex, order);
+            mTokenTaskMap.put(pageIndex, task);
+            if (waiter != null)
+                task.mWaiterList.add(waiter);
+            mTokenExecutor.execute(task);
+        } else {
+            if (waiter != null)
+                task.mWaiterList.add(waiter);
+            if (order < task.mOrder && mTokenExecutor.getQueue().remove(task)) {
+                task.mOrder = order;
+                mTokenExecutor.execute(task);
             }
+        }
+    }
 
-            // read page token info
-            try {
-                while(true) {
-                    String line = Utils.readAsciiLine(is);
-                    int pos = line.indexOf(" ");
-                    if (pos == -1 && line.length() - pos != 11)
-                        continue;
-                    try {
-                        int index = Integer.parseInt(line.substring(0, pos));
-                        String token = line.substring(pos + 1);
-                        mPageTokeArray.set(index, token);
-                    } catch (NumberFormatException e) {
-                        continue;
-                    }
-                }
-            } catch (EOFException e) {
-                // Empty
+    private void cancelLocked(ImageTask task) {
+        task.mCancelled = true;
+        mImageTaskMap.remove(task.mIndex);
+        switch (task.mState) {
+        case STATE_QUEUED:
+            mImageExecutor.getQueue().remove(task);
+            break;
+        case STATE_RUNNING:
+            task.mControlor.stop();
+            break;
+        case STATE_WAIT_TOKEN:
+            // Token task will skip it
+            break;
+        }
+    }
+
+    /**
+     * Remove all queued tasks, stop all running tasks.
+     * Requested indexes are kept for resume.
+     */
+    private void cancelAllLocked() {
+        List<Runnable> list = new ArrayList<Runnable>();
+        mTokenExecutor.getQueue().drainTo(list);
+        for (Runnable r : list) {
+            if (r instanceof InitTask) {
+                mInitState = INIT_NONE;
+            } else {
+                TokenTask task = (TokenTask) r;
+                mTokenTaskMap.remove(task.mPageIndex);
+                mWaitingTokenNum -= task.mWaiterList.size();
             }
-            return true;
-        } catch (Throwable e) {
-            // If read error
-            return false;
-        } finally {
-            Utils.closeQuietly(is);
-        }
-    }
-
-    private synchronized void writeEdiFile(File ediFile) {
-        try {
-            FileWriter writer = new FileWriter(ediFile);
-            writer.write(String.format("%08x", mCurReadIndex));
-            writer.write("\n");
-            writer.write(String.valueOf(mGid));
-            writer.write("\n");
-            writer.write(mToken);
-            writer.write("\n");
-            writer.write(mMode + '0');
-            writer.write("\n");
-            writer.write(String.valueOf(mPreviewPageNum));
-            writer.write("\n");
-            writer.write(String.valueOf(mPreviewPerPage));
-            writer.write("\n");
-            writer.write(String.valueOf(mImageNum));
-            writer.write("\n");
-            for (int i = 0; i < mPageTokeArray.length(); i++) {
-                String pageToken = mPageTokeArray.get(i);
-                if (pageToken != null) {
-                    writer.write(String.valueOf(i));
-                    writer.write(" ");
-                    writer.write(pageToken);
-                    writer.write("\n");
-                }
+        }
+
+        for (int i = mImageTaskMap.size() - 1; i >= 0; i--) {
+            ImageTask task = mImageTaskMap.valueAt(i);
+            if (task.mOrder < 0)
+                mPendingRequestList.add(task.mIndex);
+            cancelLocked(task);
+        }
+    }
+
+    /**
+     * In download mode, notify download over if there is no task
+     */
+    private void checkOver() {
+        synchronized (mTaskLock) {
+            if (mInitState != INIT_DONE || mImageTaskMap.size() != 0 ||
+                    mTokenTaskMap.size() != 0 || mPauseWork || mStopWork)
+                return;
+        }
+
+        synchronized (mDownloadLock) {
+            if (mDownloadMode && mLfd != null && mDownloadIndexSet != null
+                    && !mDownloadOverNotified) {
+                mDownloadOverNotified = true;
+                mLfd.onDownloadOver(mGid,
+                        getMaxEnsureIndex() + 1 - mDownloadIndexSet.size());
             }
-            writer.flush();
-            writer.close();
-        } catch (IOException e) {}
+        }
     }
 
-    private synchronized void writeCurReadIndex(int index) {
-        mCurReadIndex = index;
-        try {
-            RandomAccessFile raf = new RandomAccessFile(getExDownloadInfoFile(), "rw");
-            raf.write(String.format("%08x", mCurReadIndex).getBytes());
-            raf.close();
-        } catch (Throwable e) {}
+    private boolean checkMode(int samlpe, int target) {
+        return samlpe <= EhClient.MODE_EX && target <= EhClient.MODE_EX
+                || samlpe == EhClient.MODE_LOFI && target == EhClient.MODE_LOFI;
     }
 
-    public static int readCurReadIndex(int gid, String title) {
-        try {
-            RandomAccessFile raf = new RandomAccessFile(new File(EhUtils.getGalleryDir(gid, title),
-                    EhUtils.EH_DOWNLOAD_FILENAME), "r");
-            int index = Integer.parseInt(raf.readLine(), 16);
-            raf.close();
-            return index;
-        } catch (Throwable e) {
-            return 0;
+    /**
+     * Read download info file, page tokens and filenames are put to arrays
+     *
+     * @return false if the file can't be used
+     */
+    private synchronized boolean parserEdiFile() {
+        if (!mEdiFile.read(mPageTokeArray, mImageFilenameArray))
+            return false;
+        if (mGid != mEdiFile.gid || !mToken.equals(mEdiFile.token))
+            return false;
+
+        if (checkMode(mEdiFile.mode, mMode)) {
+            mPreviewPageNum = mEdiFile.previewPageNum;
+            mPreviewPerPage = mEdiFile.previewPerPage;
+        }
+        mImageNum = mEdiFile.imageNum;
+        if (mImageNum != -1) {
+            mPageTokeArray.setCapacity(mImageNum);
+            mImageFilenameArray.setCapacity(mImageNum);
+        } else if (mPreviewPageNum != -1 && mPreviewPerPage != -1) {
+            mPageTokeArray.setCapacity(mPreviewPageNum * mPreviewPerPage);
+            mImageFilenameArray.setCapacity(mPreviewPageNum * mPreviewPerPage);
         }
+        return true;
+    }
+
+    /**
+     * Update header of download info file if preview info changed
+     */
+    private synchronized void writeEdiHeader() {
+        if (mEdiFile.gid == mGid && mToken.equals(mEdiFile.token)
+                && mEdiFile.mode == mMode
+                && mEdiFile.previewPageNum == mPreviewPageNum
+                && mEdiFile.previewPerPage == mPreviewPerPage
+                && mEdiFile.imageNum == mImageNum)
+            return;
+
+        mEdiFile.gid = mGid;
+        mEdiFile.token = mToken;
+        mEdiFile.mode = mMode;
+        mEdiFile.previewPageNum = mPreviewPageNum;
+        mEdiFile.previewPerPage = mPreviewPerPage;
+        mEdiFile.imageNum = mImageNum;
+        mEdiFile.writeHeader();
     }
 
-    private void getDetailInfo(int pageIndex, File ediFile, boolean needPreviewInfo) throws Exception {
+    private void writeCurReadIndex(int index) {
+        mEdiFile.writeReadIndex(index);
+    }
+
+    public static int readCurReadIndex(int gid, String title) {
+        EdiFile edi = EdiFile.readHeader(new File(EhUtils.getGalleryDir(gid, title),
+                EhUtils.EH_DOWNLOAD_FILENAME));
+        return edi == null ? 0 : edi.readIndex;
+    }
+
+    /**
+     * Get page tokens of a preview page, and save them to file.
+     * Token tasks call it concurrently, only network is out of lock.
+     */
+    private void getDetailInfo(int pageIndex, boolean needPreviewInfo) throws Exception {
         HttpHelper hh = new HttpHelper(mContext);
         EdDetailParser edp = new EdDetailParser();
         String url = EhClient.getDetailUrl(mGid, mToken, pageIndex, mMode);
@@ -462,52 +759,70 @@ public final class ExDownloader implements Runnable {
             throw new Exception(hh.getEMsg() != null ? hh.getEMsg() : "Http error, body == null");
         if (!edp.parser(body, mMode, needPreviewInfo))
             throw new Exception(edp.emsg != null ? edp.emsg : "Parser error, body is \n" + body);
-        if (edp.previewStartIndex != pageIndex * mPreviewPerPage)
-            throw new Exception("预测与实际不匹配, 预测: " + edp.previewStartIndex +
-                    ", 实际: " + pageIndex * mPreviewPerPage + ", body is \n" + body);
-
-        List<String> pageTokenArray = edp.pageTokenArray;
-        if (needPreviewInfo)
-            mPreviewPerPage = pageTokenArray.size();
-        if (mMode == EhClient.MODE_LOFI) {
-            // update mCurMaxPreviewPage
-            if (edp.isLastPage) {
-                mPreviewPageNum = pageIndex + 1;
-                mImageNum = pageIndex * mPreviewPerPage + pageTokenArray.size();
-            } else if (mPreviewPageNum == -1) {
-                mCurMaxPreviewPage = Math.max(mCurMaxPreviewPage, pageIndex + 1);
+
+        synchronized (this) {
+            List<String> pageTokenArray = edp.pageTokenArray;
+            if (needPreviewInfo)
+                mPreviewPerPage = pageTokenArray.size();
+            if (edp.previewStartIndex != pageIndex * mPreviewPerPage) {
+                // Page tokens are still right, just put them to the right place
+                Log.w(TAG, "Preview start index does not match, expect: " +
+                        pageIndex * mPreviewPerPage + ", get: " + edp.previewStartIndex);
+                if (edp.previewStartIndex < 0)
+                    throw new Exception("Invalid preview start index " + edp.previewStartIndex);
+                // Preview number per page is changed, like thumbnail rows
+                // setting of the site, so predicted ranges are all wrong
+                if (pageIndex > 0 && edp.previewStartIndex % pageIndex == 0)
+                    setPreviewPerPage(edp.previewStartIndex / pageIndex, pageIndex);
             }
-        } else {
-            if (needPreviewInfo) {
-                mPreviewPageNum = edp.previewPageNum;
-                mImageNum = edp.imageNum;
-                mPageTokeArray.setCapacity(mPreviewPageNum * mPreviewPerPage);
-                mImageFilenameArray.setCapacity(mPreviewPageNum * mPreviewPerPage);
+
+            if (mMode == EhClient.MODE_LOFI) {
+                // update mCurMaxPreviewPage
+                if (edp.isLastPage) {
+                    mPreviewPageNum = pageIndex + 1;
+                    mImageNum = edp.previewStartIndex + pageTokenArray.size();
+                } else if (mPreviewPageNum == -1) {
+                    mCurMaxPreviewPage = Math.max(mCurMaxPreviewPage, pageIndex + 1);
+                }
+            } else {
+                if (needPreviewInfo) {
+                    mPreviewPageNum = edp.previewPageNum;
+                    mImageNum = edp.imageNum;
+                    mPageTokeArray.setCapacity(mPreviewPageNum * mPreviewPerPage);
+                    mImageFilenameArray.setCapacity(mPreviewPageNum * mPreviewPerPage);
+                }
             }
-        }
-        for (int i = 0; i < pageTokenArray.size(); i++)
-            mPageTokeArray.set(i + edp.previewStartIndex, pageTokenArray.get(i));
+            for (int i = 0; i < pageTokenArray.size(); i++)
+                mPageTokeArray.set(i + edp.previewStartIndex, pageTokenArray.get(i));
 
-        writeEdiFile(ediFile);
+            writeEdiHeader();
+            mEdiFile.appendPageTokens(edp.previewStartIndex, pageTokenArray);
+        }
     }
 
-    private void ensureWorkers() {
-        if (mPreviewPerPage == -1)
+    /**
+     * Update preview number per page and what depends on it
+     */
+    private synchronized void setPreviewPerPage(int previewPerPage, int pageIndex) {
+        if (previewPerPage <= 0 || previewPerPage == mPreviewPerPage)
             return;
 
-        synchronized(mWorkerArray) {
-            for (int i = 0; i < mWorkerArray.length; i++) {
-                if (mWorkerArray[i] == null) {
-                    Worker worker = new Worker(i);
-                    worker.start();
-                    mWorkerArray[i] = worker;
-                    mControlorArray[i] = new HttpHelper.DownloadControlor();
-                }
-            }
+        mPreviewPerPage = previewPerPage;
+        if (mImageNum != -1) {
+            mPreviewPageNum = (mImageNum + previewPerPage - 1) / previewPerPage;
+            mPageTokeArray.setCapacity(mPreviewPageNum * previewPerPage);
+            mImageFilenameArray.setCapacity(mPreviewPageNum * previewPerPage);
+        } else if (mPreviewPageNum == -1) {
+            // Pages known before are counted in old number
+            mCurMaxPreviewPage = pageIndex;
         }
+        // Header is written after page tokens are put
     }
 
     private void updateDownload(int index) {
+        synchronized (mTaskLock) {
+            mFinishedIndexSet.add(index);
+        }
         synchronized (mDownloadLock) {
             if (mDownloadIndexSet != null && !mDownloadIndexSet.contains(index)) {
                 mDownloadIndexSet.add(index);
@@ -529,341 +844,370 @@ public final class ExDownloader implements Runnable {
         notifyManager.notify(BE_NOTIFY_ID, mBuilder.build());
     }
 
-    // TODO for download , when to claim download completed
-    @Override
-    public void run() {
-        // Try to get info from file
-        try {
-            File ediFile = getExDownloadInfoFile();
-            if (!parserEdiFile(ediFile) || mPreviewPerPage == -1 ||
-                    ((mMode == EhClient.MODE_EX || mMode == EhClient.MODE_G) && mImageNum == -1)) {
-                getDetailInfo(0, ediFile, true);
-            }
-
-            if (mLfd != null)
-                mLfd.onGetSum(mGid, mImageNum);
+    private abstract class Task implements Runnable, Comparable<Task> {
+        /** Smaller runs first, negative for requested **/
+        protected long mOrder;
 
-            ensureWorkers();
+        @Override
+        public int compareTo(Task another) {
+            return mOrder < another.mOrder ? -1 : (mOrder == another.mOrder ? 0 : 1);
+        }
+    }
 
-            // A loop to get page token
-            while (true) {
-                // Check stop
-                if (mStopWork)
-                    break;
+    /**
+     * Get preview info and first page tokens from file or internet
+     */
+    private class InitTask extends Task {
 
-                int noTokenIndex = -1;
-                int pageIndex = -1;
-                synchronized(mPageTokenLock) {
-                    if (mNoTokenIndexArray.isEmpty()) {
-                        if (mRequestPageIndexArray.isEmpty()) {
-                            try {
-                                mPageTokenLock.wait();
-                            } catch (InterruptedException e) {}
-                            continue;
-                        } else {
-                            pageIndex = mRequestPageIndexArray.poll();
-                            mCurRequestPageIndex = pageIndex;
-                        }
-                    } else {
-                        noTokenIndex = mNoTokenIndexArray.poll();
-                    }
-                }
+        public InitTask() {
+            mOrder = Long.MIN_VALUE;
+        }
 
-                if (noTokenIndex != -1) {
-                    if (mPageTokeArray.get(noTokenIndex) == null) {
-                        getDetailInfo(noTokenIndex / mPreviewPerPage, ediFile, false);
-                    } else {
-                        // The token is already got, no need to re
-                    }
-                } else if (noTokenIndex == -1){
-                    getDetailInfo(pageIndex, ediFile, false);
-                    mCurRequestPageIndex = -1;
+        @Override
+        public void run() {
+            boolean ok;
+            try {
+                if (!parserEdiFile() || mPreviewPerPage == -1 ||
+                        ((mMode == EhClient.MODE_EX || mMode == EhClient.MODE_G) && mImageNum == -1)) {
+                    getDetailInfo(0, true);
                 }
-
-                ensureWorkers();
-
-                synchronized(mWorkerGetIndexLock) {mWorkerGetIndexLock.notifyAll();}
-                synchronized(mWorkerLock) {mWorkerLock.notifyAll();}
+                ok = true;
+            } catch (Exception e) {
+                Log.f(e);
+                ok = false;
             }
-        } catch (Exception e) {
 
-            Log.f(e);
+            if (ok && mLfd != null)
+                mLfd.onGetSum(mGid, mImageNum);
 
-            synchronized (mDownloadLock) {
-                if (mDownloadMode && mLfd != null && mDownloadIndexSet != null) {
-                    mLfd.onDownloadOver(mGid,
-                            getMaxEnsureIndex() + 1 - mDownloadIndexSet.size());
+            synchronized (mTaskLock) {
+                if (mInitState != INIT_RUNNING)
+                    // Cancelled
+                    return;
+                mInitState = ok ? INIT_DONE : INIT_NONE;
+                if (ok && !mStopWork && !mPauseWork) {
+                    flushPendingRequestLocked();
+                    schedulePrefetchLocked();
                 }
             }
 
-        } finally {
-            synchronized (this) {
-                mMainThread = null;
+            if (ok) {
+                checkOver();
+            } else {
+                synchronized (mDownloadLock) {
+                    if (mDownloadMode && mLfd != null && mDownloadIndexSet != null
+                            && !mDownloadOverNotified) {
+                        mDownloadOverNotified = true;
+                        mLfd.onDownloadOver(mGid,
+                                getMaxEnsureIndex() + 1 - mDownloadIndexSet.size());
+                    }
+                }
             }
         }
-
-        Log.d(TAG, "ExDownloader over");
     }
 
-    private class Worker extends BgThread {
+    /**
+     * Get page tokens of a preview page, then queue image tasks
+     * which wait for them.
+     */
+    private class TokenTask extends Task {
 
-        private final int mIndex;
+        private final int mPageIndex;
+        /** Guarded by mTaskLock **/
+        private final List<ImageTask> mWaiterList = new ArrayList<ImageTask>();
 
-        public Worker(int index) {
-            super();
-            mIndex = index;
-            setPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        public TokenTask(int pageIndex, long order) {
+            mPageIndex = pageIndex;
+            mOrder = order;
         }
 
-        private void addNoTokenIndex(int index) {
-            synchronized(mPageTokenLock) {
-                mNoTokenIndexArray.offer(index);
-                mPageTokenLock.notify();
+        private boolean needFetch() {
+            synchronized (mTaskLock) {
+                // Find next preview page
+                if (mWaiterList.isEmpty())
+                    return true;
+                for (ImageTask task : mWaiterList) {
+                    if (mPageTokeArray.get(task.mIndex) == null)
+                        return true;
+                }
+                return false;
             }
         }
 
-        private void addRequstPageIndex(int pageIndex) {
-            synchronized(mPageTokenLock) {
-                if (mCurRequestPageIndex != pageIndex &&
-                        !mRequestPageIndexArray.contains(pageIndex)) {
-                    mRequestPageIndexArray.offer(pageIndex);
-                    mPageTokenLock.notify();
+        @Override
+        public void run() {
+            boolean ok = true;
+            boolean fetched = false;
+            if (!mStopWork && !mPauseWork && needFetch()) {
+                try {
+                    getDetailInfo(mPageIndex, false);
+                    fetched = true;
+                } catch (Exception e) {
+                    Log.f(e);
+                    ok = false;
                 }
             }
-        }
-
-        private int getTargetIndex() {
-            synchronized(mWorkerGetIndexLock) {
-                while (true) {
-
-                    // Check stop
-                    if (mStopWork || mPauseWork)
-                        return -1;
-
-                    if (!mRequestIndexArray.isEmpty()) {
-                        return mRequestIndexArray.poll();
-                    } else if (mImageNum != -1 && mStartIndex == mImageNum) {
-                        return -1;
-                    } else if (mImageNum == -1 && mStartIndex > getMaxEnsureIndex()) {
-                        // If do not sure the index is valid
 
-                        Log.d(TAG, "mPreviewPerPage = " + mPreviewPerPage);
+            List<Integer> failedList = new ArrayList<Integer>();
+            synchronized (mTaskLock) {
+                if (mTokenTaskMap.get(mPageIndex) == this)
+                    mTokenTaskMap.remove(mPageIndex);
+                else
+                    // Cancelled
+                    return;
+
+                if (!ok && mWaiterList.isEmpty())
+                    mDiscoveryFailed = true;
+                if (fetched && mPreviewPerPage > 0
+                        && mPageTokeArray.get(mPageIndex * mPreviewPerPage) == null) {
+                    // The page is got but predicted range is still empty,
+                    // do not fetch it again and again
+                    Log.w(TAG, "Preview page " + mPageIndex + " fills no predicted page token");
+                    mDiscoveryFailed = true;
+                }
 
-                        addRequstPageIndex(getMaxEnsureIndex() / mPreviewPerPage);
-                        try {
-                            mWorkerGetIndexLock.wait();
-                        } catch (InterruptedException e) {}
+                mWaitingTokenNum -= mWaiterList.size();
+                for (ImageTask task : mWaiterList) {
+                    if (task.mCancelled || mImageTaskMap.get(task.mIndex) != task)
+                        continue;
+                    if (ok && mPageTokeArray.get(task.mIndex) != null
+                            && !mStopWork && !mPauseWork) {
+                        task.mState = STATE_QUEUED;
+                        mImageExecutor.execute(task);
                     } else {
-                        return mStartIndex++;
+                        mImageTaskMap.remove(task.mIndex);
+                        if (!mStopWork && !mPauseWork) {
+                            mFailedIndexSet.add(task.mIndex);
+                            failedList.add(task.mIndex);
+                        }
                     }
                 }
+                mWaiterList.clear();
+
+                // Might know more images
+                schedulePrefetchLocked();
             }
-        }
 
-        // TODO what if download failed ? what to do ?
-        @Override
-        public void run() {
-            HttpDownloadListener listener = new HttpDownloadListener();
-            HttpHelper hh = new HttpHelper(mContext);
-            ImagePageParser ipp = new ImagePageParser();
-            HttpHelper.DownloadOption option = new HttpHelper.DownloadOption();
+            if (mLfis != null) {
+                for (int index : failedList)
+                    mLfis.onDownloadFail(index);
+            }
 
-            option.setAllowFixingExtension(true);
+            checkOver();
+        }
+    }
 
-            while (true) {
-                // Check stop
-                if (mStopWork || mPauseWork)
-                    break;
+    /**
+     * Download one image
+     */
+    private class ImageTask extends Task {
 
-                int targetIndex = getTargetIndex();
-                if (targetIndex == -1)
-                    break;
+        private final int mIndex;
+        /** Guarded by mTaskLock **/
+        private int mState = STATE_QUEUED;
+        private volatile boolean mCancelled = false;
+        private final HttpHelper.DownloadControlor mControlor =
+                new HttpHelper.DownloadControlor();
 
-                // Check is the index is requsted
-                if (mRequstingIndexSet.contains(targetIndex))
-                    continue;
+        public ImageTask(int index, long order) {
+            mIndex = index;
+            mOrder = order;
+        }
 
-                // Check is this already downloaded
-                boolean isAlreadyDownloaded = false;
-                // First check mImageFilenameArray
-                String imageFilename = mImageFilenameArray.get(targetIndex);
-                if (imageFilename != null) {
-                    File file = new File(mDir, imageFilename);
-                    if (file.exists())
-                        isAlreadyDownloaded = true;
-                } else {
-                    // Can not find image file name, just guess
-                    for (String possibleFilename : EhUtils.getPossibleImageFilenames(targetIndex)) {
-                        File file = new File(mDir, possibleFilename);
-                        if (file.exists()) {
-                            isAlreadyDownloaded = true;
-                            mImageFilenameArray.set(targetIndex, possibleFilename);
-                            break;
-                        }
+        private boolean isAlreadyDownloaded() {
+            // First check mImageFilenameArray
+            String imageFilename = mImageFilenameArray.get(mIndex);
+            if (imageFilename != null) {
+                return new File(mDir, imageFilename).exists();
+            } else {
+                // Can not find image file name, just guess
+                for (String possibleFilename : EhUtils.getPossibleImageFilenames(mIndex)) {
+                    File file = new File(mDir, possibleFilename);
+                    if (file.exists()) {
+                        mImageFilenameArray.set(mIndex, possibleFilename);
+                        mEdiFile.appendFilename(mIndex, possibleFilename);
+                        return true;
                     }
                 }
+                return false;
+            }
+        }
 
-                if (isAlreadyDownloaded) {
-                    Log.d(TAG, "isAlreadyDownloaded");
-                    updateDownload(targetIndex);
-                    continue;
+        private boolean isStopped() {
+            return mStopWork || mPauseWork || mCancelled;
+        }
+
+        @Override
+        public void run() {
+            synchronized (mTaskLock) {
+                if (mCancelled || mImageTaskMap.get(mIndex) != this)
+                    return;
+                if (mStopWork || mPauseWork) {
+                    mImageTaskMap.remove(mIndex);
+                    return;
                 }
+            }
 
-                mRequstingIndexSet.add(targetIndex);
+            if (isAlreadyDownloaded()) {
+                Log.d(TAG, "isAlreadyDownloaded");
+                updateDownload(mIndex);
+                onOver(true);
+                return;
+            }
 
-                listener.index = targetIndex;
+            String pageToken;
+            synchronized (mTaskLock) {
+                pageToken = mPageTokeArray.get(mIndex);
+                if (pageToken == null) {
+                    // Wait for token stage, give the thread back
+                    mState = STATE_WAIT_TOKEN;
+                    mWaitingTokenNum++;
+                    requestPageTokenLocked(mIndex / mPreviewPerPage, mOrder, this);
+                    return;
+                }
+                mState = STATE_RUNNING;
+            }
 
-                String pageToken = null;
-                while (true) {
-                    // Check stop
-                    if (mStopWork || mPauseWork)
-                        break;
+            onOver(download(pageToken));
+        }
 
-                    pageToken = mPageTokeArray.get(targetIndex);
-                    if (pageToken == null) {
-                        addNoTokenIndex(targetIndex);
-                        synchronized(mWorkerLock) {
-                            try {mWorkerLock.wait();}
-                            catch (InterruptedException e) {}
-                        }
-                    } else {
-                        // Get valid page token, jump out of loop
-                        break;
-                    }
-                }
+        private void onOver(boolean ok) {
+            synchronized (mTaskLock) {
+                if (mImageTaskMap.get(mIndex) == this)
+                    mImageTaskMap.remove(mIndex);
+                if (!ok && !isStopped())
+                    mFailedIndexSet.add(mIndex);
+            }
+            checkOver();
+        }
 
-                // Parser image page
-                for (int i = 0; i < 2 && !mStopWork && !mPauseWork; i++) {
-                    hh.reset();
-                    ipp.reset();
-                    String body = hh.get(EhClient.getPageUrl(mGid, pageToken, targetIndex + 1, mMode)
-                            + ((i == 1) ? "?nl=48" : ""));
-                    if (ipp.parser(body, mMode)) {
-                        // Download image
-                        HttpHelper.DownloadControlor c = mControlorArray[mIndex];
-
-                        if (Config.getDownloadOriginImage() && ipp.originalImageUrl != null) {
-
-                            Log.d(TAG, "Download origin image");
-
-                            // Download orgin image
-                            String imageUrl = ipp.originalImageUrl;
-                            // Guess filename
-                            String filename = EhUtils.getImageFilename(targetIndex, "jpg");
-                            // Download
-                            hh.reset();
-                            option.setUseProxy(false);
-                            if (hh.downloadOriginEhImage(imageUrl, mDir, filename, option, c, listener) == null) {
-                                if (hh.getException() instanceof HttpHelper.BandwidthExceededException) {
-                                    // Get 509
-                                    show509Notification(mContext);
-                                    break;
-                                } else {
-                                    String newImageUrl = hh.getLastUrl();
-                                    if (newImageUrl != null) {
-                                        // Try download from proxy
-                                        hh.reset();
-                                        option.setUseProxy(true);
-                                        if (hh.downloadEhImage(newImageUrl, mDir, filename, option, c, listener) == null) {
-                                            // Download failed
-                                            Log.d(TAG, "Download failed");
-                                        } else {
-                                            // Download successful
-                                            Log.d(TAG, "Download successful");
-                                        }
-                                    } else {
+        // TODO what if download failed ? what to do ?
+        private boolean download(String pageToken) {
+            HttpDownloadListener listener = new HttpDownloadListener(mIndex);
+            HttpHelper hh = new HttpHelper(mContext);
+            ImagePageParser ipp = new ImagePageParser();
+            HttpHelper.DownloadOption option = new HttpHelper.DownloadOption();
+            HttpHelper.DownloadControlor c = mControlor;
+
+            option.setAllowFixingExtension(true);
+
+            // Parser image page
+            for (int i = 0; i < 2 && !isStopped(); i++) {
+                hh.reset();
+                ipp.reset();
+                String body = hh.get(EhClient.getPageUrl(mGid, pageToken, mIndex + 1, mMode)
+                        + ((i == 1) ? "?nl=48" : ""));
+                if (ipp.parser(body, mMode)) {
+                    if (Config.getDownloadOriginImage() && ipp.originalImageUrl != null) {
+
+                        Log.d(TAG, "Download origin image");
+
+                        // Download orgin image
+                        String imageUrl = ipp.originalImageUrl;
+                        // Guess filename
+                        String filename = EhUtils.getImageFilename(mIndex, "jpg");
+                        listener.filename = filename;
+                        // Download
+                        hh.reset();
+                        option.setUseProxy(false);
+                        if (hh.downloadOriginEhImage(imageUrl, mDir, filename, option, c, listener) == null) {
+                            if (hh.getException() instanceof HttpHelper.BandwidthExceededException) {
+                                // Get 509
+                                show509Notification(mContext);
+                                break;
+                            } else {
+                                String newImageUrl = hh.getLastUrl();
+                                if (newImageUrl != null) {
+                                    // Try download from proxy
+                                    hh.reset();
+                                    option.setUseProxy(true);
+                                    if (hh.downloadEhImage(newImageUrl, mDir, filename, option, c, listener) == null) {
                                         // Download failed
                                         Log.d(TAG, "Download failed");
+                                    } else {
+                                        // Download successful
+                                        Log.d(TAG, "Download successful");
                                     }
+                                } else {
+                                    // Download failed
+                                    Log.d(TAG, "Download failed");
                                 }
-                            } else {
-                                // Download successful
-                                Log.d(TAG, "Download successful");
                             }
-
-                            // No need to refresh image url
-                            break;
                         } else {
-                            // Download scale image
-                            String imageUrl = ipp.imageUrl;
-
-                            //Check 509 gif
-                            boolean get509 = false;
-                            for (String suffix : URL_509_SUFFIX_ARRAY) {
-                                if (imageUrl.endsWith(suffix)) {
-                                    // Get 509 gif here
-                                    get509 = true;
-                                    break;
-                                }
-                            }
-                            if (get509) {
-                                show509Notification(mContext);
+                            // Download successful
+                            Log.d(TAG, "Download successful");
+                        }
+
+                        // No need to refresh image url
+                        break;
+                    } else {
+                        // Download scale image
+                        String imageUrl = ipp.imageUrl;
+
+                        //Check 509 gif
+                        boolean get509 = false;
+                        for (String suffix : URL_509_SUFFIX_ARRAY) {
+                            if (imageUrl.endsWith(suffix)) {
+                                // Get 509 gif here
+                                get509 = true;
                                 break;
                             }
+                        }
+                        if (get509) {
+                            show509Notification(mContext);
+                            break;
+                        }
 
-                            // Guess filename
-                            String filename = EhUtils.getImageFilename(targetIndex, Utils.getExtension(imageUrl, "jpg"));
-                            // Don't put into mImageFilenameArray, because extension maybe be wrong
-                            // mImageFilenameArray.set(targetIndex, filename);
+                        // Guess filename
+                        String filename = EhUtils.getImageFilename(mIndex, Utils.getExtension(imageUrl, "jpg"));
+                        // Don't put into mImageFilenameArray, because extension maybe be wrong
+                        // mImageFilenameArray.set(mIndex, filename);
+                        listener.filename = filename;
+                        hh.reset();
+                        option.setUseProxy(false);
+                        if (hh.downloadEhImage(imageUrl, mDir, filename, option, c, listener) == null) {
                             hh.reset();
-                            option.setUseProxy(false);
+                            option.setUseProxy(true);
                             if (hh.downloadEhImage(imageUrl, mDir, filename, option, c, listener) == null) {
-                                hh.reset();
-                                option.setUseProxy(true);
-                                if (hh.downloadEhImage(imageUrl, mDir, filename, option, c, listener) == null) {
-                                    if (i == 1) {
-                                        // TODO download error
-                                        Log.d(TAG, "download error");
-                                    }
-                                } else {
-                                    // download ok
-                                    Log.d(TAG, "download ok proxy");
-                                    break;
+                                if (i == 1) {
+                                    // TODO download error
+                                    Log.d(TAG, "download error");
                                 }
                             } else {
                                 // download ok
-                                Log.d(TAG, "download ok");
+                                Log.d(TAG, "download ok proxy");
                                 break;
                             }
+                        } else {
+                            // download ok
+                            Log.d(TAG, "download ok");
+                            break;
                         }
-                    } else {
-                        // TODO parser error, Do somthing
-                        Log.d(TAG, "parser error");
-                        break;
                     }
+                } else {
+                    // TODO parser error, Do somthing
+                    Log.d(TAG, "parser error");
+                    break;
                 }
-
-                // Remove from requsting set
-                mRequstingIndexSet.remove(targetIndex);
             }
 
-            // Worker over
-            synchronized(mWorkerArray) {
-                // Remove from mWorkerArray
-                mWorkerArray[mIndex] = null;
-                mControlorArray[mIndex] = null;
-
-                boolean allNull = true;
-                for (Worker w : mWorkerArray)
-                    if (w != null) {allNull = false; break;}
-
-                synchronized (mDownloadLock) {
-                    if (allNull && mDownloadMode && mLfd != null && mDownloadIndexSet != null) {
-                        mLfd.onDownloadOver(mGid,
-                                getMaxEnsureIndex() + 1 - mDownloadIndexSet.size());
-                    }
-                }
-            }
-            Log.d(TAG, "ExDownloader Worker over");
+            return listener.ok;
         }
     }
 
     public class HttpDownloadListener implements HttpHelper.OnDownloadListener {
 
-        public int index;
+        public final int index;
+        public boolean ok = false;
+        /** Filename on disk, extension might be fixed when downloading **/
+        public String filename;
         private float lastPercent;
         private int lastDownloadSize;
 
+        public HttpDownloadListener(int index) {
+            this.index = index;
+        }
+
         @Override
         public void onDownloadStartConnect() {
             lastPercent = 0.0f;
@@ -876,11 +1220,16 @@ public final class ExDownloader implements Runnable {
         @Override
         public void onDownloadStartDownload(int totalSize) {
             lastPercent = 0.0f;
-            lastDownloadSize = 0;
+            lastDownloadSize = -1;
         }
 
         @Override
         public void onDownloadStatusUpdate(int downloadSize, int totalSize) {
+            if (lastDownloadSize == -1) {
+                // Resumed size is not downloaded now
+                lastDownloadSize = downloadSize;
+                return;
+            }
             if (totalSize == -1)
                 return;
 
@@ -909,8 +1258,11 @@ public final class ExDownloader implements Runnable {
         @Override
         public void onDownloadOver(int status, String eMsg) {
             if (status == HttpHelper.DOWNLOAD_OK_CODE) {
-                mRequstingIndexSet.remove(index);
-
+                ok = true;
+                if (filename != null) {
+                    mImageFilenameArray.set(index, filename);
+                    mEdiFile.appendFilename(index, filename);
+                }
                 updateDownload(index);
             }
 
@@ -925,7 +1277,7 @@ public final class ExDownloader implements Runnable {
 
         @Override
         public void onUpdateFilename(String newFilename) {
-
+            filename = newFilename;
         }
     }
 }
@@ -21,8 +21,36 @@ import com.hippo.ehviewer.util.Utils;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+/**
+ * Parse image page.<br>
+ * It runs once for each image in downloader, so it scans page with
+ * indexOf first. Patterns are only used when the page is not as
+ * expected, they do the same thing as before.
+ *
+ * @author Hippo
+ */
 public class ImagePageParser {
 
+    private static final String LOFI_IMAGE_MARK = "<img id=\"sm\" src=\"";
+    private static final String LOFI_BACK_MARK = "\">Back</a>";
+    private static final String IMAGE_MARK = "<div id=\"i3\"";
+    private static final String IFRAME_END_MARK = "</iframe";
+    private static final String BACK_MARK = "<div class=\"sb\"><a href=\"";
+    private static final String ORIGINAL_MARK = "fullimg.php";
+    private static final String HREF_MARK = "<a href=\"";
+    private static final String GALLERY_MARK = "/g/";
+
+    private static final Pattern LOFI_IMAGE_PATTERN =
+            Pattern.compile("<img id=\"sm\" src=\"([^\"]+)\"[^>]+>");
+    private static final Pattern LOFI_BACK_PATTERN =
+            Pattern.compile("<a href=\"(?:http|https)://.+?/g/(\\d+)/(\\w+)/?\">Back</a>");
+    private static final Pattern IMAGE_PATTERN = Pattern.compile(
+            "<(?:/iframe|div id=\"i3\")[^>]*><a[^>]*><img[^>]*src=\"(.+?)\"" +
+            ".+?" +
+            "<div class=\"sb\"><a href=\"(?:http|https)://.+?/g/(\\d+)/(\\w+)");
+    private static final Pattern ORIGINAL_PATTERN =
+            Pattern.compile("<a href=\"([^\"]+)fullimg.php([^\"]+)\">");
+
     public String imageUrl;
     public String originalImageUrl;
     public int gid;
@@ -36,51 +64,183 @@ public class ImagePageParser {
     }
 
     public boolean parser(String body, int mode) {
-        Pattern p;
-        Matcher m;
-
         if (body == null)
             return false;
 
-        if (mode ==EhClient.MODE_LOFI) {
-            p = Pattern.compile("<img id=\"sm\" src=\"([^\"]+)\"[^>]+>");
-            m = p.matcher(body);
-            if (m.find())
-                imageUrl = Utils.unescapeXml(m.group(1));
-            else
-                return false;
-
-            p = Pattern.compile("<a href=\"(?:http|https)://.+?/g/(\\d+)/(\\w+)/?\">Back</a>");
-            m = p.matcher(body);
-            if (m.find()) {
-                gid = Integer.parseInt(m.group(1));
-                token = m.group(2);
+        if (mode == EhClient.MODE_LOFI) {
+            if (scanLofi(body))
+                return true;
+            reset();
+            return parserLofi(body);
+        } else {
+            if (scan(body)) {
+                originalImageUrl = scanOriginalImageUrl(body);
                 return true;
-            } else {
-                return false;
             }
+            reset();
+            return parserNormal(body);
+        }
+    }
+
+    private boolean scanLofi(String body) {
+        int index = body.indexOf(LOFI_IMAGE_MARK);
+        if (index == -1)
+            return false;
+        index += LOFI_IMAGE_MARK.length();
+        int end = body.indexOf('"', index);
+        if (end <= index)
+            return false;
+        // [^>]+> after src
+        int tagEnd = body.indexOf('>', end + 1);
+        if (tagEnd == -1 || tagEnd == end + 1)
+            return false;
+        imageUrl = Utils.unescapeXml(body.substring(index, end));
+
+        for (int back = body.indexOf(LOFI_BACK_MARK); back != -1;
+                back = body.indexOf(LOFI_BACK_MARK, back + 1)) {
+            int href = body.lastIndexOf(HREF_MARK, back);
+            if (href == -1)
+                continue;
+            // /? before ">Back</a>
+            int tokenEnd = scanGallery(body, href + HREF_MARK.length(), back);
+            if (tokenEnd == back || (tokenEnd == back - 1 && body.charAt(tokenEnd) == '/'))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean scan(String body) {
+        // First of </iframe or <div id="i3"
+        int index = body.indexOf(IMAGE_MARK);
+        int iframeEnd = body.indexOf(IFRAME_END_MARK);
+        if (iframeEnd != -1 && (index == -1 || iframeEnd < index))
+            index = iframeEnd;
+        if (index == -1)
+            return false;
+
+        // ><a[^>]*><img[^>]*src="
+        index = body.indexOf('>', index);
+        if (index == -1 || !body.startsWith("<a", index + 1))
+            return false;
+        index = body.indexOf('>', index + 1);
+        if (index == -1 || !body.startsWith("<img", index + 1))
+            return false;
+        int tagEnd = body.indexOf('>', index + 1);
+        if (tagEnd == -1)
+            return false;
+        int src = body.lastIndexOf("src=\"", tagEnd);
+        if (src <= index)
+            return false;
+        src += 5;
+        int end = body.indexOf('"', src + 1);
+        if (end == -1)
+            return false;
 
+        int back = body.indexOf(BACK_MARK, end);
+        if (back == -1)
+            return false;
+        back += BACK_MARK.length();
+        if (scanGallery(body, back, body.length()) == -1)
+            return false;
+
+        imageUrl = Utils.unescapeXml(body.substring(src, end));
+        return true;
+    }
+
+    /**
+     * Get gid and token from gallery url between start and end
+     *
+     * @return the index after token, or -1
+     */
+    private int scanGallery(String body, int start, int end) {
+        int host;
+        if (body.startsWith("http://", start))
+            host = start + 7;
+        else if (body.startsWith("https://", start))
+            host = start + 8;
+        else
+            return -1;
+
+        int index = body.indexOf(GALLERY_MARK, host + 1);
+        if (index == -1 || index >= end)
+            return -1;
+        index += GALLERY_MARK.length();
+
+        int id = 0;
+        int idStart = index;
+        char c;
+        while (index < end && (c = body.charAt(index)) >= '0' && c <= '9') {
+            id = id * 10 + c - '0';
+            index++;
+        }
+        if (index == idStart || index >= end || body.charAt(index) != '/')
+            return -1;
+
+        int tokenStart = ++index;
+        while (index < end && isWordChar(body.charAt(index)))
+            index++;
+        if (index == tokenStart)
+            return -1;
+
+        gid = id;
+        token = body.substring(tokenStart, index);
+        return index;
+    }
+
+    private static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    private String scanOriginalImageUrl(String body) {
+        for (int index = body.indexOf(ORIGINAL_MARK); index != -1;
+                index = body.indexOf(ORIGINAL_MARK, index + 1)) {
+            int href = body.lastIndexOf(HREF_MARK, index);
+            if (href == -1)
+                continue;
+            int start = href + HREF_MARK.length();
+            if (start == index || body.lastIndexOf('"', index) >= start)
+                continue;
+            int end = body.indexOf('"', index);
+            if (end <= index + ORIGINAL_MARK.length() || !body.startsWith("\">", end))
+                continue;
+            return Utils.unescapeXml(body.substring(start, end));
+        }
+        return null;
+    }
+
+    private boolean parserLofi(String body) {
+        Matcher m = LOFI_IMAGE_PATTERN.matcher(body);
+        if (m.find())
+            imageUrl = Utils.unescapeXml(m.group(1));
+        else
+            return false;
+
+        m = LOFI_BACK_PATTERN.matcher(body);
+        if (m.find()) {
+            gid = Integer.parseInt(m.group(1));
+            token = m.group(2);
+            return true;
         } else {
-            p = Pattern.compile(
-                    "<(?:/iframe|div id=\"i3\")[^>]*><a[^>]*><img[^>]*src=\"(.+?)\"" +
-                    ".+?" +
-                    "<div class=\"sb\"><a href=\"(?:http|https)://.+?/g/(\\d+)/(\\w+)");
-            m = p.matcher(body);
+            return false;
+        }
+    }
+
+    private boolean parserNormal(String body) {
+        Matcher m = IMAGE_PATTERN.matcher(body);
+        if (m.find()) {
+            imageUrl = Utils.unescapeXml(m.group(1));
+            gid = Integer.parseInt(m.group(2));
+            token = m.group(3);
+
+            m = ORIGINAL_PATTERN.matcher(body);
             if (m.find()) {
-                imageUrl = Utils.unescapeXml(m.group(1));
-                gid = Integer.parseInt(m.group(2));
-                token = m.group(3);
-
-                p = Pattern.compile("<a href=\"([^\"]+)fullimg.php([^\"]+)\">");
-                m = p.matcher(body);
-                if (m.find()) {
-                    originalImageUrl = Utils.unescapeXml(
-                            new StringBuilder(m.group(1)).append("fullimg.php").append(m.group(2)).toString());
-                }
-                return true;
-            } else {
-                return false;
+                originalImageUrl = Utils.unescapeXml(
+                        new StringBuilder(m.group(1)).append("fullimg.php").append(m.group(2)).toString());
             }
+            return true;
+        } else {
+            return false;
         }
     }
 }
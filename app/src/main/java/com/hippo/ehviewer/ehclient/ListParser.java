@@ -34,10 +34,56 @@ public class ListParser {
     public static final int PARSER_ERROR = -1;
     public static final int INDEX_ERROR = -2;
 
+    /*
+     * Patterns are compiled once. Each gallery row is matched alone,
+     * from its first cell to the first cell of next row, so .+? never
+     * scans into next rows and a broken row fails quickly.
+     */
+    private static final String LOFI_ROW_START = "<td class=\"ii\">";
+    private static final Pattern LOFI_ROW_PATTERN = Pattern.compile(
+            LOFI_ROW_START + "<a href=\"(.+?)\">" // detail url
+            + "<img src=\"(.+?)\".+?/>" // thumb url
+            + ".+?<a class=\"b\" href=\".+?\">(.+?)</a>" // title
+            + ".+?<td class=\"ik ip\">Posted:</td><td class=\"ip\">(.+?)</td>" // Posted and uploader
+            + "</tr><tr><td class=\"ik\">Category:</td><td>(.+?)</td>" // Category
+            + "</tr><tr><td class=\"ik\">Tags:</td><td>(.+?)</td>" // Tags
+            + "</tr><tr><td class=\"ik\">Rating:</td><td class=\"ir\">(.+?)</td>"); // rating
+    private static final Pattern LOFI_TAGS_SPLITTER = Pattern.compile(", ");
+
+    private static final Pattern PAGE_NUM_PATTERN = Pattern.compile(
+            "<a[^<>]+>([\\d]+)</a></td><td[^<>]+>(?:<a[^<>]+>)?&");
+    private static final String ROW_START = "<td class=\"itdc\">";
+    private static final Pattern ROW_PATTERN = Pattern.compile(
+            ROW_START + "(?:<a.+?>)?<img.+?alt=\"(.+?)\".+?/>(?:</a>)?</td>" // category
+            + "<td.+?>(.+?)</td>" // posted
+            + "<td.+?><div.+?><div.+?height:(\\d+)px; width:(\\d+)px\">"
+            + "(?:<img.+?src=\"(.+?)\".+?alt=\"(.+?)\" style.+?/>"
+            + "|init~([^<>\"~]+~[^<>\"~]+)~([^<>]+))" // thumb and title
+            + "</div>"
+            + ".+?"
+            + "<div class=\"it5\"><a href=\"([^<>\"]+)\"[^<>]+>(.+?)</a></div>" // url and title
+            + ".+?"
+            + "<div class=\"ir it4r\" style=\"([^<>\"]+)\">" // rating
+            + ".+?"
+            + "<td class=\"itu\"><div><a.+?>(.+?)</a>"); // uploader
+    private static final Pattern RATE_PATTERN = Pattern.compile("(\\d+)px");
+
     public int pageNum;
 
     public ArrayList<GalleryInfo> giList;
 
+    private int mMode;
+    private CharSequence mText;
+    private final Matcher mRowMatcher = ROW_PATTERN.matcher("");
+    private final Matcher mLofiRowMatcher = LOFI_ROW_PATTERN.matcher("");
+    /** Start of the row not parsed yet, -1 for not found yet **/
+    private int mRowStart;
+    /** Where to search next row start from **/
+    private int mSearchFrom;
+    private final DetailUrlParser mDup = new DetailUrlParser();
+    private final String[] mPau = new String[2];
+    private final Matcher mRateMatcher = RATE_PATTERN.matcher("");
+
     /**
      * If NOT_FOUND maxPage is 0,
      * if can not get maxPage, set it Integer.MAX_VALUE
@@ -47,163 +93,189 @@ public class ListParser {
      * @return
      */
     public int parser(String body, int mode) {
-
-        Pattern p;
-        Matcher m;
-
         if (body == null)
             return 0;
 
+        start(mode);
+        parseRows(body, true);
+        return finish(body);
+    }
+
+    /**
+     * Start to parse text which is still being read, call
+     * {@link #parseRows(CharSequence, boolean)} each time more text is
+     * read, and {@link #finish(CharSequence)} at last.
+     */
+    public void start(int mode) {
+        mMode = mode;
+        mText = null;
         giList = new ArrayList<GalleryInfo>(25);
+    }
 
-        switch (mode) {
-        case EhClient.MODE_LOFI:
-            p = Pattern.compile("<td class=\"ii\"><a href=\"(.+?)\">" // detail url
-                    + "<img src=\"(.+?)\".+?/>" // thumb url
-                    + ".+?<a class=\"b\" href=\".+?\">(.+?)</a>" // title
-                    + ".+?<td class=\"ik ip\">Posted:</td><td class=\"ip\">(.+?)</td>" // Posted and uploader
-                    + "</tr><tr><td class=\"ik\">Category:</td><td>(.+?)</td>" // Category
-                    + "</tr><tr><td class=\"ik\">Tags:</td><td>(.+?)</td>" // Tags
-                    + "</tr><tr><td class=\"ik\">Rating:</td><td class=\"ir\">(.+?)</td>"); // rating
-            m = p.matcher(body);
-            DetailUrlParser dup = new DetailUrlParser();
-            while (m.find()) {
-                LofiGalleryInfo lgi = new LofiGalleryInfo();
-                String[] pau = new String[2];
-
-                if (dup.parser(m.group(1))) {
-                    lgi.gid = dup.gid;
-                    lgi.token = dup.token;
-                } else {
-                    continue;
-                }
-                lgi.thumb = Utils.unescapeXml(m.group(2));
-                lgi.title = Utils.unescapeXml(m.group(3));
-                if (getPostedAndUploader(m.group(4), pau)) {
-                    lgi.posted = pau[0];
-                    lgi.uploader = pau[1];
-                } else {
-                    continue;
+    /**
+     * Parse rows which are complete in text, a row is complete
+     * when next row starts or text ends.
+     *
+     * @param text all text read so far
+     * @param end true if all text is read
+     */
+    public void parseRows(CharSequence text, boolean end) {
+        boolean lofi = mMode == EhClient.MODE_LOFI;
+        String rowStart = lofi ? LOFI_ROW_START : ROW_START;
+        Matcher rowMatcher = lofi ? mLofiRowMatcher : mRowMatcher;
+        if (text != mText) {
+            mText = text;
+            mRowStart = -1;
+            mSearchFrom = 0;
+        }
+
+        while (true) {
+            int next = Utils.indexOf(text, rowStart, mSearchFrom);
+            if (next == -1) {
+                if (!end || mRowStart == -1) {
+                    // Row start might be cut at the end
+                    mSearchFrom = Math.max(mSearchFrom, text.length() - rowStart.length() + 1);
+                    return;
                 }
-                lgi.category = EhUtils.getCategory(m.group(5));
-                String tags = m.group(6);
-                if (tags.equals("-"))
-                    lgi.lofiTags = null;
-                else
-                    lgi.lofiTags = tags.split(", ");
-                String rating = m.group(7);
-                if (rating.equals("-"))
-                    lgi.rating = Float.NaN;
-                else
-                    lgi.rating = getStartNum(rating);
-                lgi.generateSLang();
+                next = text.length();
+            }
+            mSearchFrom = next + rowStart.length();
 
-                giList.add(lgi);
+            if (mRowStart != -1) {
+                // Matcher copies text when it is reset, and text might
+                // still grow, so match a copy of the complete row
+                rowMatcher.reset(text.subSequence(mRowStart, next).toString());
+                if (rowMatcher.lookingAt()) {
+                    GalleryInfo gi = lofi ? getLofiGalleryInfo(rowMatcher)
+                            : getGalleryInfo(rowMatcher);
+                    if (gi != null)
+                        giList.add(gi);
+                }
             }
+            mRowStart = next < text.length() ? next : -1;
+        }
+    }
 
+    /**
+     * Get page number and result after all rows are parsed
+     */
+    public int finish(CharSequence text) {
+        if (mMode == EhClient.MODE_LOFI) {
             if (giList.size() == 0) {
-                if (body.contains("No hits found</div>")) {
+                if (Utils.contains(text, "No hits found</div>")) {
                     pageNum = 0;
                     return NOT_FOUND;
-                } else if (body.contains("No more hits found</div>")) {
+                } else if (Utils.contains(text, "No more hits found</div>")) {
                     return INDEX_ERROR;
                 } else {
                     return PARSER_ERROR;
                 }
             } else {
-                if (!body.contains("Next Page &gt;</a>"))
+                if (!Utils.contains(text, "Next Page &gt;</a>"))
                     pageNum = TARGET_PAGE_IS_LAST;
                 else
                     pageNum = Integer.MAX_VALUE;
                 return ALL;
             }
-
-        case EhClient.MODE_G:
-        case EhClient.MODE_EX:
-        default:
-            p = Pattern.compile("<a[^<>]+>([\\d]+)</a></td><td[^<>]+>(?:<a[^<>]+>)?&");
-            m = p.matcher(body);
+        } else {
+            Matcher m = PAGE_NUM_PATTERN.matcher(text);
             if (m.find()) {
                 pageNum = Integer.parseInt(m.group(1));
-            } else if (body.contains("No hits found</p>")) {
+                return ALL;
+            } else if (Utils.contains(text, "No hits found</p>")) {
                 pageNum = 0;
+                giList.clear();
                 return NOT_FOUND;
             } else {
                 return PARSER_ERROR;
             }
+        }
+    }
 
-            p = Pattern.compile("<td class=\"itdc\">(?:<a.+?>)?<img.+?alt=\"(.+?)\".+?/>(?:</a>)?</td>" // category
-                    + "<td.+?>(.+?)</td>" // posted
-                    + "<td.+?><div.+?><div.+?height:(\\d+)px; width:(\\d+)px\">"
-                    + "(?:<img.+?src=\"(.+?)\".+?alt=\"(.+?)\" style.+?/>"
-                    + "|init~([^<>\"~]+~[^<>\"~]+)~([^<>]+))" // thumb and title
-                    + "</div>"
-                    + ".+?"
-                    + "<div class=\"it5\"><a href=\"([^<>\"]+)\"[^<>]+>(.+?)</a></div>" // url and title
-                    + ".+?"
-                    + "<div class=\"ir it4r\" style=\"([^<>\"]+)\">" // rating
-                    + ".+?"
-                    + "<td class=\"itu\"><div><a.+?>(.+?)</a>"); // uploader
-            m = p.matcher(body);
-            while (m.find()) {
-                GalleryInfo gi = new GalleryInfo();
-
-                gi.category = EhUtils.getCategory(m.group(1));
-                gi.posted = m.group(2);
-                gi.thumbHeight = Integer.parseInt(m.group(3));
-                gi.thumbWidth = Integer.parseInt(m.group(4));
-
-                if (m.group(5) == null) {
-                    gi.thumb = Utils.unescapeXml("http://"
-                            + m.group(7).replace('~', '/'));
-                    gi.title = Utils.unescapeXml(m.group(8));
-                } else {
-                    gi.thumb = Utils.unescapeXml(m.group(5));
-                    gi.title = Utils.unescapeXml(m.group(6));
-                }
+    private LofiGalleryInfo getLofiGalleryInfo(Matcher m) {
+        LofiGalleryInfo lgi = new LofiGalleryInfo();
+
+        if (mDup.parser(m.group(1))) {
+            lgi.gid = mDup.gid;
+            lgi.token = mDup.token;
+        } else {
+            return null;
+        }
+        lgi.thumb = Utils.unescapeXml(m.group(2));
+        lgi.title = Utils.unescapeXml(m.group(3));
+        if (getPostedAndUploader(m.group(4), mPau)) {
+            lgi.posted = mPau[0];
+            lgi.uploader = mPau[1];
+        } else {
+            return null;
+        }
+        lgi.category = EhUtils.getCategory(m.group(5));
+        String tags = m.group(6);
+        if (tags.equals("-"))
+            lgi.lofiTags = null;
+        else
+            lgi.lofiTags = LOFI_TAGS_SPLITTER.split(tags);
+        String rating = m.group(7);
+        if (rating.equals("-"))
+            lgi.rating = Float.NaN;
+        else
+            lgi.rating = getStartNum(rating);
+        lgi.generateSLang();
+        return lgi;
+    }
 
-                Pattern pattern = Pattern
-                        .compile("/(\\d+)/(\\w+)");
-                Matcher matcher = pattern.matcher(m.group(9));
-                if (matcher.find()) {
-                    gi.gid = Integer.parseInt(matcher.group(1));
-                    gi.token = matcher.group(2);
-                } else
-                    continue;
+    private GalleryInfo getGalleryInfo(Matcher m) {
+        GalleryInfo gi = new GalleryInfo();
 
-                gi.rating = Float.parseFloat(getRate(m.group(11)));
-                gi.uploader = m.group(12);
-                gi.generateSLang();
+        gi.category = EhUtils.getCategory(m.group(1));
+        gi.posted = m.group(2);
+        gi.thumbHeight = Integer.parseInt(m.group(3));
+        gi.thumbWidth = Integer.parseInt(m.group(4));
 
-                giList.add(gi);
-            }
-            return ALL;
+        if (m.group(5) == null) {
+            gi.thumb = Utils.unescapeXml("http://"
+                    + m.group(7).replace('~', '/'));
+            gi.title = Utils.unescapeXml(m.group(8));
+        } else {
+            gi.thumb = Utils.unescapeXml(m.group(5));
+            gi.title = Utils.unescapeXml(m.group(6));
         }
+
+        if (mDup.parser(m.group(9))) {
+            gi.gid = mDup.gid;
+            gi.token = mDup.token;
+        } else
+            return null;
+
+        gi.rating = getRate(mRateMatcher.reset(m.group(11)));
+        gi.uploader = m.group(12);
+        gi.generateSLang();
+        return gi;
     }
 
-    private String getRate(String rawRate) {
-        Pattern p = Pattern.compile("\\d+px");
-        Matcher m = p.matcher(rawRate);
+    /**
+     * Get rating from background position of stars
+     *
+     * @param m matcher of {@link #RATE_PATTERN} reset to style
+     * @return Float.NaN if can't get it
+     */
+    private float getRate(Matcher m) {
         int num1;
         int num2;
         int rate = 5;
-        String re;
         if (m.find())
-            num1 = Integer.parseInt(m.group().replace("px", ""));
+            num1 = Integer.parseInt(m.group(1));
         else
-            return null;
+            return Float.NaN;
         if (m.find())
-            num2 = Integer.parseInt(m.group().replace("px", ""));
+            num2 = Integer.parseInt(m.group(1));
         else
-            return null;
+            return Float.NaN;
         rate = rate - num1 / 16;
-        if (num2 == 21) {
-            rate--;
-            re = Integer.toString(rate);
-            re = re + ".5";
-        } else
-            re = Integer.toString(rate);
-        return re;
+        if (num2 == 21)
+            return rate - 0.5f;
+        else
+            return rate;
     }
 
     private static final String PAU_SPACER = " by ";
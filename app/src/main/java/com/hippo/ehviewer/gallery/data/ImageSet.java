@@ -16,12 +16,14 @@
 
 package com.hippo.ehviewer.gallery.data;
 
+import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Movie;
 
 import com.hippo.ehviewer.AppHandler;
 import com.hippo.ehviewer.ehclient.ExDownloader;
 import com.hippo.ehviewer.ehclient.ExDownloaderManager;
+import com.hippo.ehviewer.gallery.glrenderer.BasicTexture;
 import com.hippo.ehviewer.gallery.image.Image;
 import com.hippo.ehviewer.util.AutoExpandArray;
 import com.hippo.ehviewer.util.BgThread;
@@ -52,6 +54,8 @@ public class ImageSet implements ExDownloader.ListenerForImageSet {
 
     private final File mDir;
     private final AutoExpandArray<String> mImageFilenameArray;
+    /** It might be null if can't be mapped **/
+    private final PageIndex mPageIndex;
     private ImageListener mListener;
     private final Queue<DecodeInfo> mDecodeQueue = new ConcurrentLinkedQueue<>();
     private final Map<Integer, Float> mPercentMap = new ConcurrentHashMap<>(5);
@@ -93,6 +97,16 @@ public class ImageSet implements ExDownloader.ListenerForImageSet {
         mDir = EhUtils.getGalleryDir(gid, title);
         Utils.ensureDir(mDir, true);
 
+        mPageIndex = PageIndex.open(mDir);
+        if (mPageIndex != null && mPageIndex.needRebuild()) {
+            new BgThread() {
+                @Override
+                public void run() {
+                    mPageIndex.rebuild();
+                }
+            }.start();
+        }
+
         // Init ExDownloader
         mEdManager = ExDownloaderManager.getInstance();
         mExDownloader = mEdManager.getExDownloader(gid, token, title, Config.getMode());
@@ -110,12 +124,32 @@ public class ImageSet implements ExDownloader.ListenerForImageSet {
         return mStopWork;
     }
 
+    /**
+     * Get image number, if ExDownloader do not know it yet,
+     * use the one in page index.
+     *
+     * @return -1 for unknown
+     */
     public int getSize() {
-        return mExDownloader.getImageNum();
+        int size = mExDownloader.getImageNum();
+        if (mPageIndex != null) {
+            if (size == -1)
+                size = mPageIndex.getImageNum();
+            else if (size != mPageIndex.getImageNum())
+                mPageIndex.setImageNum(size);
+        }
+        return size;
     }
 
+    /**
+     * Get the number of pages which can be read now, pages
+     * indexed as downloaded are counted too.
+     */
     public int getEnsureSize() {
-        return mExDownloader.getMaxEnsureIndex() + 1;
+        int ensureSize = mExDownloader.getMaxEnsureIndex() + 1;
+        if (mPageIndex != null)
+            ensureSize = Math.max(ensureSize, mPageIndex.getExistingNum());
+        return ensureSize;
     }
 
     public void setImageListener(ImageListener l) {
@@ -148,6 +182,17 @@ public class ImageSet implements ExDownloader.ListenerForImageSet {
 
     private String getImageFilename(int index) {
         String filename = mImageFilenameArray.get(index);
+        if (filename == null && mPageIndex != null) {
+            int state = mPageIndex.getState(index);
+            if (state == PageIndex.STATE_EXISTS) {
+                filename = mPageIndex.getFilename(index);
+                if (filename != null)
+                    mImageFilenameArray.set(index, filename);
+                return filename;
+            } else if (state == PageIndex.STATE_MISSING) {
+                return null;
+            }
+        }
         if (filename == null) {
             // Just guess filename
             for (String possibleFilename : EhUtils.getPossibleImageFilenames(index)) {
@@ -158,16 +203,22 @@ public class ImageSet implements ExDownloader.ListenerForImageSet {
                     break;
                 }
             }
+            if (mPageIndex != null)
+                mPageIndex.putFile(index, filename);
         }
         return filename;
     }
 
     public void redownload(int index) {
+        // Stop the download which might be writing the file
+        mExDownloader.cancel(index);
         String filename = getImageFilename(index);
         if (filename != null) {
             // Delete file
             new File(mDir, filename).delete();
         }
+        if (mPageIndex != null)
+            mPageIndex.putFile(index, null);
         mExDownloader.addTargetIndex(index);
         mListener.onGetImage(index);
     }
@@ -181,7 +232,7 @@ public class ImageSet implements ExDownloader.ListenerForImageSet {
         } else if (mExDownloader.isDownloading(index)) {
             // downloading
             return RESULT_DOWNLOADING;
-        } else if (filename == null || !new File(mDir, filename).exists()) {
+        } else if (filename == null || (!isIndexed(index) && !new File(mDir, filename).exists())) {
             // Target index has not being downloading
             return RESULT_NONE;
         } else {
@@ -192,6 +243,10 @@ public class ImageSet implements ExDownloader.ListenerForImageSet {
         }
     }
 
+    private boolean isIndexed(int index) {
+        return mPageIndex != null && mPageIndex.getState(index) == PageIndex.STATE_EXISTS;
+    }
+
     /**
      * You must call it when you do not need it any more
      */
@@ -202,6 +257,8 @@ public class ImageSet implements ExDownloader.ListenerForImageSet {
 
         // Remove listener for ImageSet
         mExDownloader.setListenerForImageSet(null);
+        if (mPageIndex != null)
+            mPageIndex.close();
         // Free ExDownloader
         mEdManager.freeExDownloader(mExDownloader);
     }
@@ -237,9 +294,12 @@ public class ImageSet implements ExDownloader.ListenerForImageSet {
                     if (Utils.getExtension(pathName, "jpg").equals("gif"))
                         res = Movie.decodeFile(pathName);
                     else
-                        res = BitmapFactory.decodeFile(pathName);
+                        res = BitmapFactory.decodeFile(pathName, getDecodeOptions(index));
                 }
 
+                if (mPageIndex != null)
+                    updatePageIndex(index, pathName, res);
+
                 final Object _res = res;
                 // Post to UI thread
                 AppHandler.getInstance().post(new Runnable() {
@@ -254,6 +314,44 @@ public class ImageSet implements ExDownloader.ListenerForImageSet {
         }
     }
 
+    /**
+     * Use the size in page index to keep bitmap in max texture size,
+     * it is decoded as it is if the size is unknown
+     */
+    private BitmapFactory.Options getDecodeOptions(int index) {
+        if (mPageIndex == null)
+            return null;
+        int width = mPageIndex.getWidth(index);
+        int height = mPageIndex.getHeight(index);
+        int sampleSize = 1;
+        while (width / sampleSize > BasicTexture.MAX_TEXTURE_SIZE
+                || height / sampleSize > BasicTexture.MAX_TEXTURE_SIZE)
+            sampleSize *= 2;
+        if (sampleSize == 1)
+            return null;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        return options;
+    }
+
+    private void updatePageIndex(int index, String pathName, Object res) {
+        if (res instanceof Image) {
+            Image image = (Image) res;
+            mPageIndex.putImageSize(index, image.getWidth(), image.getHeight());
+        } else if (res instanceof Bitmap) {
+            // Keep the size before sampled
+            if (mPageIndex.getWidth(index) == 0) {
+                Bitmap bitmap = (Bitmap) res;
+                mPageIndex.putImageSize(index, bitmap.getWidth(), bitmap.getHeight());
+            }
+        } else if (res instanceof Movie) {
+            Movie movie = (Movie) res;
+            mPageIndex.putImageSize(index, movie.width(), movie.height());
+        } else if (res == null && !new File(pathName).exists()) {
+            mPageIndex.putFile(index, null);
+        }
+    }
+
     @Override
     public void onDownloadStart(final int index) {
         AppHandler.getInstance().post(new Runnable() {
@@ -280,6 +378,13 @@ public class ImageSet implements ExDownloader.ListenerForImageSet {
     @Override
     public void onDownloadComplete(final int index) {
         mPercentMap.remove(index);
+        if (mPageIndex != null) {
+            String filename = mImageFilenameArray.get(index);
+            if (filename != null)
+                mPageIndex.putFile(index, filename);
+            else
+                mPageIndex.invalidate(index);
+        }
 
         AppHandler.getInstance().post(new Runnable() {
             @Override
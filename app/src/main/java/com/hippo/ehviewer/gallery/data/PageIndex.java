@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2014 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.gallery.data;
+
+import com.hippo.ehviewer.util.EhUtils;
+import com.hippo.ehviewer.util.Log;
+import com.hippo.ehviewer.util.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+/**
+ * Memory-mapped index of pages in a gallery dir.<br>
+ * For each page it records whether image file exists, its extension,
+ * byte size and pixel size, so page state can be known without
+ * touching file system. The file is rebuilt with one dir
+ * listing when it is missing, broken, or the dir is modified after
+ * the index was closed.
+ * <code>
+ * magic        int<br>
+ * version      int<br>
+ * image num    int<br>
+ * capacity     int<br>
+ * dir modified long<br>
+ * entries...   byte state, byte extension, short reserved,
+ *              int byte size, int width, int height<br>
+ * </code>
+ *
+ * @author Hippo
+ *
+ */
+public final class PageIndex {
+
+    private static final String TAG = PageIndex.class.getSimpleName();
+
+    public static final String FILENAME = ".ehviewer_index";
+
+    public static final int STATE_UNKNOWN = 0;
+    public static final int STATE_EXISTS = 1;
+    public static final int STATE_MISSING = 2;
+
+    private static final int MAGIC = 0x45485049; // EHPI
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 24;
+    private static final int IMAGE_NUM_OFFSET = 8;
+    private static final int CAPACITY_OFFSET = 12;
+    private static final int DIR_MODIFIED_OFFSET = 16;
+
+    private static final int ENTRY_SIZE = 16;
+    private static final int STATE_OFFSET = 0;
+    private static final int EXTENSION_OFFSET = 1;
+    private static final int BYTE_SIZE_OFFSET = 4;
+    private static final int WIDTH_OFFSET = 8;
+    private static final int HEIGHT_OFFSET = 12;
+
+    private static final int MIN_CAPACITY = 64;
+
+    private final File mDir;
+    private final RandomAccessFile mRaf;
+    private MappedByteBuffer mBuffer;
+    private int mCapacity;
+    /** If false, pages might be out of date **/
+    private boolean mUpToDate;
+    /** Pages put while rebuilding, rebuild should not override them **/
+    private BitSet mTouchedSet;
+
+    private PageIndex(File dir, RandomAccessFile raf) throws IOException {
+        mDir = dir;
+        mRaf = raf;
+
+        boolean valid = false;
+        if (raf.length() >= HEADER_SIZE) {
+            raf.seek(0);
+            if (raf.readInt() == MAGIC && raf.readInt() == VERSION) {
+                raf.seek(CAPACITY_OFFSET);
+                int capacity = raf.readInt();
+                valid = capacity > 0 && raf.length() >= HEADER_SIZE + (long) capacity * ENTRY_SIZE;
+                if (valid)
+                    map(capacity);
+            }
+        }
+
+        if (valid) {
+            mUpToDate = mBuffer.getLong(DIR_MODIFIED_OFFSET) == dir.lastModified();
+        } else {
+            raf.setLength(0);
+            map(MIN_CAPACITY);
+            mBuffer.putInt(0, MAGIC);
+            mBuffer.putInt(4, VERSION);
+            mBuffer.putInt(IMAGE_NUM_OFFSET, -1);
+            mUpToDate = false;
+        }
+        // Dir modified time is written when closed
+        mBuffer.putLong(DIR_MODIFIED_OFFSET, 0);
+    }
+
+    /**
+     * Open or create the page index of the gallery dir
+     *
+     * @param dir
+     * @return null if the index can't be mapped
+     */
+    public static PageIndex open(File dir) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(new File(dir, FILENAME), "rw");
+            return new PageIndex(dir, raf);
+        } catch (IOException e) {
+            Log.w(TAG, "Can't open page index of " + dir, e);
+            Utils.closeQuietly(raf);
+            return null;
+        }
+    }
+
+    private void map(int capacity) throws IOException {
+        mBuffer = mRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_SIZE + (long) capacity * ENTRY_SIZE);
+        mBuffer.putInt(CAPACITY_OFFSET, capacity);
+        mCapacity = capacity;
+    }
+
+    private boolean ensureCapacity(int index) {
+        if (index < mCapacity)
+            return true;
+        try {
+            map(Math.max(index + 1, mCapacity * 2));
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Can't grow page index", e);
+            return false;
+        }
+    }
+
+    private static int getEntryOffset(int index) {
+        return HEADER_SIZE + index * ENTRY_SIZE;
+    }
+
+    /**
+     * True if it is just created or out of date, rebuild() should be called
+     */
+    public synchronized boolean needRebuild() {
+        return !mUpToDate;
+    }
+
+    /**
+     * List gallery dir once, record all image files found.
+     * Other pages in capacity are marked missing.
+     */
+    public void rebuild() {
+        synchronized (this) {
+            mTouchedSet = new BitSet();
+        }
+        String[] list = mDir.list();
+        synchronized (this) {
+            BitSet touchedSet = mTouchedSet;
+            mTouchedSet = null;
+            if (list == null)
+                return;
+
+            BitSet foundSet = new BitSet();
+            for (String filename : list) {
+                int pos = filename.indexOf('.');
+                if (pos <= 0)
+                    continue;
+                int extension = getExtensionIndex(filename.substring(pos + 1));
+                if (extension == -1)
+                    continue;
+                int index;
+                try {
+                    index = Integer.parseInt(filename.substring(0, pos)) - 1;
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (index < 0 || touchedSet.get(index) || !ensureCapacity(index))
+                    continue;
+                foundSet.set(index);
+                int offset = getEntryOffset(index);
+                long byteSize = new File(mDir, filename).length();
+                if (mBuffer.get(offset + STATE_OFFSET) != STATE_EXISTS
+                        || mBuffer.get(offset + EXTENSION_OFFSET) != extension
+                        || mBuffer.getInt(offset + BYTE_SIZE_OFFSET) != (int) byteSize)
+                    // Image is changed
+                    putFile(index, filename);
+            }
+
+            for (int i = 0; i < mCapacity; i++) {
+                if (!foundSet.get(i) && !touchedSet.get(i))
+                    mBuffer.put(getEntryOffset(i) + STATE_OFFSET, (byte) STATE_MISSING);
+            }
+            mUpToDate = true;
+        }
+    }
+
+    private static int getExtensionIndex(String extension) {
+        String[] array = EhUtils.POSSIBLE_IMAGE_EXTENSION_ARRAY;
+        for (int i = 0; i < array.length; i++) {
+            if (array[i].equals(extension))
+                return i;
+        }
+        return -1;
+    }
+
+    private void touch(int index) {
+        if (mTouchedSet != null)
+            mTouchedSet.set(index);
+    }
+
+    public synchronized int getImageNum() {
+        return mBuffer.getInt(IMAGE_NUM_OFFSET);
+    }
+
+    public synchronized void setImageNum(int imageNum) {
+        mBuffer.putInt(IMAGE_NUM_OFFSET, imageNum);
+        if (imageNum > 0)
+            ensureCapacity(imageNum - 1);
+    }
+
+    public synchronized int getState(int index) {
+        if (index < 0 || index >= mCapacity)
+            return STATE_UNKNOWN;
+        int state = mBuffer.get(getEntryOffset(index) + STATE_OFFSET);
+        // Image might be downloaded when index is closed
+        if (state == STATE_MISSING && !mUpToDate)
+            state = STATE_UNKNOWN;
+        return state;
+    }
+
+    /**
+     * @return null if page state is not STATE_EXISTS
+     */
+    public synchronized String getFilename(int index) {
+        if (getState(index) != STATE_EXISTS)
+            return null;
+        int extension = mBuffer.get(getEntryOffset(index) + EXTENSION_OFFSET);
+        if (extension < 0 || extension >= EhUtils.POSSIBLE_IMAGE_EXTENSION_ARRAY.length)
+            return null;
+        return EhUtils.getImageFilename(index, EhUtils.POSSIBLE_IMAGE_EXTENSION_ARRAY[extension]);
+    }
+
+    /**
+     * Record the image file of the page
+     *
+     * @param index
+     * @param filename null for missing
+     */
+    public synchronized void putFile(int index, String filename) {
+        if (index < 0 || !ensureCapacity(index))
+            return;
+
+        touch(index);
+        int extension = filename == null ? -1 :
+                getExtensionIndex(Utils.getExtension(filename, EhUtils.DEFAULT_IMAGE_EXTENSION));
+        int offset = getEntryOffset(index);
+        if (extension == -1) {
+            mBuffer.put(offset + STATE_OFFSET, (byte) STATE_MISSING);
+        } else {
+            long byteSize = new File(mDir, filename).length();
+            mBuffer.put(offset + STATE_OFFSET, (byte) STATE_EXISTS);
+            mBuffer.put(offset + EXTENSION_OFFSET, (byte) extension);
+            mBuffer.putInt(offset + BYTE_SIZE_OFFSET, (int) Math.min(byteSize, Integer.MAX_VALUE));
+        }
+        // Unknown until decoded
+        mBuffer.putInt(offset + WIDTH_OFFSET, 0);
+        mBuffer.putInt(offset + HEIGHT_OFFSET, 0);
+    }
+
+    /**
+     * Let the page be checked again
+     */
+    public synchronized void invalidate(int index) {
+        if (index >= 0 && index < mCapacity) {
+            touch(index);
+            mBuffer.put(getEntryOffset(index) + STATE_OFFSET, (byte) STATE_UNKNOWN);
+        }
+    }
+
+    public synchronized void putImageSize(int index, int width, int height) {
+        if (getState(index) != STATE_EXISTS)
+            return;
+        int offset = getEntryOffset(index);
+        mBuffer.putInt(offset + WIDTH_OFFSET, width);
+        mBuffer.putInt(offset + HEIGHT_OFFSET, height);
+    }
+
+    /**
+     * @return 0 if unknown
+     */
+    public synchronized int getWidth(int index) {
+        return getState(index) == STATE_EXISTS ?
+                mBuffer.getInt(getEntryOffset(index) + WIDTH_OFFSET) : 0;
+    }
+
+    /**
+     * @return 0 if unknown
+     */
+    public synchronized int getHeight(int index) {
+        return getState(index) == STATE_EXISTS ?
+                mBuffer.getInt(getEntryOffset(index) + HEIGHT_OFFSET) : 0;
+    }
+
+    /**
+     * Get the number of pages from the first one which all have image file
+     */
+    public synchronized int getExistingNum() {
+        int num = 0;
+        while (num < mCapacity && mBuffer.get(getEntryOffset(num) + STATE_OFFSET) == STATE_EXISTS)
+            num++;
+        return num;
+    }
+
+    /**
+     * Pages are all tracked till now, mark it up to date
+     * with dir modified time.
+     */
+    public synchronized void close() {
+        if (mUpToDate)
+            mBuffer.putLong(DIR_MODIFIED_OFFSET, mDir.lastModified());
+        mBuffer.force();
+        Utils.closeQuietly(mRaf);
+    }
+}
@@ -36,7 +36,7 @@ public abstract class BasicTexture implements Texture {
     protected static final int STATE_ERROR = -1;
 
     // Log a warning if a texture is larger along a dimension
-    private static final int MAX_TEXTURE_SIZE = 4096;
+    public static final int MAX_TEXTURE_SIZE = 4096;
 
     protected int mId = -1;
     protected int mState;
@@ -28,6 +28,7 @@ import android.widget.ListView;
 
 import com.hippo.ehviewer.R;
 import com.hippo.ehviewer.app.MaterialAlertDialog;
+import com.hippo.ehviewer.cache.ImageCache;
 import com.hippo.ehviewer.data.Data;
 import com.hippo.ehviewer.data.GalleryInfo;
 import com.hippo.ehviewer.ehclient.EhClient;
@@ -57,6 +58,7 @@ public class FavoriteHelper {
 
     public static void addToFavorite(final Context context, final GalleryInfo gi,
             final OnAddToFavoriteListener listener) {
+        ImageCache.getImageCache(context).protectThumb(gi.gid);
         final int defaultFavorite = Config.getDefaultFavorite();
         switch (defaultFavorite) {
         case -2:
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2015 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.network;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Keep-alive bookkeeping for HttpURLConnection.<br>
+ * The platform keeps the sockets, this class limits how many connections
+ * can be opened to one host at the same time, and mirrors the idle
+ * connections of each host to estimate how many handshakes are saved.<br>
+ * HttpURLConnection does not tell whether a socket is reused, so hit
+ * and miss counts are estimated from the mirror. The platform might
+ * close a socket the mirror still counts as idle.
+ *
+ * @author Hippo
+ *
+ */
+public final class ConnectionPool {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = ConnectionPool.class.getSimpleName();
+
+    public static final int MAX_CONNECTIONS_PER_HOST = 5;
+    public static final long KEEP_ALIVE_DURATION = 5 * 60 * 1000;
+
+    private static ConnectionPool sInstance;
+
+    private final Map<String, Route> mRouteMap = new HashMap<String, Route>();
+
+    private int mEstimatedHitCount;
+    private int mEstimatedMissCount;
+    private int mEvictCount;
+
+    private static class Route {
+        private final Semaphore mSemaphore =
+                new Semaphore(MAX_CONNECTIONS_PER_HOST, true);
+        /** Time when each idle connection was returned **/
+        private final LinkedList<Long> mIdleList = new LinkedList<Long>();
+    }
+
+    /**
+     * A connection lease, must be released once
+     */
+    public final class Lease {
+        private final Route mRoute;
+        private boolean mReleased = false;
+
+        private Lease(Route route) {
+            mRoute = route;
+        }
+
+        /**
+         * @param reusable true if the response body is read to the end
+         * and the stream is closed, so the platform keep the socket
+         */
+        public void release(boolean reusable) {
+            if (mReleased)
+                return;
+            mReleased = true;
+
+            if (reusable) {
+                synchronized (ConnectionPool.this) {
+                    mRoute.mIdleList.addFirst(System.currentTimeMillis());
+                    while (mRoute.mIdleList.size() > MAX_CONNECTIONS_PER_HOST)
+                        mRoute.mIdleList.removeLast();
+                }
+            }
+            mRoute.mSemaphore.release();
+        }
+    }
+
+    public static ConnectionPool getInstance() {
+        synchronized (ConnectionPool.class) {
+            if (sInstance == null)
+                sInstance = new ConnectionPool();
+            return sInstance;
+        }
+    }
+
+    private ConnectionPool() {
+        // Let platform HttpURLConnection pool keep-alive connections
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections",
+                String.valueOf(MAX_CONNECTIONS_PER_HOST));
+        System.setProperty("http.keepAliveDuration",
+                String.valueOf(KEEP_ALIVE_DURATION));
+    }
+
+    private static String getRouteKey(URL url) {
+        int port = url.getPort();
+        if (port == -1)
+            port = url.getDefaultPort();
+        return url.getProtocol() + "://" + url.getHost() + ":" + port;
+    }
+
+    /**
+     * Wait until a connection to the host of url is available
+     *
+     * @param url
+     * @return
+     * @throws InterruptedException
+     */
+    public Lease acquire(URL url) throws InterruptedException {
+        Route route;
+        synchronized (this) {
+            String key = getRouteKey(url);
+            route = mRouteMap.get(key);
+            if (route == null) {
+                route = new Route();
+                mRouteMap.put(key, route);
+            }
+        }
+
+        route.mSemaphore.acquire();
+
+        synchronized (this) {
+            evictIdle(route, System.currentTimeMillis());
+            if (route.mIdleList.isEmpty()) {
+                mEstimatedMissCount++;
+            } else {
+                route.mIdleList.removeFirst();
+                mEstimatedHitCount++;
+            }
+        }
+        return new Lease(route);
+    }
+
+    private void evictIdle(Route route, long now) {
+        Iterator<Long> iter = route.mIdleList.iterator();
+        while (iter.hasNext()) {
+            if (now - iter.next() > KEEP_ALIVE_DURATION) {
+                iter.remove();
+                mEvictCount++;
+            }
+        }
+    }
+
+    /**
+     * Remove all idle connections which are out of keep-alive duration
+     */
+    public synchronized void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Route route : mRouteMap.values())
+            evictIdle(route, now);
+    }
+
+    public synchronized int getIdleConnectionCount() {
+        int count = 0;
+        for (Route route : mRouteMap.values())
+            count += route.mIdleList.size();
+        return count;
+    }
+
+    /**
+     * Request which should reuse a kept-alive connection
+     */
+    public synchronized int getEstimatedHitCount() {
+        return mEstimatedHitCount;
+    }
+
+    /**
+     * Request which should need a new TCP/TLS handshake
+     */
+    public synchronized int getEstimatedMissCount() {
+        return mEstimatedMissCount;
+    }
+
+    public synchronized int getEvictCount() {
+        return mEvictCount;
+    }
+
+    public synchronized void resetStats() {
+        mEstimatedHitCount = 0;
+        mEstimatedMissCount = 0;
+        mEvictCount = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ConnectionPool estimated hit = " + mEstimatedHitCount
+                + ", estimated miss = " + mEstimatedMissCount
+                + ", evict = " + mEvictCount + ", idle = " + getIdleConnectionCount();
+    }
+}
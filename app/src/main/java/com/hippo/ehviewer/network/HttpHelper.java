@@ -22,10 +22,12 @@ import android.graphics.BitmapFactory;
 import android.os.Message;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.text.TextUtils;
 import android.webkit.MimeTypeMap;
 
 import com.hippo.ehviewer.AppHandler;
 import com.hippo.ehviewer.R;
+import com.hippo.ehviewer.cache.ImageCache;
 import com.hippo.ehviewer.ehclient.EhClient;
 import com.hippo.ehviewer.ehclient.EhInfo;
 import com.hippo.ehviewer.exception.StopRequestException;
@@ -43,14 +45,19 @@ import org.apache.http.conn.ConnectTimeoutException;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.Reader;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.SocketException;
@@ -113,14 +120,34 @@ public class HttpHelper {
     private OnRespondListener mListener;
     private String mPreviewMode;
 
-    private volatile long mLastEhConnectTime = 0;
-    private static final Object ehLock = new Object();
+    private static final RateLimiter sRateLimiter = RateLimiter.getInstance();
+    private static final ConnectionPool sConnectionPool = ConnectionPool.getInstance();
 
     public interface OnRespondListener {
         void onSuccess(Object body);
         void onFailure(String eMsg);
     }
 
+    /**
+     * Parse text while it is read from network
+     */
+    public interface OnReadTextListener {
+        /**
+         * Called before reading body, it is called again if retry
+         */
+        void onStart();
+
+        /**
+         * Called in request thread each time some text is read
+         *
+         * @param text all text read so far, it is the same object
+         *        till next {@link #onStart()} and it keeps growing. Matcher
+         *        copies its input, so match a copy of complete part only
+         * @param end true if all text is read
+         */
+        void onRead(CharSequence text, boolean end);
+    }
+
     public static void updateProxyUrls(final Context context) {
         new BgThread() {
             @Override
@@ -234,32 +261,26 @@ public class HttpHelper {
     private Object requst(RequestHelper rh) {
         URL url = null;
         HttpURLConnection conn = null;
+        ConnectionPool.Lease lease = null;
         boolean isCookiable = false;
 
         for (int times = 0; times < Config.getHttpRetry(); times++) {
             mException = null;
             int redirectionCount = 0;
             boolean firstTime = true;
+            boolean reusable = false;
             try {
                 url = (mLastUrl == null ? rh.getUrl() : new URL(mLastUrl));
 
                 isCookiable = EhInfo.isEhSite(url);
 
-                while (isCookiable) {
-                    synchronized(ehLock) {
-                        long cur = System.currentTimeMillis();
-                        long left = mLastEhConnectTime + Config.getEhMinInterval() - cur;
-                        if (left <= 0) {
-                            mLastEhConnectTime = cur;
-                            break;
-                        } else {
-                            Thread.sleep(left);
-                        }
-                    }
-                }
+                if (isCookiable)
+                    sRateLimiter.acquire(url.getHost(), Config.getEhMinInterval(),
+                            Config.getEhBurst());
 
                 Log.d(TAG, "Requst " + url.toString());
                 while (redirectionCount++ < Constants.MAX_REDIRECTS) {
+                    lease = sConnectionPool.acquire(url);
                     conn = (HttpURLConnection) url.openConnection();
                     conn.setInstanceFollowRedirects(false);
                     conn.setRequestProperty("User-Agent", USER_AGENT);
@@ -272,6 +293,9 @@ public class HttpHelper {
                     if (firstTime) {
                         rh.onBeforeConnect(conn);
                         firstTime = false;
+                    } else if (rh instanceof DownloadHelper) {
+                        // Keep range for redirection
+                        ((DownloadHelper) rh).setRange(conn);
                     }
 
                     conn.connect();
@@ -291,6 +315,9 @@ public class HttpHelper {
                             EhInfo.getInstance(mContext).storeCookie(conn);
                         // Get object connection
                         Object obj = rh.onAfterConnect(conn);
+                        // Body is read and closed, do not disconnect,
+                        // so the connection can be kept alive
+                        reusable = true;
                         // Send to UI thread if necessary
                         if (mListener != null)
                             AppHandler.getInstance().sendMessage(
@@ -307,10 +334,18 @@ public class HttpHelper {
                         Log.d(TAG, "New location " + location);
                         mLastUrl = location;
                         conn.disconnect();
+                        conn = null;
+                        lease.release(false);
+                        lease = null;
                         url = new URL(url, location);
                         continue;
 
                     default:
+                        // Partial file is useless
+                        if (rh instanceof DownloadHelper
+                                && responseCode == Constants.HTTP_RANGE_NOT_SATISFIABLE)
+                            ((DownloadHelper) rh).discardPartial();
+
                         String body;
                         // Get pure text error
                         if (rh instanceof GetStringHelper
@@ -329,8 +364,12 @@ public class HttpHelper {
                 if (mException instanceof StopRequestException)
                     break;
             } finally {
-                if (conn != null)
+                if (conn != null && !reusable)
                     conn.disconnect();
+                if (lease != null)
+                    lease.release(reusable);
+                conn = null;
+                lease = null;
             }
         }
 
@@ -459,16 +498,32 @@ public class HttpHelper {
             conn.addRequestProperty("Accept-Encoding", "gzip");
         }
 
-        private String getBody(HttpURLConnection conn)
+        protected InputStream getInputStream(HttpURLConnection conn)
+                throws IOException {
+            InputStream is = conn.getInputStream();
+            String encoding = conn.getContentEncoding();
+            if (encoding != null && encoding.equals("gzip"))
+                is = new GZIPInputStream(is);
+            return is;
+        }
+
+        protected String getCharset(HttpURLConnection conn) {
+            String contentType = conn.getContentType();
+            int index = -1;
+            if (contentType != null
+                    && (index = contentType.indexOf(CHARSET_KEY)) != -1) {
+                return contentType.substring(index + CHARSET_KEY.length());
+            } else
+                return DEFAULT_CHARSET;
+        }
+
+        protected String getBody(HttpURLConnection conn)
                 throws Exception {
             String body = null;
             InputStream is = null;
             ByteArrayOutputStream baos = null;
             try {
-                is = conn.getInputStream();
-                String encoding = conn.getContentEncoding();
-                if (encoding != null && encoding.equals("gzip"))
-                    is = new GZIPInputStream(is);
+                is = getInputStream(conn);
 
                 int length = conn.getContentLength();
                 if (length >= 0)
@@ -478,17 +533,7 @@ public class HttpHelper {
 
                 Utils.copy(is, baos, Constants.BUFFER_SIZE);
 
-                // Get charset
-                String charset = null;
-                String contentType = conn.getContentType();
-                int index = -1;
-                if (contentType != null
-                        && (index = contentType.indexOf(CHARSET_KEY)) != -1) {
-                    charset = contentType.substring(index + CHARSET_KEY.length());
-                } else
-                    charset = DEFAULT_CHARSET;
-
-                body = baos.toString(charset);
+                body = baos.toString(getCharset(conn));
                 if (body == null)
                     throw new GetBodyException();
             } catch (Exception e) {
@@ -527,6 +572,50 @@ public class HttpHelper {
         }
     }
 
+    /**
+     * RequstHelper for GET method, text is decoded into one StringBuilder
+     * and given to listener while it is read, so parser works when network
+     * is slow and body is never copied into a String.
+     * Body of error response is still got as String.
+     */
+    private class GetTextHelper extends GetHelper {
+        private final OnReadTextListener mReadTextListener;
+
+        public GetTextHelper(String url, OnReadTextListener listener) {
+            super(url);
+            mReadTextListener = listener;
+        }
+
+        @Override
+        public Object onAfterConnect(HttpURLConnection conn)
+                throws Exception {
+            int responseCode = conn.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK
+                    && responseCode != HttpURLConnection.HTTP_PARTIAL)
+                return getBody(conn);
+
+            Reader reader = null;
+            try {
+                reader = new InputStreamReader(getInputStream(conn), getCharset(conn));
+                int length = conn.getContentLength();
+                // Content length is in bytes, and it is compressed size for gzip
+                StringBuilder text = new StringBuilder(length > 0 ? length : Constants.BUFFER_SIZE);
+                mReadTextListener.onStart();
+
+                char[] buffer = new char[Constants.BUFFER_SIZE];
+                int n;
+                while ((n = reader.read(buffer)) != -1) {
+                    text.append(buffer, 0, n);
+                    mReadTextListener.onRead(text, false);
+                }
+                mReadTextListener.onRead(text, true);
+                return text;
+            } finally {
+                Utils.closeQuietly(reader);
+            }
+        }
+    }
+
     /**
      * RequstHelper for post form data, use POST method
      */
@@ -719,9 +808,21 @@ public class HttpHelper {
 
     private class GetImageHelper implements RequestHelper {
         private final String mUrl;
+        /** If false, return the raw bytes in FastByteArrayOutputStream **/
+        private final boolean mDecode;
+        /** Decode in full size if not positive **/
+        private final int mTargetWidth;
+        private final int mTargetHeight;
+
+        public GetImageHelper(String url, boolean decode) {
+            this(url, decode, 0, 0);
+        }
 
-        public GetImageHelper(String url) {
+        public GetImageHelper(String url, boolean decode, int targetWidth, int targetHeight) {
             mUrl = url;
+            mDecode = decode;
+            mTargetWidth = targetWidth;
+            mTargetHeight = targetHeight;
         }
 
         @Override
@@ -743,8 +844,31 @@ public class HttpHelper {
             // bitmap might be incomplete.
             int size = conn.getContentLength();
             FastByteArrayOutputStream fbaos = new FastByteArrayOutputStream(size == -1 ? 24 * 1024 : (size + 100));
-            Utils.copy(conn.getInputStream(), fbaos);
-            Bitmap bmp = BitmapFactory.decodeByteArray(fbaos.getBuffer(), 0, fbaos.size(), Ui.getBitmapOpt());
+            InputStream is = conn.getInputStream();
+            try {
+                Utils.copy(is, fbaos);
+            } finally {
+                Utils.closeQuietly(is);
+            }
+            if (!mDecode) {
+                if (fbaos.size() == 0)
+                    throw new GetBodyException();
+                return fbaos;
+            }
+
+            Bitmap bmp;
+            if (mTargetWidth > 0 && mTargetHeight > 0) {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeByteArray(fbaos.getBuffer(), 0, fbaos.size(), options);
+                options.inSampleSize = ImageCache.calculateInSampleSize(options.outWidth,
+                        options.outHeight, mTargetWidth, mTargetHeight);
+                options.inPreferredConfig = ImageCache.getPreferredConfig(options.outMimeType);
+                options.inJustDecodeBounds = false;
+                bmp = BitmapFactory.decodeByteArray(fbaos.getBuffer(), 0, fbaos.size(), options);
+            } else {
+                bmp = BitmapFactory.decodeByteArray(fbaos.getBuffer(), 0, fbaos.size(), Ui.getBitmapOpt());
+            }
 
             if (bmp == null)
                 throw new GetBodyException();
@@ -762,7 +886,9 @@ public class HttpHelper {
          */
         void onDownloadStartDownload(int totalSize);
         /**
-         * If totalSize -1 for can't get length info
+         * If totalSize -1 for can't get length info.<br>
+         * It is called once before any data is read, downloadSize is
+         * the size resumed from then.
          */
         void onDownloadStatusUpdate(int downloadSize, int totalSize);
         void onDownloadOver(int status, String eMsg);
@@ -819,17 +945,23 @@ public class HttpHelper {
     private class DownloadHelper implements RequestHelper {
 
         private static final String DOWNLOAD_EXTENSION = ".download";
+        private static final String VALIDATOR_EXTENSION = ".info";
 
         private @NonNull final String mUrl;
         private @NonNull final File mDir;
         private @NonNull String mFilename;
         private File mFile;
-        private File mTempFile;
+        /** Named after the requested filename, so it is same for every retry **/
+        private @NonNull final File mTempFile;
+        private @NonNull final File mValidatorFile;
         private @NonNull DownloadOption mOption;
         private @Nullable final DownloadControlor mControlor;
         private @Nullable final OnDownloadListener mListener;
         private int mContentLength;
         private int mReceivedSize;
+        /** The start of requested range, 0 for whole file **/
+        private long mRangeStart;
+        private String mIfRange;
 
         public DownloadHelper(@NonNull String url, @NonNull File dir,
                 @NonNull String filename, @Nullable DownloadOption option,
@@ -845,6 +977,8 @@ public class HttpHelper {
             }
             mControlor = controlor;
             mListener = listener;
+            mTempFile = new File(mDir, mFilename + DOWNLOAD_EXTENSION);
+            mValidatorFile = new File(mDir, mFilename + DOWNLOAD_EXTENSION + VALIDATOR_EXTENSION);
         }
 
         @Override
@@ -852,6 +986,86 @@ public class HttpHelper {
             return new URL(mOption.isUseProxy() ? getProxyUrl() : mUrl);
         }
 
+        /**
+         * Read validator of the partial temp file. The validator file
+         * has three lines, ETag, Last-Modified and total length.
+         */
+        private void readValidator() {
+            mRangeStart = 0;
+            mIfRange = null;
+
+            long partialLength = mTempFile.length();
+            if (mOption.isUseProxy() || partialLength <= 0 || !mValidatorFile.exists())
+                return;
+
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new FileReader(mValidatorFile));
+                String etag = reader.readLine();
+                String lastModified = reader.readLine();
+                long totalLength = Long.parseLong(reader.readLine());
+                if (partialLength >= totalLength)
+                    return;
+
+                // Weak ETag can't be used in If-Range
+                if (!TextUtils.isEmpty(etag) && !etag.startsWith("W/"))
+                    mIfRange = etag;
+                else if (!TextUtils.isEmpty(lastModified))
+                    mIfRange = lastModified;
+                else
+                    return;
+                mRangeStart = partialLength;
+            } catch (Exception e) {
+                mRangeStart = 0;
+                mIfRange = null;
+            } finally {
+                Utils.closeQuietly(reader);
+            }
+        }
+
+        private void writeValidator(HttpURLConnection conn, int totalLength) {
+            String etag = conn.getHeaderField("ETag");
+            String lastModified = conn.getHeaderField("Last-Modified");
+            if (totalLength <= 0 || (etag == null && lastModified == null)) {
+                // Can't resume
+                mValidatorFile.delete();
+                return;
+            }
+
+            FileWriter writer = null;
+            try {
+                writer = new FileWriter(mValidatorFile);
+                writer.write(etag == null ? "" : etag);
+                writer.write("\n");
+                writer.write(lastModified == null ? "" : lastModified);
+                writer.write("\n");
+                writer.write(String.valueOf(totalLength));
+                writer.write("\n");
+            } catch (IOException e) {
+                mValidatorFile.delete();
+            } finally {
+                Utils.closeQuietly(writer);
+            }
+        }
+
+        void setRange(HttpURLConnection conn) {
+            if (mOption.isUseProxy())
+                return;
+
+            // No Range for a fresh download, it is the whole body anyway
+            if (mRangeStart > 0) {
+                conn.setRequestProperty("Range", "bytes=" + mRangeStart + "-");
+                conn.setRequestProperty("If-Range", mIfRange);
+            }
+        }
+
+        void discardPartial() {
+            mTempFile.delete();
+            mValidatorFile.delete();
+            mRangeStart = 0;
+            mIfRange = null;
+        }
+
         @Override
         public void onBeforeConnect(HttpURLConnection conn) throws Exception {
             if (mControlor != null && mControlor.isStop())
@@ -869,7 +1083,8 @@ public class HttpHelper {
                 out.close();
             } else {
                 conn.setRequestMethod("GET");
-                conn.setRequestProperty("Range", "bytes=0-");
+                readValidator();
+                setRange(conn);
             }
 
             if (mListener != null) {
@@ -877,30 +1092,42 @@ public class HttpHelper {
             }
         }
 
-        private int getContentLength(HttpURLConnection conn) {
-            int contentLength = conn.getContentLength();
-            String range;
-            if (contentLength == -1 &&
-                    (range = conn.getHeaderField("Content-Range")) != null) {
-                // Content-Range looks like bytes 500-999/1234
-                contentLength = 0;
-                int step = 0;
-                boolean isNum = false;
-                char ch;
-                for (int i = 0; i < range.length(); i++) {
-                    ch = range.charAt(i);
-                    if (ch >= '0' && ch <= '9') {
-                        if (!isNum) {
-                            isNum = true;
-                            step++;
-                        }
-                    } else {
-                        isNum = false;
+        /**
+         * Content-Range looks like bytes 500-999/1234
+         *
+         * @return {start, end, total}, or null if can't parse
+         */
+        private long[] parseContentRange(HttpURLConnection conn) {
+            String range = conn.getHeaderField("Content-Range");
+            if (range == null)
+                return null;
+
+            long[] result = new long[3];
+            int step = 0;
+            boolean isNum = false;
+            char ch;
+            for (int i = 0; i < range.length(); i++) {
+                ch = range.charAt(i);
+                if (ch >= '0' && ch <= '9') {
+                    if (!isNum) {
+                        isNum = true;
+                        step++;
+                        if (step > 3)
+                            return null;
                     }
-                    if (isNum && step == 3)
-                        contentLength = contentLength * 10 + ch - '0';
+                    result[step - 1] = result[step - 1] * 10 + ch - '0';
+                } else {
+                    isNum = false;
                 }
             }
+            return step == 3 ? result : null;
+        }
+
+        private int getContentLength(HttpURLConnection conn) {
+            int contentLength = conn.getContentLength();
+            long[] range;
+            if (contentLength == -1 && (range = parseContentRange(conn)) != null)
+                contentLength = (int) range[2];
             return contentLength;
         }
 
@@ -988,18 +1215,44 @@ public class HttpHelper {
                 mListener.onUpdateFilename(mFilename);
             }
 
-            mContentLength = getContentLength(conn);
+            // Check whether server accept the range
+            boolean resume = false;
+            long[] range;
+            if (mRangeStart > 0 && conn.getResponseCode() == HttpURLConnection.HTTP_PARTIAL
+                    && (range = parseContentRange(conn)) != null
+                    && range[0] == mRangeStart && range[2] > mRangeStart) {
+                resume = true;
+                mContentLength = (int) range[2];
+            } else {
+                if (conn.getResponseCode() == HttpURLConnection.HTTP_PARTIAL
+                        && (range = parseContentRange(conn)) != null && range[0] != 0) {
+                    // Body is not from the beginning, can't use it
+                    discardPartial();
+                    throw new UncompletedException("Unexpected Content-Range start " + range[0]);
+                }
+                // Get 200, download from the beginning
+                mContentLength = getContentLength(conn);
+            }
             if (mListener != null)
                 mListener.onDownloadStartDownload(mContentLength);
 
             // Make sure parent exist
             mDir.mkdirs();
             mFile = new File(mDir, mFilename);
-            mTempFile = new File(mDir, mFilename + DOWNLOAD_EXTENSION);
+            if (!resume)
+                writeValidator(conn, mContentLength);
             // Transfer
-            transferData(conn.getInputStream(), new FileOutputStream(mTempFile));
+            InputStream is = conn.getInputStream();
+            OutputStream os = new FileOutputStream(mTempFile, resume);
+            try {
+                transferData(is, os, resume ? (int) mRangeStart : 0);
+            } finally {
+                Utils.closeQuietly(is);
+                Utils.closeQuietly(os);
+            }
             // Get ok, rename
             mTempFile.renameTo(mFile);
+            mValidatorFile.delete();
             // Callback
             if (mListener != null)
                 mListener.onDownloadOver(DOWNLOAD_OK_CODE, null);
@@ -1008,8 +1261,8 @@ public class HttpHelper {
 
         @Override
         public void onGetException(Exception e) {
-            // Delete unfinished file
-            if (mTempFile != null)
+            // Keep unfinished file if it can be resumed
+            if (!mValidatorFile.exists())
                 mTempFile.delete();
             if (mFile != null)
                 mFile.delete();
@@ -1022,10 +1275,12 @@ public class HttpHelper {
             }
         }
 
-        private void transferData(InputStream in, OutputStream out)
+        private void transferData(InputStream in, OutputStream out, int offset)
                 throws Exception {
             final byte data[] = new byte[Constants.BUFFER_SIZE];
-            mReceivedSize = 0;
+            mReceivedSize = offset;
+            if (mListener != null)
+                mListener.onDownloadStatusUpdate(mReceivedSize, mContentLength);
 
             while (true) {
                 // Check stop first
@@ -1112,6 +1367,15 @@ public class HttpHelper {
         return (String)requst(new GetHelper(url));
     }
 
+    /**
+     * Http GET method, the listener parses text while it is read
+     *
+     * @return all text, or null for error
+     */
+    public CharSequence getText(String url, OnReadTextListener listener) {
+        return (CharSequence)requst(new GetTextHelper(url, listener));
+    }
+
     /**
      * Post form data
      * @param url
@@ -1148,7 +1412,28 @@ public class HttpHelper {
      * @return
      */
     public Bitmap getImage(String url) {
-        return (Bitmap) requst(new GetImageHelper(url));
+        return (Bitmap) requst(new GetImageHelper(url, true));
+    }
+
+    /**
+     * Get image sampled down to target size
+     * @param url
+     * @param targetWidth
+     * @param targetHeight
+     * @return null for fail
+     */
+    public Bitmap getImage(String url, int targetWidth, int targetHeight) {
+        return (Bitmap) requst(new GetImageHelper(url, true, targetWidth, targetHeight));
+    }
+
+    /**
+     * Get image file bytes without decoding, for caching them as they are
+     *
+     * @param url
+     * @return null for fail
+     */
+    public FastByteArrayOutputStream getImageData(String url) {
+        return (FastByteArrayOutputStream) requst(new GetImageHelper(url, false));
     }
 
     public String download(@NonNull String url, @NonNull File dir,
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2015 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.network;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-host token bucket.<br>
+ * A permit is reserved under the lock, the caller sleeps out of the lock,
+ * so threads do not queue up behind a sleeping one. Reservations are
+ * handed out in arrival order, every caller shares the same budget.
+ *
+ * @author Hippo
+ *
+ */
+public final class RateLimiter {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = RateLimiter.class.getSimpleName();
+
+    private static RateLimiter sInstance;
+
+    private final Map<String, Bucket> mBucketMap = new HashMap<String, Bucket>();
+
+    private long mAcquireCount;
+    private long mWaitCount;
+    private long mTotalWaitTime;
+    private long mMaxWaitTime;
+
+    private static class Bucket {
+        /** It might be negative, it means permits are reserved **/
+        private double mPermits;
+        private long mLastRefillTime;
+
+        private Bucket(int burst, long now) {
+            mPermits = burst;
+            mLastRefillTime = now;
+        }
+
+        private void refill(long now, long interval, int burst) {
+            mPermits = Math.min(burst,
+                    mPermits + (double) (now - mLastRefillTime) / interval);
+            mLastRefillTime = now;
+        }
+    }
+
+    public static RateLimiter getInstance() {
+        synchronized (RateLimiter.class) {
+            if (sInstance == null)
+                sInstance = new RateLimiter();
+            return sInstance;
+        }
+    }
+
+    private RateLimiter() {
+    }
+
+    /**
+     * Reserve a permit for the host.
+     *
+     * @param host the host to connect
+     * @param interval the time in ms to get a new permit, if it is not
+     *        positive, no limit
+     * @param burst the max permits in bucket
+     * @return the time to wait in ms
+     */
+    public synchronized long reserve(String host, long interval, int burst) {
+        mAcquireCount++;
+        if (interval <= 0)
+            return 0;
+        if (burst < 1)
+            burst = 1;
+
+        long now = System.currentTimeMillis();
+        Bucket bucket = mBucketMap.get(host);
+        if (bucket == null) {
+            bucket = new Bucket(burst, now);
+            mBucketMap.put(host, bucket);
+        } else {
+            bucket.refill(now, interval, burst);
+        }
+
+        bucket.mPermits -= 1;
+        long wait = bucket.mPermits < 0 ?
+                (long) Math.ceil(-bucket.mPermits * interval) : 0;
+
+        if (wait > 0) {
+            mWaitCount++;
+            mTotalWaitTime += wait;
+            if (wait > mMaxWaitTime)
+                mMaxWaitTime = wait;
+        }
+        return wait;
+    }
+
+    /**
+     * Block until get a permit for the host
+     *
+     * @return the time waited in ms
+     * @throws InterruptedException
+     */
+    public long acquire(String host, long interval, int burst)
+            throws InterruptedException {
+        long wait = reserve(host, interval, burst);
+        if (wait > 0)
+            Thread.sleep(wait);
+        return wait;
+    }
+
+    public synchronized long getAcquireCount() {
+        return mAcquireCount;
+    }
+
+    /**
+     * Acquire which need to wait
+     */
+    public synchronized long getWaitCount() {
+        return mWaitCount;
+    }
+
+    public synchronized long getTotalWaitTime() {
+        return mTotalWaitTime;
+    }
+
+    public synchronized long getMaxWaitTime() {
+        return mMaxWaitTime;
+    }
+
+    public synchronized long getAverageWaitTime() {
+        return mWaitCount == 0 ? 0 : mTotalWaitTime / mWaitCount;
+    }
+
+    public synchronized void resetStats() {
+        mAcquireCount = 0;
+        mWaitCount = 0;
+        mTotalWaitTime = 0;
+        mMaxWaitTime = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RateLimiter acquire = " + mAcquireCount + ", wait = " + mWaitCount
+                + ", total wait = " + mTotalWaitTime + "ms, max wait = "
+                + mMaxWaitTime + "ms";
+    }
+}
@@ -17,6 +17,7 @@
 package com.hippo.ehviewer.service;
 
 import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
 
 import android.app.NotificationManager;
@@ -25,10 +26,12 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
 import android.support.v4.app.NotificationCompat;
 
 import com.hippo.ehviewer.R;
+import com.hippo.ehviewer.cache.ImageCache;
 import com.hippo.ehviewer.data.Data;
 import com.hippo.ehviewer.data.DownloadInfo;
 import com.hippo.ehviewer.data.GalleryInfo;
@@ -47,6 +50,9 @@ public class DownloadService extends Service
     private static final int DOWNLOADING_NOTIFY_ID = -1;
     private static final int DOWNLOAD_NOTIFY_ID = -2;
 
+    private static final long REBALANCE_INTERVAL = 3000;
+    private static final long THROUGHPUT_WINDOW = 60 * 1000;
+
     public static final String ACTION_UPDATE = "com.hippo.ehviewer.service.DownloadService.UPDATE";
 
     public static final String ACTION_ADD = "com.hippo.ehviewer.service.DownloadService.ADD";
@@ -57,23 +63,47 @@ public class DownloadService extends Service
     public static final String ACTION_STOP_ALL = "com.hippo.ehviewer.service.DownloadService.STOP_ALL";
     public static final String ACTION_DELETE = "com.hippo.ehviewer.service.DownloadService.DELETE";
     public static final String ACTION_CLEAR = "com.hippo.ehviewer.service.DownloadService.ACTION_CLEAR";
+    public static final String ACTION_SET_PRIORITY = "com.hippo.ehviewer.service.DownloadService.SET_PRIORITY";
 
     public static final String KEY_GID = "gid";
     public static final String KEY_GALLERY_INFO = "gallery_info";
+    public static final String KEY_PRIORITY = "priority";
 
     private Context mContext;
     private Data mData;
     private ExDownloaderManager mEdManager;
-    private volatile DownloadInfo mCurDownloadInfo = null;
-    private volatile ExDownloader mCurExDownloader = null;
+    /** Running download tasks, only hold the lock for list operation **/
+    private final List<DownloadTask> mTasks = new ArrayList<DownloadTask>();
     private Binder mBinder = null;
+    private Handler mHandler;
     private NotificationManager mNotifyManager;
     private NotificationCompat.Builder mBuilder;
-    private String mSpeedStr = null;
+
+    /** Time when each page is downloaded in last minute **/
+    private final LinkedList<Long> mPageTimeList = new LinkedList<Long>();
 
     private final List<Integer> mDownloadOk = new ArrayList<Integer>();
     private final List<Integer> mDownloadFailed = new ArrayList<Integer>();
 
+    private static class DownloadTask {
+        public final DownloadInfo downloadInfo;
+        public final ExDownloader exDownloader;
+
+        public DownloadTask(DownloadInfo di, ExDownloader ed) {
+            downloadInfo = di;
+            exDownloader = ed;
+        }
+    }
+
+    private final Runnable mRebalanceRunnable = new Runnable() {
+        @Override
+        public void run() {
+            rebalance();
+            if (getTaskCount() != 0)
+                mHandler.postDelayed(this, REBALANCE_INTERVAL);
+        }
+    };
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -83,6 +113,7 @@ public class DownloadService extends Service
         mEdManager = ExDownloaderManager.getInstance();
 
         mBinder = new Binder();
+        mHandler = new Handler();
         mNotifyManager = (NotificationManager)
                 getSystemService(Context.NOTIFICATION_SERVICE);
     }
@@ -142,6 +173,13 @@ public class DownloadService extends Service
                 mDownloadFailed.clear();
                 startDownload = true;
 
+            } else if (ACTION_SET_PRIORITY.equals(action)) {
+                int gid = intent.getIntExtra(KEY_GID, -1);
+                if (gid != -1)
+                    setPriority(gid, intent.getIntExtra(KEY_PRIORITY,
+                            DownloadInfo.PRIORITY_NORMAL));
+                startDownload = true;
+
             } else {
                 startDownload = true;
             }
@@ -167,36 +205,139 @@ public class DownloadService extends Service
         super.onDestroy();
 
         stopForeground(true);
+        mHandler.removeCallbacks(mRebalanceRunnable);
 
         mBinder = null;
         mNotifyManager = null;
     }
 
+    private DownloadTask getTask(int gid) {
+        synchronized (mTasks) {
+            for (DownloadTask task : mTasks) {
+                if (task.downloadInfo.galleryInfo.gid == gid)
+                    return task;
+            }
+            return null;
+        }
+    }
+
+    private int getTaskCount() {
+        synchronized (mTasks) {
+            return mTasks.size();
+        }
+    }
+
+    private List<DownloadTask> getTasks() {
+        synchronized (mTasks) {
+            return new ArrayList<DownloadTask>(mTasks);
+        }
+    }
+
     /**
-     * Try to start download, if there is no item to start, stop itself
+     * Try to start download until there are Config.getDownloadGallery()
+     * galleries downloading, if there is no item to download, stop itself
      */
     private synchronized void tryToStartDownload() {
-        if (mCurDownloadInfo != null || mCurExDownloader != null)
-            return;
+        int maxTaskCount = Math.max(1, Math.min(Config.getDownloadGallery(),
+                Config.getDownloadThread()));
+
+        while (getTaskCount() < maxTaskCount) {
+            DownloadInfo di = mData.getNextWaitDownloadInfo();
+            if (di == null)
+                break;
+
+            di.state = DownloadInfo.STATE_DOWNLOAD;
+            di.download = -1;
+            di.total = -1;
+            // To update download state
+            mData.addDownload(di);
 
-        mCurDownloadInfo = mData.getFirstWaitDownloadInfo();
-        if (mCurDownloadInfo == null) {
+            GalleryInfo gi = di.galleryInfo;
+            ExDownloader ed = mEdManager.getExDownloader(gi.gid,
+                    gi.token, gi.title, di.mode);
+            synchronized (mTasks) {
+                mTasks.add(new DownloadTask(di, ed));
+            }
+            ed.setListenerDownload(this);
+            // Set worker limit before workers start
+            rebalance();
+            // setDownloadMode will start download thread
+            ed.setDownloadMode(true);
+        }
+
+        if (getTaskCount() == 0) {
             stopSelf();
+        } else {
+            mHandler.removeCallbacks(mRebalanceRunnable);
+            mHandler.postDelayed(mRebalanceRunnable, REBALANCE_INTERVAL);
+        }
+    }
+
+    private static int getPriorityWeight(int priority) {
+        priority = Math.max(DownloadInfo.PRIORITY_LOW,
+                Math.min(priority, DownloadInfo.PRIORITY_HIGH));
+        return 1 << (priority - DownloadInfo.PRIORITY_LOW);
+    }
+
+    /**
+     * Share Config.getDownloadThread() workers between running galleries
+     * by priority. A gallery whose workers are waiting for page token
+     * can't use them, give them to others.
+     */
+    private synchronized void rebalance() {
+        List<DownloadTask> tasks = getTasks();
+        int n = tasks.size();
+        if (n == 0)
             return;
+
+        int left = Math.max(Config.getDownloadThread(), n) - n;
+        int[] allocation = new int[n];
+        int[] capacity = new int[n];
+        for (int i = 0; i < n; i++) {
+            ExDownloader ed = tasks.get(i).exDownloader;
+            int waiting = ed.getTokenWaitingWorkerNum();
+            allocation[i] = 1;
+            capacity[i] = waiting > 0 ? Math.max(1, ed.getWorkerLimit() - waiting)
+                    : Integer.MAX_VALUE;
         }
 
-        mCurDownloadInfo.state = DownloadInfo.STATE_DOWNLOAD;
-        mCurDownloadInfo.download = -1;
-        mCurDownloadInfo.total = -1;
-        // To update download state
-        mData.addDownload(mCurDownloadInfo);
+        // Respect capacity first, then give the rest anyway
+        for (int pass = 0; pass < 2 && left > 0; pass++) {
+            while (left > 0) {
+                int target = -1;
+                float minLoad = Float.MAX_VALUE;
+                for (int i = 0; i < n; i++) {
+                    if (pass == 0 && allocation[i] >= capacity[i])
+                        continue;
+                    float load = (float) allocation[i] /
+                            getPriorityWeight(tasks.get(i).downloadInfo.priority);
+                    if (load < minLoad) {
+                        minLoad = load;
+                        target = i;
+                    }
+                }
+                if (target == -1)
+                    break;
+                allocation[target]++;
+                left--;
+            }
+        }
 
-        GalleryInfo gi = mCurDownloadInfo.galleryInfo;
-        mCurExDownloader = mEdManager.getExDownloader(gi.gid,
-                gi.token, gi.title, mCurDownloadInfo.mode);
-        mCurExDownloader.setListenerDownload(this);
-        // setDownloadMode will start download thread
-        mCurExDownloader.setDownloadMode(true);
+        for (int i = 0; i < n; i++)
+            tasks.get(i).exDownloader.setWorkerLimit(allocation[i]);
+    }
+
+    private void removeTask(DownloadTask task) {
+        synchronized (mTasks) {
+            mTasks.remove(task);
+        }
+
+        ExDownloader ed = task.exDownloader;
+        ed.setListenerDownload(null);
+        ed.setDownloadMode(false);
+        // Others might still use it
+        ed.setWorkerLimit(Integer.MAX_VALUE);
+        mEdManager.freeExDownloader(ed);
     }
 
     /**
@@ -226,6 +367,7 @@ public class DownloadService extends Service
             di = new DownloadInfo(galleryInfo, Config.getMode());
             di.state = DownloadInfo.STATE_WAIT;
             mData.addDownload(di);
+            ImageCache.getImageCache(this).protectThumb(galleryInfo.gid);
             tryToStartDownload();
             notifyUpdate();
             return true;
@@ -239,7 +381,7 @@ public class DownloadService extends Service
     }
 
     private synchronized void start(DownloadInfo di) {
-        if (mCurDownloadInfo != di && di.state != DownloadInfo.STATE_WAIT) {
+        if (getTask(di.galleryInfo.gid) == null && di.state != DownloadInfo.STATE_WAIT) {
             mData.setDownloadState(di, DownloadInfo.STATE_WAIT);
             notifyUpdate();
         }
@@ -259,18 +401,15 @@ public class DownloadService extends Service
     }
 
     private synchronized void stop(DownloadInfo di) {
-        if (mCurDownloadInfo == di) {
-            // Cancel download notification
-            stopForeground(true);
-
+        DownloadTask task = getTask(di.galleryInfo.gid);
+        if (task != null) {
             // Target downloadinfo is downloading
-            mData.setDownloadState(mCurDownloadInfo, DownloadInfo.STATE_NONE);
-            mCurDownloadInfo = null;
+            mData.setDownloadState(di, DownloadInfo.STATE_NONE);
+            removeTask(task);
 
-            mCurExDownloader.setListenerDownload(null);
-            mCurExDownloader.setDownloadMode(false);
-            mEdManager.freeExDownloader(mCurExDownloader);
-            mCurExDownloader = null;
+            // Cancel download notification
+            if (getTaskCount() == 0)
+                stopForeground(true);
 
             tryToStartDownload();
             notifyUpdate();
@@ -281,11 +420,17 @@ public class DownloadService extends Service
         }
     }
 
-    public void stopCurrentTask() {
-        if (mCurDownloadInfo != null)
-            stop(mCurDownloadInfo);
-        else
+    /**
+     * Stop all downloading galleries, waiting ones will start
+     */
+    public synchronized void stopCurrentTask() {
+        List<DownloadTask> tasks = getTasks();
+        if (tasks.isEmpty()) {
             tryToStartDownload();
+        } else {
+            for (DownloadTask task : tasks)
+                stop(task.downloadInfo);
+        }
     }
 
     public synchronized void stopAll() {
@@ -305,6 +450,16 @@ public class DownloadService extends Service
         notifyUpdate();
     }
 
+    private synchronized void setPriority(int gid, int priority) {
+        DownloadInfo di = mData.getDownload(gid);
+        if (di == null)
+            return;
+
+        di.priority = priority;
+        rebalance();
+        notifyUpdate();
+    }
+
     private void ensureNotification() {
         if (mBuilder != null)
             return;
@@ -328,82 +483,137 @@ public class DownloadService extends Service
         mBuilder.addAction(R.drawable.ic_action_close, getString(R.string.stop_all), piStopAll);
     }
 
-    @Override
-    public void onStart(int gid) {
-        if (mCurDownloadInfo == null)
+    private void addDownloadedPages(int count) {
+        long now = System.currentTimeMillis();
+        synchronized (mPageTimeList) {
+            for (int i = 0; i < count; i++)
+                mPageTimeList.add(now);
+        }
+    }
+
+    /**
+     * Pages downloaded in last minute, all galleries included
+     */
+    private int getPagesPerMinute() {
+        long now = System.currentTimeMillis();
+        synchronized (mPageTimeList) {
+            while (!mPageTimeList.isEmpty() &&
+                    now - mPageTimeList.getFirst() > THROUGHPUT_WINDOW)
+                mPageTimeList.removeFirst();
+            return mPageTimeList.size();
+        }
+    }
+
+    private final Object mNotificationLock = new Object();
+    private long mLastStartForegroundTime = 0;
+
+    /**
+     * Show progress of all downloading galleries
+     *
+     * @param force false to limit update frequency
+     */
+    private void updateNotification(boolean force) {
+        // Called by workers with their locks held, do not use service lock
+        synchronized (mNotificationLock) {
+            updateNotificationLocked(force);
+        }
+    }
+
+    private void updateNotificationLocked(boolean force) {
+        long now = System.currentTimeMillis();
+        if (!force && now - mLastStartForegroundTime <= 500)
+            return;
+
+        List<DownloadTask> tasks = getTasks();
+        if (tasks.isEmpty())
             return;
 
-        mCurDownloadInfo.download = -1;
-        mCurDownloadInfo.total = -1;
+        int speed = 0;
+        int download = 0;
+        int total = 0;
+        boolean indeterminate = true;
+        for (DownloadTask task : tasks) {
+            DownloadInfo di = task.downloadInfo;
+            speed += di.speed;
+            if (di.total > 0) {
+                indeterminate = false;
+                total += di.total;
+                download += Math.max(di.download, 0);
+            }
+        }
 
         ensureNotification();
 
-        mBuilder.setContentTitle(getString(R.string.start_download)  + " " + gid)
-                .setContentText(null)
-                .setProgress(0, 0, true);
+        String title;
+        if (tasks.size() > 1) {
+            title = String.format(getString(R.string.downloading_galleries), tasks.size());
+        } else if (indeterminate) {
+            title = getString(R.string.start_download) + " " + tasks.get(0).downloadInfo.galleryInfo.gid;
+        } else {
+            title = getString(R.string.downloading) + " " + tasks.get(0).downloadInfo.galleryInfo.gid;
+        }
+        String text = String.format(getString(R.string.download_throughput),
+                Utils.sizeToString(speed) + "/S", getPagesPerMinute());
+
+        mBuilder.setContentTitle(title)
+                .setContentText(text)
+                .setProgress(total, download, indeterminate);
         startForeground(DOWNLOADING_NOTIFY_ID, mBuilder.build());
+        mLastStartForegroundTime = now;
+    }
 
+    @Override
+    public void onStart(int gid) {
+        DownloadTask task = getTask(gid);
+        if (task == null)
+            return;
+
+        task.downloadInfo.download = -1;
+        task.downloadInfo.total = -1;
+
+        updateNotification(true);
         notifyUpdate();
     }
 
     @Override
     public void onGetSum(int gid, int sum) {
-        if (mCurDownloadInfo == null)
+        DownloadTask task = getTask(gid);
+        if (task == null)
             return;
 
-        mCurDownloadInfo.download = 0;
-        mCurDownloadInfo.total = sum;
-
-        ensureNotification();
-
-        mBuilder.setContentTitle(getString(R.string.downloading)  + " " + gid)
-                .setContentText(null)
-                .setProgress(mCurDownloadInfo.total, mCurDownloadInfo.download, false);
-        startForeground(DOWNLOADING_NOTIFY_ID, mBuilder.build());
+        task.downloadInfo.download = 0;
+        task.downloadInfo.total = sum;
 
+        updateNotification(true);
         notifyUpdate();
     }
 
-    private long mLastStartForegroundTime = 0;
-
     @Override
     public void onDownload(int gid, int downloadSize, int totalSize) {
-        if (mCurDownloadInfo == null)
+        DownloadTask task = getTask(gid);
+        if (task == null)
             return;
 
-        mCurDownloadInfo.download = downloadSize;
-        mCurDownloadInfo.total = totalSize;
-
-        ensureNotification();
-
-        mBuilder.setContentTitle(getString(R.string.downloading)  + " " + gid)
-                .setContentText(mSpeedStr)
-                .setProgress(totalSize, downloadSize, false);
+        int increase = downloadSize - Math.max(task.downloadInfo.download, 0);
+        if (increase > 0)
+            addDownloadedPages(increase);
 
-        long now = System.currentTimeMillis();
-        if (now - mLastStartForegroundTime > 500) {
-            startForeground(DOWNLOADING_NOTIFY_ID, mBuilder.build());
-            mLastStartForegroundTime = now;
-        }
+        task.downloadInfo.download = downloadSize;
+        task.downloadInfo.total = totalSize;
 
+        updateNotification(false);
         notifyUpdate();
     }
 
     @Override
     public void onUpdateSpeed(int gid, int speed) {
-        if (mCurDownloadInfo == null)
+        DownloadTask task = getTask(gid);
+        if (task == null)
             return;
 
-        mCurDownloadInfo.speed = speed;
-        mSpeedStr = Utils.sizeToString(speed) + "/S";
-
-        ensureNotification();
-
-        mBuilder.setContentTitle(getString(R.string.downloading)  + " " + gid)
-                .setContentText(mSpeedStr)
-                .setProgress(mCurDownloadInfo.total, mCurDownloadInfo.download, false);
-        startForeground(DOWNLOADING_NOTIFY_ID, mBuilder.build());
+        task.downloadInfo.speed = speed;
 
+        updateNotification(false);
         notifyUpdate();
     }
 
@@ -429,13 +639,27 @@ public class DownloadService extends Service
         }
     }
 
+    /**
+     * Worker of ExDownloader calls it with its locks held,
+     * so handle it in main thread.
+     */
     @Override
-    public synchronized void onDownloadOver(int gid, int legacy) {
-        if (mCurDownloadInfo == null)
+    public void onDownloadOver(final int gid, final int legacy) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                handleDownloadOver(gid, legacy);
+            }
+        });
+    }
+
+    private synchronized void handleDownloadOver(int gid, int legacy) {
+        DownloadTask task = getTask(gid);
+        if (task == null)
             return;
 
-        mCurDownloadInfo.legacy = legacy;
-        if (mCurDownloadInfo.legacy == 0) {
+        DownloadInfo di = task.downloadInfo;
+        if (legacy == 0) {
             // Download ok
             if (!mDownloadOk.contains(gid))
                 mDownloadOk.add(gid);
@@ -460,18 +684,18 @@ public class DownloadService extends Service
                 .setContentText(getDownloadNotificationText())
                 .setDeleteIntent(piClear)
                 .setOngoing(false).setAutoCancel(true);
-        mNotifyManager.notify(DOWNLOAD_NOTIFY_ID, builder.build());
-        stopForeground(true);
+        if (mNotifyManager != null)
+            mNotifyManager.notify(DOWNLOAD_NOTIFY_ID, builder.build());
 
-        mCurDownloadInfo.legacy = legacy;
-        mCurDownloadInfo.state = DownloadInfo.STATE_FINISH;
-        mData.addDownload(mCurDownloadInfo);
-        mCurDownloadInfo = null;
+        di.legacy = legacy;
+        di.state = DownloadInfo.STATE_FINISH;
+        mData.addDownload(di);
+        removeTask(task);
 
-        mCurExDownloader.setListenerDownload(null);
-        mCurExDownloader.setDownloadMode(false);
-        mEdManager.freeExDownloader(mCurExDownloader);
-        mCurExDownloader = null;
+        if (getTaskCount() == 0)
+            stopForeground(true);
+        else
+            updateNotification(true);
 
         tryToStartDownload();
         notifyUpdate();
@@ -19,12 +19,17 @@ package com.hippo.ehviewer.ui;
 import android.app.Activity;
 
 import com.google.analytics.tracking.android.EasyTracker;
+import com.hippo.ehviewer.ImageLoader;
 import com.hippo.ehviewer.cache.ImageCache;
+import com.hippo.ehviewer.ehclient.EhClient;
 import com.hippo.ehviewer.util.Config;
+import com.hippo.ehviewer.util.Log;
 import com.hippo.ehviewer.util.Ui;
 
 public abstract class AbsActivity extends Activity {
 
+    private static final String TAG = AbsActivity.class.getSimpleName();
+
     @Override
     protected void onResume() {
         super.onResume();
@@ -37,6 +42,8 @@ public abstract class AbsActivity extends Activity {
         super.onPause();
 
         ImageCache.getImageCache(this).flush();
+        Log.d(TAG, ImageLoader.getInstance(this).toString());
+        Log.d(TAG, EhClient.getInstance().toString());
     }
 
     @Override
@@ -50,6 +50,7 @@ import com.hippo.ehviewer.drawable.MaterialIndicatorDrawable.Stroke;
 import com.hippo.ehviewer.service.DownloadService;
 import com.hippo.ehviewer.util.Config;
 import com.hippo.ehviewer.util.EhUtils;
+import com.hippo.ehviewer.util.GalleryDirIndex;
 import com.hippo.ehviewer.util.Ui;
 import com.hippo.ehviewer.util.Utils;
 import com.hippo.ehviewer.util.ViewUtils;
@@ -60,6 +61,13 @@ import com.hippo.ehviewer.windowsanimate.WindowsAnimate;
 
 public class DownloadActivity extends AbsTranslucentActivity implements FitWindowView.OnFitSystemWindowsListener {
 
+    /** Priority of each item in R.array.priority_entries **/
+    private static final int[] PRIORITIES = {
+        DownloadInfo.PRIORITY_HIGH,
+        DownloadInfo.PRIORITY_NORMAL,
+        DownloadInfo.PRIORITY_LOW
+    };
+
     private AppContext mAppContext;
     private WindowsAnimate mWindowsAnimate;
     private int mThemeColor;
@@ -204,6 +212,7 @@ public class DownloadActivity extends AbsTranslucentActivity implements FitWindo
                 thumb.setImageDrawable(null);
                 thumb.setLoadInfo(gi.thumb, String.valueOf(gi.gid));
                 ImageLoader.getInstance(DownloadActivity.this).add(gi.thumb, String.valueOf(gi.gid),
+                        thumb.getTargetWidth(), thumb.getTargetHeight(),
                         new LoadImageView.SimpleImageGetListener(thumb).setFixScaleType(true));
             }
             TextView title = (TextView)convertView.findViewById(R.id.title);
@@ -222,6 +231,7 @@ public class DownloadActivity extends AbsTranslucentActivity implements FitWindo
             TextView action = (TextView)convertView.findViewById(R.id.action);
             View detail = convertView.findViewById(R.id.detail);
             View delete = convertView.findViewById(R.id.delete);
+            TextView priority = (TextView)convertView.findViewById(R.id.priority);
 
             read.setOnClickListener(new View.OnClickListener() {
                 @Override
@@ -234,6 +244,9 @@ public class DownloadActivity extends AbsTranslucentActivity implements FitWindo
                 }
             });
             delete.setOnClickListener(new DeleteAction(di));
+            priority.setText(getString(R.string.priority) + ": "
+                    + getString(getPriorityText(di.priority)));
+            priority.setOnClickListener(new PriorityAction(di));
             detail.setOnClickListener(new View.OnClickListener() {
                 @Override
                 public void onClick(View v) {
@@ -345,6 +358,7 @@ public class DownloadActivity extends AbsTranslucentActivity implements FitWindo
                                 if (cb.isChecked()) {
                                     GalleryInfo gi = mDownloadInfo.galleryInfo;
                                     Utils.deleteDirInThread(EhUtils.getGalleryDir(gi.gid, gi.title));
+                                    GalleryDirIndex.getInstance().remove(gi.gid);
                                 }
                                 // Remember delete choice
                                 Config.setBoolean(KEY_INCLUDE_PIC, cb.isChecked());
@@ -355,6 +369,40 @@ public class DownloadActivity extends AbsTranslucentActivity implements FitWindo
         }
     }
 
+    private static int getPriorityText(int priority) {
+        if (priority > DownloadInfo.PRIORITY_NORMAL)
+            return R.string.priority_high;
+        else if (priority < DownloadInfo.PRIORITY_NORMAL)
+            return R.string.priority_low;
+        else
+            return R.string.priority_normal;
+    }
+
+    private class PriorityAction implements View.OnClickListener {
+
+        public DownloadInfo mDownloadInfo;
+
+        public PriorityAction(DownloadInfo di) {
+            mDownloadInfo = di;
+        }
+
+        @Override
+        public void onClick(View v) {
+            new MaterialAlertDialog.Builder(DownloadActivity.this).setTitle(R.string.priority)
+                    .setItems(R.array.priority_entries, new MaterialAlertDialog.OnClickListener() {
+                        @Override
+                        public boolean onClick(MaterialAlertDialog dialog, int which) {
+                            Intent it = new Intent(DownloadActivity.this, DownloadService.class);
+                            it.setAction(DownloadService.ACTION_SET_PRIORITY);
+                            it.putExtra(DownloadService.KEY_GID, mDownloadInfo.galleryInfo.gid);
+                            it.putExtra(DownloadService.KEY_PRIORITY, PRIORITIES[which]);
+                            startService(it);
+                            return true;
+                        }
+                    }).show();
+        }
+    }
+
     private class StartAction implements View.OnClickListener {
         public DownloadInfo mDownloadInfo;
 
@@ -525,7 +525,12 @@ public class FavouriteActivity extends AbsTranslucentActivity
             else
                 listener.onSuccess(taskStamp, giList, 1);
         } else { // If get cloud favorite
-            mClient.getGList(url, Config.getApiMode(), null, new EhClient.OnGetGListListener() {
+            mClient.getGList(url, Config.getApiMode(), null, listener, new EhClient.OnGetGListListener() {
+                @Override
+                public void onRows(Object checkFlag, List<GalleryInfo> rows) {
+                    listener.onRows(taskStamp, rows);
+                }
+
                 @Override
                 public void onSuccess(Object checkFlag, List<GalleryInfo> giList,
                         int maxPage) {
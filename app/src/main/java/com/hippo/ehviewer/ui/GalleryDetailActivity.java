@@ -303,6 +303,8 @@ public class GalleryDetailActivity extends AbsTranslucentActivity
     protected void onDestroy() {
         super.onDestroy();
         mWindowsAnimate.free();
+        if (mClient != null)
+            mClient.cancel(this);
 
         sGid = 0;
         sToken = null;
@@ -517,6 +519,7 @@ public class GalleryDetailActivity extends AbsTranslucentActivity
 
             mThumb.setLoadInfo(mGalleryInfo.thumb, String.valueOf(mGalleryInfo.gid));
             ImageLoader.getInstance(this).add(mGalleryInfo.thumb, String.valueOf(mGalleryInfo.gid),
+                    mThumb.getTargetWidth(), mThumb.getTargetHeight(),
                     new LoadImageView.SimpleImageGetListener(mThumb).setTransitabled(false));
             mTitle.setText(mGalleryInfo.title);
             mUploader.setText(mGalleryInfo.uploader);
@@ -659,11 +662,10 @@ public class GalleryDetailActivity extends AbsTranslucentActivity
     }
 
     /**
-     * GalleryDetail
-     * LofiGalleryDetail
-     * ApiGalleryDetail
+     * Show title, uploader and thumb, it can be done
+     * before the whole detail is got
      */
-    private void doLayout() {
+    private void layoutHeader() {
         if (mDetailScroll.getVisibility() == View.GONE) {
             // If not set header in doPreLayout
             // Set theme
@@ -674,10 +676,20 @@ public class GalleryDetailActivity extends AbsTranslucentActivity
             mDetailHeader.setVisibility(View.VISIBLE);
             mThumb.setLoadInfo(mGalleryInfo.thumb, String.valueOf(mGalleryInfo.gid));
             ImageLoader.getInstance(this).add(mGalleryInfo.thumb, String.valueOf(mGalleryInfo.gid),
+                    mThumb.getTargetWidth(), mThumb.getTargetHeight(),
                     new LoadImageView.SimpleImageGetListener(mThumb));
             mTitle.setText(mGalleryInfo.title);
             mUploader.setText(mGalleryInfo.uploader);
         }
+    }
+
+    /**
+     * GalleryDetail
+     * LofiGalleryDetail
+     * ApiGalleryDetail
+     */
+    private void doLayout() {
+        layoutHeader();
 
         // Button
         mDetailButtons.setVisibility(View.VISIBLE);
@@ -850,7 +862,8 @@ public class GalleryDetailActivity extends AbsTranslucentActivity
 
             String url = mClient.getDetailUrl(
                     mGalleryInfo.gid, mGalleryInfo.token, mCurPreviewPage);
-            mClient.getPreviewList(url, Config.getMode(), mCurPreviewPage,
+            // Page flipping supersedes preview request which is not started
+            mClient.getPreviewList(url, Config.getMode(), mCurPreviewPage, this,
                     new PListGetListener());
 
             mGetPreview = true;
@@ -1373,6 +1386,11 @@ public class GalleryDetailActivity extends AbsTranslucentActivity
 
     private class GDetailGetListener
             implements EhClient.OnGetGDetailListener {
+        @Override
+        public void onGetHeader(GalleryDetail md) {
+            layoutHeader();
+        }
+
         @Override
         public void onSuccess(GalleryDetail md) {
             mRefreshText.setRefreshing(false);
@@ -1410,14 +1428,17 @@ public class GalleryDetailActivity extends AbsTranslucentActivity
             if (!(mGalleryInfo instanceof PreviewImpl))
                 return;
 
-            mPreviewWait.setVisibility(View.GONE);
-            mPreviewRefresh.setVisibility(View.GONE);
-
             int page = (Integer)checkFlag;
             PreviewImpl previewImpl = (PreviewImpl)mGalleryInfo;
             previewImpl.setPreview(page, pageList);
             pageList.setData(GalleryDetailActivity.this,
                     GalleryDetailActivity.this, previewImpl, page);
+            // Keep it, but show only current page
+            if (page != mCurPreviewPage)
+                return;
+
+            mPreviewWait.setVisibility(View.GONE);
+            mPreviewRefresh.setVisibility(View.GONE);
             pageList.addPreview(mPreview);
 
             if (isLastPage && mGalleryInfo instanceof LofiDetailImpl) {
@@ -61,6 +61,8 @@ import com.hippo.ehviewer.R;
 import com.hippo.ehviewer.SimpleSuggestionProvider;
 import com.hippo.ehviewer.UpdateHelper;
 import com.hippo.ehviewer.app.MaterialAlertDialog;
+import com.hippo.ehviewer.cache.BitmapPool;
+import com.hippo.ehviewer.cache.ImageCache;
 import com.hippo.ehviewer.data.Data;
 import com.hippo.ehviewer.data.GalleryInfo;
 import com.hippo.ehviewer.data.ListUrls;
@@ -983,6 +985,9 @@ public class GalleryListActivity extends AbsTranslucentActivity implements View.
         super.onCreate(savedInstanceState);
         setContentView(R.layout.gallery_list);
 
+        // Load thumbnails of last session before list is got
+        ImageLoader.getInstance(this).warmUp();
+
         mAppContext = (AppContext) getApplication();
         mData = Data.getInstance();
         mClient = EhClient.getInstance();
@@ -1454,6 +1459,8 @@ public class GalleryListActivity extends AbsTranslucentActivity implements View.
         super.onDestroy();
 
         mWindowsAnimate.free();
+        if (isFinishing())
+            ImageCache.getImageCache(this).saveManifest();
     }
 
     private void checkUpdate() {
@@ -1549,13 +1556,18 @@ public class GalleryListActivity extends AbsTranslucentActivity implements View.
                     ImageLoader.getInstance(GalleryListActivity.this).add(lus.getSearchImageUrl(),
                             lus.getSearchImageKey(), new ImageLoader.OnGetImageListener() {
                                 @Override
-                                public void onGetImage(String key, Bitmap bmp, int state) {
+                                public void onGetImage(String key, final Bitmap bmp, int state) {
                                     if (bmp != null) {
+                                        // Keep it out of bitmap pool till it is uploaded
+                                        final BitmapPool pool = ImageCache.getImageCache(
+                                                GalleryListActivity.this).getBitmapPool();
+                                        pool.retain(bmp);
                                         mClient.getGListFromImageSearch(bmp, lus.getImageSearchMode(), taskStamp,
                                                 new EhClient.OnGetGListFromImageSearchListener() {
                                                     @Override
                                                     public void onSuccess(Object checkFlag, List<GalleryInfo> giList,
                                                             int maxPage, String newUrl) {
+                                                        pool.release(bmp);
 
                                                         System.out.println(giList.size());
 
@@ -1565,6 +1577,7 @@ public class GalleryListActivity extends AbsTranslucentActivity implements View.
 
                                                     @Override
                                                     public void onFailure(Object checkFlag, String eMsg) {
+                                                        pool.release(bmp);
                                                         listener.onFailure(taskStamp, eMsg); // TODO
                                                     }
                                                 });
@@ -1591,8 +1604,13 @@ public class GalleryListActivity extends AbsTranslucentActivity implements View.
                             });
                 }
             } else {
-                // Get result url
-                mClient.getGList(url, null, new EhClient.OnGetGListListener() {
+                // Get result url, a new load of the list supersedes it
+                mClient.getGList(url, Config.getMode(), null, listener, new EhClient.OnGetGListListener() {
+                    @Override
+                    public void onRows(Object checkFlag, List<GalleryInfo> rows) {
+                        listener.onRows(taskStamp, rows);
+                    }
+
                     @Override
                     public void onSuccess(Object checkFlag, List<GalleryInfo> lmdArray, int pageNum) {
                         listener.onSuccess(taskStamp, lmdArray, pageNum);
@@ -1621,7 +1639,13 @@ public class GalleryListActivity extends AbsTranslucentActivity implements View.
                 }
             });
         } else {
-            mClient.getGList(url, null, new EhClient.OnGetGListListener() {
+            // A new load of the list supersedes it
+            mClient.getGList(url, Config.getMode(), null, listener, new EhClient.OnGetGListListener() {
+                @Override
+                public void onRows(Object checkFlag, List<GalleryInfo> rows) {
+                    listener.onRows(taskStamp, rows);
+                }
+
                 @Override
                 public void onSuccess(Object checkFlag, List<GalleryInfo> lmdArray, int pageNum) {
                     listener.onSuccess(taskStamp, lmdArray, pageNum);
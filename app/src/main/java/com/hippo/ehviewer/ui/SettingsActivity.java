@@ -56,6 +56,7 @@ import com.hippo.ehviewer.data.Data;
 import com.hippo.ehviewer.data.DownloadInfo;
 import com.hippo.ehviewer.drawable.MaterialIndicatorDrawable;
 import com.hippo.ehviewer.drawable.MaterialIndicatorDrawable.Stroke;
+import com.hippo.ehviewer.ehclient.EdiFile;
 import com.hippo.ehviewer.ehclient.EhClient;
 import com.hippo.ehviewer.ehclient.EhInfo;
 import com.hippo.ehviewer.network.HttpHelper;
@@ -65,6 +66,7 @@ import com.hippo.ehviewer.util.BgThread;
 import com.hippo.ehviewer.util.Config;
 import com.hippo.ehviewer.util.DialogUtils;
 import com.hippo.ehviewer.util.EhUtils;
+import com.hippo.ehviewer.util.GalleryDirIndex;
 import com.hippo.ehviewer.miscellaneous.FavoriteHelper;
 import com.hippo.ehviewer.util.Secret;
 import com.hippo.ehviewer.util.Ui;
@@ -74,9 +76,7 @@ import com.hippo.ehviewer.widget.CategoryTable;
 import com.hippo.ehviewer.widget.MaterialToast;
 import com.hippo.ehviewer.widget.SuggestionHelper;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -561,6 +561,8 @@ public class SettingsActivity extends AbsPreferenceActivity {
                         Utils.deleteFile(dir);
                         handler.post(new CleanResponder(CleanResponder.STATE_DOING, targetDirList.size(), i + 1));
                     }
+                    // Dirs are deleted
+                    GalleryDirIndex.getInstance().rescanInBackground();
                     // Close windows
                     handler.post(new CleanResponder(CleanResponder.STATE_DONE, targetDirList.size(), targetDirList
                             .size()));
@@ -750,17 +752,12 @@ public class SettingsActivity extends AbsPreferenceActivity {
                         // Do get title from api
                         for (int i = 0; i < targetDirList.size(); i++) {
                             File dir = targetDirList.get(i);
-                            File info = new File(dir, EhUtils.EH_DOWNLOAD_FILENAME);
-                            InputStream is = null;
-                            int gid;
-                            String token;
+                            EdiFile edi = EdiFile.readHeader(new File(dir, EhUtils.EH_DOWNLOAD_FILENAME));
+                            if (edi == null)
+                                continue;
+                            int gid = edi.gid;
+                            String token = edi.token;
                             try {
-                                is = new BufferedInputStream(new FileInputStream(info), 128);
-                                // skip read index
-                                Utils.readAsciiLine(is);
-                                gid = Integer.parseInt(Utils.readAsciiLine(is));
-                                token = Utils.readAsciiLine(is);
-                                Utils.closeQuietly(is);
                                 dirs.add(dir);
                                 gids.add(gid);
                                 tokens.add(token);
@@ -774,7 +771,9 @@ public class SettingsActivity extends AbsPreferenceActivity {
                                             ApiGalleryInfo agi = agiArray[j];
                                             if (agi != null) {
                                                 handleNum++;
-                                                dirs.get(j).renameTo(EhUtils.generateGalleryDir(agi.gid, agi.title));
+                                                File newDir = EhUtils.generateGalleryDir(agi.gid, agi.title);
+                                                if (dirs.get(j).renameTo(newDir))
+                                                    GalleryDirIndex.getInstance().put(agi.gid, newDir);
                                             }
                                         }
                                     }
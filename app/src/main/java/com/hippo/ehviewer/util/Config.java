@@ -518,6 +518,9 @@ public final class Config {
     private static final String KEY_DOWNLOAD_THREAD = "download_thread";
     private static final int DEFAULT_DOWNLOAD_THREAD = 3;
 
+    private static final String KEY_DOWNLOAD_GALLERY = "download_gallery";
+    private static final int DEFAULT_DOWNLOAD_GALLERY = 1;
+
     private static final String KEY_DOWNLOAD_ORIGIN_IMAGE = "download_origin_image";
     private static final boolean DEFAULT_DOWNLOAD_ORIGIN_IMAGE = false;
 
@@ -540,6 +543,14 @@ public final class Config {
         return getIntFromStr(KEY_DOWNLOAD_THREAD, DEFAULT_DOWNLOAD_THREAD);
     }
 
+    /**
+     * The max number of galleries to download at the same time,
+     * they share download threads
+     */
+    public static int getDownloadGallery() {
+        return getIntFromStr(KEY_DOWNLOAD_GALLERY, DEFAULT_DOWNLOAD_GALLERY);
+    }
+
     public static boolean getDownloadOriginImage() {
         return getBoolean(KEY_DOWNLOAD_ORIGIN_IMAGE, DEFAULT_DOWNLOAD_ORIGIN_IMAGE);
     }
@@ -560,9 +571,18 @@ public final class Config {
     private static final String KEY_HTTP_READ_TIMEOUT = "http_read_timeout";
     private static final int DEFAULT_HTTP_READ_TIMEOUT = 5000;
 
+    private static final String KEY_THUMB_THREAD = "thumb_thread";
+    private static final int DEFAULT_THUMB_THREAD = 5;
+
+    private static final String KEY_THUMB_PREFETCH_BUDGET = "thumb_prefetch_budget";
+    private static final int DEFAULT_THUMB_PREFETCH_BUDGET = 256;
+
     private static final String KEY_EH_MIN_INTERVAL = "eh_min_interval";
     private static final int DEFAULT_EH_MIN_INTERVAL = 0;
 
+    private static final String KEY_EH_BURST = "eh_burst";
+    private static final int DEFAULT_EH_BURST = 1;
+
     public static int getHttpRetry() {
         return getIntFromStr(KEY_HTTP_RETRY, DEFAULT_HTTP_RETRY);
     }
@@ -575,10 +595,28 @@ public final class Config {
         return getIntFromStr(KEY_HTTP_READ_TIMEOUT, DEFAULT_HTTP_READ_TIMEOUT);
     }
 
+    /**
+     * The number of threads to download thumbnails
+     */
+    public static int getThumbThread() {
+        return getIntFromStr(KEY_THUMB_THREAD, DEFAULT_THUMB_THREAD);
+    }
+
+    /**
+     * The bandwidth for prefetching thumbnails in KB/s, 0 for no prefetch
+     */
+    public static int getThumbPrefetchBudget() {
+        return getIntFromStr(KEY_THUMB_PREFETCH_BUDGET, DEFAULT_THUMB_PREFETCH_BUDGET);
+    }
+
     public static int getEhMinInterval() {
         return getIntFromStr(KEY_EH_MIN_INTERVAL, DEFAULT_EH_MIN_INTERVAL);
     }
 
+    public static int getEhBurst() {
+        return getIntFromStr(KEY_EH_BURST, DEFAULT_EH_BURST);
+    }
+
 
     /****** About ******/
 
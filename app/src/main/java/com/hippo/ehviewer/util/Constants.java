@@ -24,6 +24,7 @@ public final class Constants {
     public static final int ANIMATE_TIME = 300;
 
     public static final int HTTP_TEMP_REDIRECT = 307;
+    public static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
     public static final int DEFAULT_TIMEOUT = 5 * 1000;
     public static final int MAX_REDIRECTS = 5;
 
@@ -57,7 +57,7 @@ public final class EhUtils {
 
     /**
      * Get gallery for read and download Gid is constant, but title may be
-     * changed
+     * changed. Title changed dir is found in GalleryDirIndex.
      *
      * @param gid
      * @param title
@@ -65,26 +65,24 @@ public final class EhUtils {
      */
     public static File getGalleryDir(int gid, String title) {
 
+        GalleryDirIndex index = GalleryDirIndex.getInstance();
         File downloadDir = new File(Config.getDownloadPath());
         File gDir = new File(downloadDir, Utils.standardizeFilename(Integer.toString(gid)));
         File defaultDir = generateGalleryDir(gid, title);
 
         if (gDir.exists()) {
             if (gDir.renameTo(defaultDir))
-                return defaultDir;
-            else
-                return gDir;
+                gDir = defaultDir;
+            index.put(gid, gDir);
+            return gDir;
         } else {
-            // TODO I need a better way or only call it in non-UI thread
-            String[] fileList = downloadDir.list();
-            if (fileList != null) {
-                for (String str : fileList) {
-                    // For title changed
-                    if (str.startsWith(gid + "-") && (gDir = new File(downloadDir, str)) != null && gDir.isDirectory())
-                        return gDir;
-                }
-            }
+            // For title changed
+            gDir = index.get(gid);
+            if (gDir != null)
+                return gDir;
 
+            if (defaultDir.isDirectory())
+                index.put(gid, defaultDir);
             return defaultDir;
         }
     }
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2014 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.util;
+
+import android.util.SparseArray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Persistent gid to gallery dirname index of download dir.<br>
+ * Entries are verified lazily, only the dir of the gid is checked when
+ * it is got. Download dir is listed once in a full rescan, when there
+ * is no index file, or when a gid can't be found before first rescan.
+ * The index file is in download dir, it is reloaded when download
+ * path is changed.
+ *
+ * @author Hippo
+ *
+ */
+public final class GalleryDirIndex {
+
+    private static final String TAG = GalleryDirIndex.class.getSimpleName();
+
+    public static final String FILENAME = ".ehviewer_dirs";
+
+    private static GalleryDirIndex sInstance;
+
+    private final SparseArray<String> mDirnameMap = new SparseArray<String>();
+    private String mDownloadPath;
+    /** True if download dir is fully scanned, miss means no dir **/
+    private boolean mScanned;
+    private boolean mSavePending;
+    private final Object mSaveLock = new Object();
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mScanCount;
+
+    public static GalleryDirIndex getInstance() {
+        synchronized (GalleryDirIndex.class) {
+            if (sInstance == null)
+                sInstance = new GalleryDirIndex();
+            return sInstance;
+        }
+    }
+
+    private GalleryDirIndex() {
+    }
+
+    private File getIndexFile() {
+        return new File(mDownloadPath, FILENAME);
+    }
+
+    /**
+     * Load index if download path is changed
+     */
+    private void ensureLoaded() {
+        String downloadPath = Config.getDownloadPath();
+        if (downloadPath.equals(mDownloadPath))
+            return;
+
+        mDownloadPath = downloadPath;
+        mDirnameMap.clear();
+        mScanned = false;
+
+        File indexFile = getIndexFile();
+        if (!indexFile.isFile())
+            // Scan when first miss
+            return;
+
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(indexFile));
+            // First line is scanned flag
+            mScanned = "1".equals(Utils.readAsciiLine(is));
+            while (true) {
+                String line = Utils.readAsciiLine(is);
+                int pos = line.indexOf(' ');
+                if (pos == -1)
+                    continue;
+                try {
+                    mDirnameMap.put(Integer.parseInt(line.substring(0, pos)),
+                            line.substring(pos + 1));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+            }
+        } catch (EOFException e) {
+            // Empty
+        } catch (IOException e) {
+            Log.w(TAG, "Can't read " + indexFile, e);
+        } finally {
+            Utils.closeQuietly(is);
+        }
+    }
+
+    /**
+     * Get the dir of gid, it is verified
+     *
+     * @param gid
+     * @return null if not found
+     */
+    public synchronized File get(int gid) {
+        ensureLoaded();
+
+        String dirname = mDirnameMap.get(gid);
+        if (dirname != null) {
+            File dir = new File(mDownloadPath, dirname);
+            if (dir.isDirectory()) {
+                mHitCount++;
+                return dir;
+            }
+            // Removed out of app
+            mDirnameMap.remove(gid);
+            scheduleSave();
+        }
+        mMissCount++;
+
+        if (!mScanned) {
+            // Only scan once, it is the old way
+            scan();
+            dirname = mDirnameMap.get(gid);
+            if (dirname != null)
+                return new File(mDownloadPath, dirname);
+        }
+        return null;
+    }
+
+    public synchronized void put(int gid, File dir) {
+        ensureLoaded();
+        if (!dir.getParent().equals(new File(mDownloadPath).getPath()))
+            return;
+
+        String dirname = dir.getName();
+        if (!dirname.equals(mDirnameMap.get(gid))) {
+            mDirnameMap.put(gid, dirname);
+            scheduleSave();
+        }
+    }
+
+    public synchronized void remove(int gid) {
+        ensureLoaded();
+        if (mDirnameMap.get(gid) != null) {
+            mDirnameMap.remove(gid);
+            scheduleSave();
+        }
+    }
+
+    /**
+     * List download dir, find all gallery dirs
+     */
+    private void scan() {
+        mScanCount++;
+        String[] fileList = new File(mDownloadPath).list();
+        SparseArray<String> map = new SparseArray<String>();
+        if (fileList != null) {
+            for (String str : fileList) {
+                int pos = str.indexOf('-');
+                try {
+                    int gid = Integer.parseInt(pos == -1 ? str : str.substring(0, pos));
+                    // Keep the first one, it is the same as before
+                    if (map.get(gid) == null && new File(mDownloadPath, str).isDirectory())
+                        map.put(gid, str);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+            }
+        }
+
+        mDirnameMap.clear();
+        for (int i = 0; i < map.size(); i++)
+            mDirnameMap.put(map.keyAt(i), map.valueAt(i));
+        mScanned = true;
+        scheduleSave();
+    }
+
+    /**
+     * Rebuild the whole index in background thread
+     */
+    public void rescanInBackground() {
+        new BgThread() {
+            @Override
+            public void run() {
+                synchronized (GalleryDirIndex.this) {
+                    ensureLoaded();
+                    scan();
+                }
+            }
+        }.start();
+    }
+
+    private void scheduleSave() {
+        if (mSavePending)
+            return;
+        mSavePending = true;
+
+        new BgThread() {
+            @Override
+            public void run() {
+                synchronized (mSaveLock) {
+                    save();
+                }
+            }
+        }.start();
+    }
+
+    private void save() {
+        String content;
+        File indexFile;
+        synchronized (this) {
+            mSavePending = false;
+            StringBuilder sb = new StringBuilder();
+            sb.append(mScanned ? '1' : '0').append('\n');
+            for (int i = 0; i < mDirnameMap.size(); i++) {
+                sb.append(mDirnameMap.keyAt(i)).append(' ')
+                        .append(mDirnameMap.valueAt(i)).append('\n');
+            }
+            content = sb.toString();
+            indexFile = getIndexFile();
+        }
+
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(indexFile));
+            writer.write(content);
+        } catch (IOException e) {
+            Log.w(TAG, "Can't write " + indexFile, e);
+        } finally {
+            Utils.closeQuietly(writer);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "GalleryDirIndex size = " + mDirnameMap.size() + ", hit = " + mHitCount
+                + ", miss = " + mMissCount + ", scan = " + mScanCount;
+    }
+}
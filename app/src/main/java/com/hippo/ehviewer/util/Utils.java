@@ -312,6 +312,23 @@ public final class Utils {
         return replaceEach(str, ESCAPE_CHARATER_LIST, UNESCAPE_CHARATER_LIST);
     }
 
+    /**
+     * String.indexOf for text which might be a growing StringBuilder,
+     * it is not copied
+     */
+    public static int indexOf(CharSequence text, String str, int fromIndex) {
+        if (text instanceof String)
+            return ((String) text).indexOf(str, fromIndex);
+        else if (text instanceof StringBuilder)
+            return ((StringBuilder) text).indexOf(str, fromIndex);
+        else
+            return text.toString().indexOf(str, fromIndex);
+    }
+
+    public static boolean contains(CharSequence text, String str) {
+        return indexOf(text, str, 0) != -1;
+    }
+
     /**
      * Make file name valid by removing invalid character and set max length
      * @param name
@@ -76,8 +76,15 @@ public class GalleryListView extends FrameLayout implements RefreshLayout.OnHead
     private StaggeredGridLayoutManager mLayoutManager;
     private MarginItemDecoration mItemDecoration;
     private final int[] mFirstPositionTemp = new int[50]; // TODO
+    private final int[] mLastPositionTemp = new int[50];
+    private ThumbPrefetcher mPrefetcher;
 
     private long mTaskStamp;
+    /**
+     * Rows of current task shown before it is over
+     */
+    private int mStreamedNum;
+    private int mStreamedStart;
 
     /**
      * First index of current page
@@ -135,6 +142,7 @@ public class GalleryListView extends FrameLayout implements RefreshLayout.OnHead
         mContext = context;
         mGiList = new ArrayList<>();
         mListener = new OnGetGalleryListListener();
+        mPrefetcher = new ThumbPrefetcher(context);
 
         LayoutInflater.from(mContext).inflate(R.layout.gallery_list_view, this);
 
@@ -308,6 +316,8 @@ public class GalleryListView extends FrameLayout implements RefreshLayout.OnHead
     }
 
     private void getGallerys() {
+        // Rows of last task is not a whole page
+        removeStreamedRows();
         setGallerysLayout();
 
         mTaskStamp = System.currentTimeMillis();
@@ -462,7 +472,33 @@ public class GalleryListView extends FrameLayout implements RefreshLayout.OnHead
         return mGiList.remove(position);
     }
 
+    private void removeStreamedRows() {
+        if (mStreamedNum > 0) {
+            mGiList.subList(mStreamedStart, mStreamedStart + mStreamedNum).clear();
+            mAdapter.notifyItemRangeRemoved(mStreamedStart, mStreamedNum);
+            mStreamedNum = 0;
+        }
+    }
+
+    /**
+     * @return true if rows shown before are the first of gis
+     */
+    private boolean isStreamedRowsOf(List<GalleryInfo> gis) {
+        if (gis == null || gis.size() < mStreamedNum)
+            return false;
+        for (int i = 0; i < mStreamedNum; i++) {
+            if (mGiList.get(mStreamedStart + i).gid != gis.get(i).gid)
+                return false;
+        }
+        return true;
+    }
+
     public static interface OnGetListListener {
+        /**
+         * Rows got before the page is over, gis of onSuccess still
+         * contains them
+         */
+        public void onRows(long taskStamp, List<GalleryInfo> rows);
         public void onSuccess(long taskStamp, List<GalleryInfo> gis, int maxPage);
         public void onFailure(long taskStamp, String eMsg);
     }
@@ -480,11 +516,55 @@ public class GalleryListView extends FrameLayout implements RefreshLayout.OnHead
             AppHandler.getInstance().post(this);
         }
 
+        @Override
+        public void onRows(long taskStamp, List<GalleryInfo> rows) {
+            if (mTaskStamp != taskStamp || rows.size() == 0)
+                return;
+
+            int start;
+            switch (mGetMode) {
+            case MODE_REFRESH:
+            case MODE_SOMEWHERE:
+                if (mStreamedNum == 0) {
+                    // First rows replace the list
+                    onlyShowList();
+                    mFirstPage = mTargetPage;
+                    mLastPage = mTargetPage;
+                    mGiList.clear();
+                    mPrefetcher.reset();
+                    mAdapter.notifyDataSetChanged();
+                    mCurPage = mTargetPage;
+                    mLayoutManager.scrollToPosition(0);
+                    mStreamedStart = 0;
+                }
+                break;
+            case MODE_NEXT_PAGE:
+                if (mStreamedNum == 0)
+                    mStreamedStart = mGiList.size();
+                break;
+            default:
+                // Previous page is inserted above when it is over,
+                // so shown items do not move while it is read
+                return;
+            }
+
+            start = mGiList.size();
+            mGiList.addAll(rows);
+            mAdapter.notifyItemRangeInserted(start, rows.size());
+            mStreamedNum += rows.size();
+        }
+
         @Override
         public void onSuccess(long taskStamp, List<GalleryInfo> gis, int pageNum) {
             if (mTaskStamp != taskStamp)
                 return;
 
+            // Rows shown before are kept, only add the rest
+            if (!isStreamedRowsOf(gis))
+                removeStreamedRows();
+            int streamedNum = mStreamedNum;
+            mStreamedNum = 0;
+
             if (pageNum == ListParser.TARGET_PAGE_IS_LAST)
                 mPageNum = mTargetPage + 1;
             else
@@ -500,6 +580,7 @@ public class GalleryListView extends FrameLayout implements RefreshLayout.OnHead
                 mFirstPage = 0;
                 mLastPage = 0;
                 mGiList.clear();
+                mPrefetcher.reset();
                 mAdapter.notifyDataSetChanged();
             } else {
                 onlyShowList();
@@ -509,15 +590,21 @@ public class GalleryListView extends FrameLayout implements RefreshLayout.OnHead
                 case MODE_REFRESH:
                     mFirstPage = 0;
                     mLastPage = 0;
-                    mGiList.clear();
-                    mGiList.addAll(gis);
-                    mAdapter.notifyDataSetChanged();
+                    if (streamedNum > 0) {
+                        start = mGiList.size();
+                        mGiList.addAll(gis.subList(streamedNum, gis.size()));
+                        mAdapter.notifyItemRangeInserted(start, gis.size() - streamedNum);
+                    } else {
+                        mGiList.clear();
+                        mPrefetcher.reset();
+                        mGiList.addAll(gis);
+                        mAdapter.notifyDataSetChanged();
+                        mLayoutManager.scrollToPosition(0);
+                    }
                     // For current page
                     mFirstIndex = 0;
                     mLastIndex = gis.size() - 1;
                     mCurPage = 0;
-
-                    mLayoutManager.scrollToPosition(0);
                     break;
 
                 case MODE_PRE_PAGE:
@@ -540,8 +627,10 @@ public class GalleryListView extends FrameLayout implements RefreshLayout.OnHead
                 case MODE_NEXT_PAGE:
                     mLastPage++;
                     start = mGiList.size();
-                    mGiList.addAll(gis);
-                    mAdapter.notifyItemRangeInserted(start, gis.size());
+                    mGiList.addAll(gis.subList(streamedNum, gis.size()));
+                    mAdapter.notifyItemRangeInserted(start, gis.size() - streamedNum);
+                    // Next page might be shown soon
+                    prefetchThumbs();
 
                     if (!mIsKeepPosition) {
                         mFirstIndex = mGiList.size() - gis.size();
@@ -554,15 +643,21 @@ public class GalleryListView extends FrameLayout implements RefreshLayout.OnHead
                 case MODE_SOMEWHERE:
                     mFirstPage = mTargetPage;
                     mLastPage = mTargetPage;
-                    mGiList.clear();
-                    mGiList.addAll(gis);
-                    mAdapter.notifyDataSetChanged();
+                    if (streamedNum > 0) {
+                        start = mGiList.size();
+                        mGiList.addAll(gis.subList(streamedNum, gis.size()));
+                        mAdapter.notifyItemRangeInserted(start, gis.size() - streamedNum);
+                    } else {
+                        mGiList.clear();
+                        mPrefetcher.reset();
+                        mGiList.addAll(gis);
+                        mAdapter.notifyDataSetChanged();
+                        mLayoutManager.scrollToPosition(0);
+                    }
                     // For current page
                     mFirstIndex = 0;
                     mLastIndex = gis.size() - 1;
                     mCurPage = mTargetPage;
-
-                    mLayoutManager.scrollToPosition(0);
                 }
             }
 
@@ -575,6 +670,8 @@ public class GalleryListView extends FrameLayout implements RefreshLayout.OnHead
             if (mTaskStamp != taskStamp)
                 return;
 
+            removeStreamedRows();
+
             switch (mGetMode) {
             case MODE_REFRESH:
             case MODE_SOMEWHERE:
@@ -643,6 +740,9 @@ public class GalleryListView extends FrameLayout implements RefreshLayout.OnHead
         public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
             // mRefreshLayout.onScrolled(recyclerView, dx, dy);
 
+            mPrefetcher.onScrolled(dy);
+            prefetchThumbs();
+
             int itemCount = mLayoutManager.getChildCount();
             int firstVisibleItem = mLayoutManager.findFirstVisibleItemPositions(mFirstPositionTemp)[0];
 
@@ -684,6 +784,33 @@ public class GalleryListView extends FrameLayout implements RefreshLayout.OnHead
         }
     }
 
+    /**
+     * Prefetch thumbnails in scroll direction, in the size of thumb view
+     */
+    private void prefetchThumbs() {
+        View child = mLayoutManager.getChildAt(0);
+        if (child == null)
+            return;
+        LoadImageView thumb = ((GalleryViewHolder) mEasyRecyclerView
+                .getChildViewHolder(child)).thumb;
+
+        int span = mLayoutManager.getSpanCount();
+        int[] firstPositions = mLayoutManager.findFirstVisibleItemPositions(mFirstPositionTemp);
+        int[] lastPositions = mLayoutManager.findLastVisibleItemPositions(mLastPositionTemp);
+        int firstVisible = Integer.MAX_VALUE;
+        int lastVisible = -1;
+        for (int i = 0; i < span; i++) {
+            if (firstPositions[i] >= 0)
+                firstVisible = Math.min(firstVisible, firstPositions[i]);
+            lastVisible = Math.max(lastVisible, lastPositions[i]);
+        }
+        if (lastVisible < 0)
+            return;
+
+        mPrefetcher.prefetch(mGiList, firstVisible, lastVisible, child.getHeight(), span,
+                thumb.getTargetWidth(), thumb.getTargetHeight());
+    }
+
     private class GalleryViewHolder extends RecyclerView.ViewHolder {
 
         public int viewType;
@@ -763,11 +890,20 @@ public class GalleryListView extends FrameLayout implements RefreshLayout.OnHead
                 // Set new thumb
                 thumb.setImageDrawable(null);
                 thumb.setLoadInfo(gi.thumb, key);
-                Bitmap b = ImageCache.getImageCache(getContext()).getFromMemory(key);
+                ImageCache imageCache = ImageCache.getImageCache(getContext());
+                int targetWidth = thumb.getTargetWidth();
+                int targetHeight = thumb.getTargetHeight();
+                Bitmap b = imageCache.obtainFromMemory(
+                        ImageCache.getSizedKey(key, targetWidth, targetHeight));
                 if (b != null) {
                     thumb.setContextImage(b, true, false);
+                    imageCache.getBitmapPool().release(b);
                 } else {
+                    // Load the one near first visible item first
+                    int firstVisible = Math.max(0, mLayoutManager
+                            .findFirstVisibleItemPositions(mFirstPositionTemp)[0]);
                     mImageLoader.add(gi.thumb, String.valueOf(gi.gid),
+                            targetWidth, targetHeight, Math.abs(position - firstVisible),
                             new LoadImageView.SimpleImageGetListener(thumb).setFixScaleType(true));
                 }
             }
@@ -18,13 +18,17 @@ package com.hippo.ehviewer.widget;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.util.AttributeSet;
 import android.view.View;
+import android.view.ViewGroup;
 import android.widget.ImageView;
 
 import com.hippo.ehviewer.ImageLoader;
 import com.hippo.ehviewer.R;
+import com.hippo.ehviewer.cache.BitmapPool;
+import com.hippo.ehviewer.cache.ImageCache;
 import com.hippo.ehviewer.effect.DrawableTransition;
 
 public class LoadImageView extends FixedAspectImageView {
@@ -42,6 +46,8 @@ public class LoadImageView extends FixedAspectImageView {
 
     private String mUrl;
     private String mKey;
+    /** The listener waiting for image of current key **/
+    private SimpleImageGetListener mLoadListener;
 
     public LoadImageView(Context context) {
         super(context);
@@ -53,11 +59,51 @@ public class LoadImageView extends FixedAspectImageView {
         super(context, attrs, defStyle);
     }
 
+    /**
+     * Keep bitmap shown out of bitmap pool
+     */
+    @Override
+    public void setImageDrawable(Drawable drawable) {
+        Drawable oldDrawable = getDrawable();
+        if (drawable == oldDrawable) {
+            super.setImageDrawable(drawable);
+            return;
+        }
+
+        BitmapPool pool = ImageCache.getImageCache(getContext()).getBitmapPool();
+        if (drawable instanceof BitmapDrawable)
+            pool.retain(((BitmapDrawable) drawable).getBitmap());
+        super.setImageDrawable(drawable);
+        if (oldDrawable instanceof BitmapDrawable)
+            pool.release(((BitmapDrawable) oldDrawable).getBitmap());
+    }
+
+    @Override
+    public void setImageResource(int resId) {
+        Drawable oldDrawable = getDrawable();
+        super.setImageResource(resId);
+        if (oldDrawable instanceof BitmapDrawable)
+            ImageCache.getImageCache(getContext()).getBitmapPool().release(
+                    ((BitmapDrawable) oldDrawable).getBitmap());
+    }
+
+    /**
+     * If the key is changed, like the view is rebound,
+     * the pending load of old key is cancelled.
+     */
     public void setLoadInfo(String url, String key) {
+        if (mKey != null && !mKey.equals(key))
+            setLoadListener(null);
         mUrl = url;
         mKey = key;
     }
 
+    private void setLoadListener(SimpleImageGetListener listener) {
+        if (mLoadListener != null && mLoadListener != listener)
+            ImageLoader.getInstance(getContext()).cancel(mLoadListener);
+        mLoadListener = listener;
+    }
+
     public synchronized void setState(int state) {
         mState = state;
         if (mState != FAIL)
@@ -71,6 +117,7 @@ public class LoadImageView extends FixedAspectImageView {
                 setClickable(false);
                 setImageDrawable(null);
                 ImageLoader.getInstance(getContext()).add(mUrl, mKey,
+                        getTargetWidth(), getTargetHeight(),
                         new SimpleImageGetListener(LoadImageView.this));
             }
         });
@@ -84,6 +131,34 @@ public class LoadImageView extends FixedAspectImageView {
         return mKey;
     }
 
+    /**
+     * Width to decode image in, it is from layout params if not laid out.
+     *
+     * @return 0 for unknown
+     */
+    public int getTargetWidth() {
+        int width = getWidth();
+        if (width <= 0) {
+            ViewGroup.LayoutParams lp = getLayoutParams();
+            width = lp == null ? 0 : lp.width;
+        }
+        return Math.max(width, 0);
+    }
+
+    /**
+     * Height to decode image in, it is from layout params if not laid out.
+     *
+     * @return 0 for unknown
+     */
+    public int getTargetHeight() {
+        int height = getHeight();
+        if (height <= 0) {
+            ViewGroup.LayoutParams lp = getLayoutParams();
+            height = lp == null ? 0 : lp.height;
+        }
+        return Math.max(height, 0);
+    }
+
     public synchronized int getState() {
         return mState;
     }
@@ -123,6 +198,7 @@ public class LoadImageView extends FixedAspectImageView {
         public SimpleImageGetListener(LoadImageView liv) {
             mLiv = liv;
             mLiv.setState(LoadImageView.LOADING);
+            mLiv.setLoadListener(this);
         }
 
         public SimpleImageGetListener setTransitabled(boolean transitabled) {
@@ -142,6 +218,8 @@ public class LoadImageView extends FixedAspectImageView {
 
         @Override
         public void onGetImage(String key, Bitmap bmp, int state) {
+            if (mLiv.mLoadListener == this)
+                mLiv.mLoadListener = null;
             if (isVaild(key) && mLiv.getState() == LoadImageView.LOADING) {
                 if (bmp != null) {
                     if (mTransitabled)
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.widget;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import com.hippo.ehviewer.ImageLoader;
+import com.hippo.ehviewer.data.GalleryInfo;
+
+import java.util.List;
+
+/**
+ * Load thumbnails of items which will be shown soon.<br>
+ * It prefetches in scroll direction, the faster it scrolls, the more items
+ * it prefetches. Downloads of prefetch are limited by bandwidth budget in
+ * {@link ImageLoader}, so they never starve requests of shown items.
+ *
+ * @author Hippo
+ *
+ */
+public final class ThumbPrefetcher {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = ThumbPrefetcher.class.getSimpleName();
+
+    private static final int MIN_PREFETCH_NUM = 4;
+    private static final int MAX_PREFETCH_NUM = 24;
+    /** Prefetch items which will be shown in this time **/
+    private static final long LOOKAHEAD_TIME = 1000;
+    /** Weight of new velocity sample **/
+    private static final float VELOCITY_SMOOTHING = 0.3f;
+    /** Velocity is reset if no scroll in this time **/
+    private static final long VELOCITY_TIMEOUT = 500;
+
+    private final ImageLoader mImageLoader;
+
+    /** Positive for down, negative for up **/
+    private int mDirection = 1;
+    /** Pixel per ms **/
+    private float mVelocity;
+    private long mLastScrollTime;
+
+    private int mLastFirstVisible = -1;
+    private int mLastLastVisible = -1;
+    private int mLastSize = -1;
+
+    public ThumbPrefetcher(Context context) {
+        mImageLoader = ImageLoader.getInstance(context);
+    }
+
+    /**
+     * Update direction and velocity
+     *
+     * @param dy scroll distance in pixel
+     */
+    public void onScrolled(int dy) {
+        if (dy == 0)
+            return;
+        long now = SystemClock.uptimeMillis();
+        long interval = now - mLastScrollTime;
+        mLastScrollTime = now;
+
+        int direction = dy > 0 ? 1 : -1;
+        if (direction != mDirection || interval > VELOCITY_TIMEOUT) {
+            mDirection = direction;
+            mVelocity = 0;
+        } else if (interval > 0) {
+            float velocity = (float) Math.abs(dy) / interval;
+            mVelocity += (velocity - mVelocity) * VELOCITY_SMOOTHING;
+        }
+    }
+
+    /**
+     * Forget the items prefetched, call it when list is changed
+     */
+    public void reset() {
+        mLastFirstVisible = -1;
+        mLastLastVisible = -1;
+        mLastSize = -1;
+    }
+
+    /**
+     * Prefetch thumbnails after last visible item, or before first
+     * visible item when scrolling up. It does nothing if the visible
+     * range is not changed.
+     *
+     * @param giList all items
+     * @param firstVisible first visible position
+     * @param lastVisible last visible position
+     * @param itemHeight height of one row
+     * @param span items in one row
+     * @param targetWidth width of thumb view
+     * @param targetHeight height of thumb view
+     */
+    public void prefetch(List<GalleryInfo> giList, int firstVisible, int lastVisible,
+            int itemHeight, int span, int targetWidth, int targetHeight) {
+        int size = giList.size();
+        if (firstVisible < 0 || lastVisible < firstVisible || size == 0
+                || ImageLoader.getPrefetchBudget() <= 0)
+            return;
+        if (firstVisible == mLastFirstVisible && lastVisible == mLastLastVisible
+                && size == mLastSize)
+            return;
+        mLastFirstVisible = firstVisible;
+        mLastLastVisible = lastVisible;
+        mLastSize = size;
+
+        int num = MIN_PREFETCH_NUM;
+        if (itemHeight > 0)
+            num += Math.round(mVelocity * LOOKAHEAD_TIME / itemHeight) * Math.max(span, 1);
+        num = Math.min(num, MAX_PREFETCH_NUM);
+
+        for (int i = 0; i < num; i++) {
+            int position = mDirection > 0 ? lastVisible + 1 + i : firstVisible - 1 - i;
+            if (position < 0 || position >= size)
+                break;
+            GalleryInfo gi = giList.get(position);
+            if (gi.thumb == null)
+                continue;
+            mImageLoader.prefetch(gi.thumb, String.valueOf(gi.gid),
+                    targetWidth, targetHeight, i);
+        }
+    }
+}